@@ -3,7 +3,10 @@ package main
 // #include <stdlib.h>
 import "C"
 import (
+	"encoding/binary"
+	"errors"
 	"github.com/df-mc/goleveldb/leveldb"
+	"github.com/df-mc/goleveldb/leveldb/filter"
 	"github.com/df-mc/goleveldb/leveldb/iterator"
 	"github.com/df-mc/goleveldb/leveldb/opt"
 	"github.com/df-mc/goleveldb/leveldb/util"
@@ -11,16 +14,45 @@ import (
 	"unsafe"
 )
 
+// Every function that can fail takes an errOut parameter as its last argument. When the call fails, a C string
+// with the error message is stored in it, which the caller has to free with leveldb_free. Errors are therefore
+// reported per call, so concurrent callers never see each other's errors.
+
 type DBParams struct {
 	path    string
 	options *opt.Options
 }
 
+// Iterator wraps a goleveldb iterator. After seeking, goleveldb is already positioned on the first entry, so the
+// pending flag makes the next call to next return that entry instead of skipping it. goleveldb iterators are not
+// safe for concurrent use, so every call locks the iterator.
+type Iterator struct {
+	lock    sync.Mutex
+	iter    iterator.Iterator
+	pending bool
+}
+
+// WriteBatch wraps a goleveldb batch, which is not safe for concurrent use either.
+type WriteBatch struct {
+	lock  sync.Mutex
+	batch leveldb.Batch
+}
+
+// Reader is implemented by both databases and snapshots, so all read functions accept handles of either.
+type Reader interface {
+	Get(key []byte, ro *opt.ReadOptions) ([]byte, error)
+	Has(key []byte, ro *opt.ReadOptions) (bool, error)
+	NewIterator(slice *util.Range, ro *opt.ReadOptions) iterator.Iterator
+}
+
+var errInvalidHandle = errors.New("invalid handle")
+var errMalformedRecord = errors.New("malformed write batch record")
+
+// The handle table. Handles are never reused, and all access goes through the lock.
 var lock = sync.RWMutex{}
 var pointers = map[int]interface{}{}
 var params = map[int]DBParams{}
 var pointerCounter = 0
-var lastError error
 
 func GetPointer(id C.int) interface{} {
 	lock.RLock()
@@ -29,90 +61,172 @@ func GetPointer(id C.int) interface{} {
 }
 
 func SetPointer(id C.int, ptr interface{}) {
-	lock.RLock()
-	defer lock.RUnlock()
+	lock.Lock()
+	defer lock.Unlock()
 	pointers[int(id)] = ptr
 }
 
 func DeletePointer(id C.int) {
-	lock.RLock()
-	defer lock.RUnlock()
+	lock.Lock()
+	defer lock.Unlock()
 	delete(pointers, int(id))
-	if _, ok := params[int(id)]; ok {
-		delete(params, int(id))
-	}
+	delete(params, int(id))
 }
 
 func AllocatePointer(ptr interface{}) C.int {
+	lock.Lock()
+	defer lock.Unlock()
 	pointerCounter++
-	SetPointer(C.int(pointerCounter), ptr)
+	pointers[pointerCounter] = ptr
 	return C.int(pointerCounter)
 }
 
+func GetParams(id C.int) (DBParams, bool) {
+	lock.RLock()
+	defer lock.RUnlock()
+	param, ok := params[int(id)]
+	return param, ok
+}
+
+func SetParams(id C.int, param DBParams) {
+	lock.Lock()
+	defer lock.Unlock()
+	params[int(id)] = param
+}
+
+func SetError(errOut **C.char, err error) {
+	if err != nil && errOut != nil && *errOut == nil {
+		*errOut = C.CString(err.Error())
+	}
+}
+
+func GetDB(id C.int, errOut **C.char) *leveldb.DB {
+	db, ok := GetPointer(id).(*leveldb.DB)
+	if !ok {
+		SetError(errOut, errInvalidHandle)
+		return nil
+	}
+	return db
+}
+
+func GetReader(id C.int, errOut **C.char) Reader {
+	reader, ok := GetPointer(id).(Reader)
+	if !ok {
+		SetError(errOut, errInvalidHandle)
+		return nil
+	}
+	return reader
+}
+
+func GetIterator(id C.int, errOut **C.char) *Iterator {
+	it, ok := GetPointer(id).(*Iterator)
+	if !ok {
+		SetError(errOut, errInvalidHandle)
+		return nil
+	}
+	return it
+}
+
+func GetWriteBatch(id C.int, errOut **C.char) *WriteBatch {
+	batch, ok := GetPointer(id).(*WriteBatch)
+	if !ok {
+		SetError(errOut, errInvalidHandle)
+		return nil
+	}
+	return batch
+}
+
+func GetOptions(id C.int, errOut **C.char) *opt.Options {
+	options, ok := GetPointer(id).(*opt.Options)
+	if !ok {
+		SetError(errOut, errInvalidHandle)
+		return nil
+	}
+	return options
+}
+
+// Bytes returns a copy of the given C memory. A nil pointer results in an empty slice.
+func Bytes(ptr unsafe.Pointer, size C.int) []byte {
+	if ptr == nil || size <= 0 {
+		return []byte{}
+	}
+	return C.GoBytes(ptr, size)
+}
+
+// View returns a slice backed by the given C memory, without copying it. The slice is only valid during the call,
+// so it may only be passed to functions that do not retain it.
+func View(ptr unsafe.Pointer, size C.int) []byte {
+	if ptr == nil || size <= 0 {
+		return []byte{}
+	}
+	return unsafe.Slice((*byte)(ptr), int(size))
+}
+
 func main() {
 }
 
-func Shrink(db *leveldb.DB) {
+func Shrink(db *leveldb.DB) error {
 	iter := db.NewIterator(nil, nil)
-	iter.First()
+	defer iter.Release()
 	for iter.Next() {
 		err := db.Put(iter.Key(), iter.Value(), nil)
 		if err != nil {
-			lastError = err
-			iter.Release()
-			return
+			return err
 		}
 	}
 	if iter.Error() != nil {
-		lastError = iter.Error()
-		iter.Release()
-		return
-	}
-	iter.Release()
-	err := db.CompactRange(util.Range{})
-	if err != nil {
-		lastError = err
-		return
+		return iter.Error()
 	}
+	return db.CompactRange(util.Range{})
 }
 
-//export leveldb_shrink_file
-func leveldb_shrink_file(path *C.char) {
-	db, err := leveldb.OpenFile(C.GoString(path), &opt.Options{
+func ShrinkFile(path string) error {
+	db, err := leveldb.OpenFile(path, &opt.Options{
 		Compression:      opt.FlateCompression,
 		CompressionLevel: 9,
 		BlockSize:        4 * opt.GiB,
 	})
 	if err != nil {
-		lastError = err
+		return err
 	}
-	Shrink(db)
+	err = Shrink(db)
 	// Close the database.
-	err = db.Close()
+	closeErr := db.Close()
 	if err != nil {
-		lastError = err
-		return
+		return err
 	}
+	return closeErr
+}
+
+//export leveldb_shrink_file
+func leveldb_shrink_file(path *C.char, errOut **C.char) {
+	SetError(errOut, ShrinkFile(C.GoString(path)))
 }
 
 //export leveldb_shrink
-func leveldb_shrink(id C.int) {
-	if param, ok := params[int(id)]; ok {
-		db := GetPointer(id).(*leveldb.DB)
-		// Close the database.
-		err := db.Close()
-		if err != nil {
-			lastError = err
-			return
-		}
-		leveldb_shrink_file(C.CString(param.path))
-		// Reopen the database with original options.
-		db, err = leveldb.OpenFile(param.path, param.options)
-		if err != nil {
-			lastError = err
-		}
-		SetPointer(id, db)
+func leveldb_shrink(id C.int, errOut **C.char) {
+	param, ok := GetParams(id)
+	if !ok {
+		return
+	}
+	db := GetDB(id, errOut)
+	if db == nil {
+		return
+	}
+	// Close the database.
+	err := db.Close()
+	if err != nil {
+		SetError(errOut, err)
+		return
 	}
+	SetError(errOut, ShrinkFile(param.path))
+	// Reopen the database with original options.
+	db, err = leveldb.OpenFile(param.path, param.options)
+	if err != nil {
+		SetError(errOut, err)
+		return
+	}
+	SetPointer(id, db)
 }
 
 //export leveldb_free
@@ -120,20 +234,9 @@ func leveldb_free(ptr unsafe.Pointer) {
 	C.free(ptr)
 }
 
-//export leveldb_error
-func leveldb_error() *C.char {
-	defer func() {
-		lastError = nil
-	}()
-	if lastError != nil {
-		return C.CString(lastError.Error())
-	}
-	return nil
-}
-
 //export leveldb_options_create
 func leveldb_options_create() C.int {
-	return AllocatePointer(opt.Options{})
+	return AllocatePointer(&opt.Options{})
 }
 
 //export leveldb_options_destroy
@@ -142,119 +245,315 @@ func leveldb_options_destroy(id C.int) {
 }
 
 //export leveldb_options_set_compression
-func leveldb_options_set_compression(id C.int, compression C.uint) {
-	options := GetPointer(id).(opt.Options)
-	options.Compression = opt.Compression(uint(compression))
+func leveldb_options_set_compression(id C.int, compression C.uint, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.Compression = opt.Compression(uint(compression))
+	}
 }
 
 //export leveldb_options_set_compression_level
-func leveldb_options_set_compression_level(id C.int, compressionLevel C.int) {
-	options := GetPointer(id).(opt.Options)
-	options.CompressionLevel = int(compressionLevel)
+func leveldb_options_set_compression_level(id C.int, compressionLevel C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.CompressionLevel = int(compressionLevel)
+	}
 }
 
 //export leveldb_options_set_block_size
-func leveldb_options_set_block_size(id C.int, compression C.int) {
-	options := GetPointer(id).(opt.Options)
-	options.BlockSize = int(compression)
+func leveldb_options_set_block_size(id C.int, blockSize C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.BlockSize = int(blockSize)
+	}
+}
+
+//export leveldb_options_set_block_cache_capacity
+func leveldb_options_set_block_cache_capacity(id C.int, capacity C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.BlockCacheCapacity = int(capacity)
+	}
+}
+
+//export leveldb_options_set_write_buffer
+func leveldb_options_set_write_buffer(id C.int, writeBuffer C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.WriteBuffer = int(writeBuffer)
+	}
+}
+
+//export leveldb_options_set_open_files_cache_capacity
+func leveldb_options_set_open_files_cache_capacity(id C.int, capacity C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.OpenFilesCacheCapacity = int(capacity)
+	}
+}
+
+// leveldb_options_set_bloom_filter sets a bloom filter with the given amount of bits per key, or removes the
+// filter when bitsPerKey is 0 or less. The filter only applies to tables written after the database is opened.
+//
+//export leveldb_options_set_bloom_filter
+func leveldb_options_set_bloom_filter(id C.int, bitsPerKey C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		if bitsPerKey <= 0 {
+			options.Filter = nil
+		} else {
+			options.Filter = filter.NewBloomFilter(int(bitsPerKey))
+		}
+	}
+}
+
+//export leveldb_options_set_compaction_table_size
+func leveldb_options_set_compaction_table_size(id C.int, size C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.CompactionTableSize = int(size)
+	}
+}
+
+//export leveldb_options_set_disable_seeks_compaction
+func leveldb_options_set_disable_seeks_compaction(id C.int, disable C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.DisableSeeksCompaction = disable != 0
+	}
+}
+
+//export leveldb_options_set_no_sync
+func leveldb_options_set_no_sync(id C.int, noSync C.int, errOut **C.char) {
+	if options := GetOptions(id, errOut); options != nil {
+		options.NoSync = noSync != 0
+	}
 }
 
 //export leveldb_open
-func leveldb_open(path *C.char, options C.int) C.int {
+func leveldb_open(path *C.char, options C.int, errOut **C.char) C.int {
 	var o *opt.Options
 	if options != -1 {
-		ptr := GetPointer(options).(opt.Options)
-		o = &ptr
+		ptr := GetOptions(options, errOut)
+		if ptr == nil {
+			return -1
+		}
+		// Copy the options, so later changes to the options handle do not affect the opened database
+		copied := *ptr
+		o = &copied
 	}
 	goPath := C.GoString(path)
 	db, err := leveldb.OpenFile(goPath, o)
 	if err != nil {
-		lastError = err
+		SetError(errOut, err)
 		return -1
 	}
-	ptr := AllocatePointer(db)
-	params[int(ptr)] = DBParams{
+	id := AllocatePointer(db)
+	SetParams(id, DBParams{
 		path:    goPath,
 		options: o,
-	}
-	return ptr
+	})
+	return id
 }
 
 //export leveldb_close
-func leveldb_close(id C.int) {
-	db := GetPointer(id).(*leveldb.DB)
+func leveldb_close(id C.int, errOut **C.char) {
+	db := GetDB(id, errOut)
+	if db == nil {
+		return
+	}
 	err := db.Close()
 	if err != nil {
-		lastError = err
+		SetError(errOut, err)
 		return
 	}
 	DeletePointer(id)
 }
 
-//export leveldb_iterator_create
-func leveldb_iterator_create(id C.int) C.int {
-	db := GetPointer(id).(*leveldb.DB)
-	iter := db.NewIterator(nil, nil)
+func NewIterator(id C.int, slice *util.Range, errOut **C.char) C.int {
+	reader := GetReader(id, errOut)
+	if reader == nil {
+		return -1
+	}
+	iter := reader.NewIterator(slice, nil)
 	if iter.Error() != nil {
-		lastError = iter.Error()
+		SetError(errOut, iter.Error())
 		iter.Release()
 		return -1
 	}
-	return AllocatePointer(iter)
+	return AllocatePointer(&Iterator{iter: iter})
+}
+
+//export leveldb_iterator_create
+func leveldb_iterator_create(id C.int, errOut **C.char) C.int {
+	return NewIterator(id, nil, errOut)
+}
+
+// leveldb_iterator_create_range creates an iterator over [start, limit). A nil start or limit leaves that side open.
+//
+//export leveldb_iterator_create_range
+func leveldb_iterator_create_range(id C.int, start unsafe.Pointer, startSize C.int, limit unsafe.Pointer, limitSize C.int, errOut **C.char) C.int {
+	slice := &util.Range{}
+	if start != nil {
+		slice.Start = Bytes(start, startSize)
+	}
+	if limit != nil {
+		slice.Limit = Bytes(limit, limitSize)
+	}
+	return NewIterator(id, slice, errOut)
+}
+
+//export leveldb_iterator_create_prefix
+func leveldb_iterator_create_prefix(id C.int, prefix unsafe.Pointer, prefixSize C.int, errOut **C.char) C.int {
+	return NewIterator(id, util.BytesPrefix(Bytes(prefix, prefixSize)), errOut)
 }
 
 //export leveldb_iterator_destroy
-func leveldb_iterator_destroy(id C.int) {
-	iter := GetPointer(id).(iterator.Iterator)
-	iter.Release()
+func leveldb_iterator_destroy(id C.int, errOut **C.char) {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return
+	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	it.iter.Release()
 	DeletePointer(id)
 }
 
 //export leveldb_iterator_next
-func leveldb_iterator_next(id C.int) C.int {
-	iter := GetPointer(id).(iterator.Iterator)
-	if iter.Next() {
+func leveldb_iterator_next(id C.int, errOut **C.char) C.int {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return C.int(0)
+	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	if it.pending {
+		it.pending = false
 		return C.int(1)
 	}
-	if iter.Error() != nil {
-		lastError = iter.Error()
+	if it.iter.Next() {
+		return C.int(1)
 	}
+	SetError(errOut, it.iter.Error())
 	return C.int(0)
 }
 
+// leveldb_iterator_next_batch copies as many entries as fit into the given buffer, starting at the next entry.
+// Every entry is written as a little endian uint32 key size and value size, followed by the key and the value.
+// Returns the amount of entries written, 0 when the iterator is exhausted, or the negated size the buffer needs
+// to have when not even a single entry fits.
+//
+//export leveldb_iterator_next_batch
+func leveldb_iterator_next_batch(id C.int, buf unsafe.Pointer, bufSize C.int, errOut **C.char) C.int {
+	return NextBatch(id, buf, bufSize, true, errOut)
+}
+
+// leveldb_iterator_next_batch_keys works like leveldb_iterator_next_batch, but leaves out the values: every entry
+// is written as a little endian uint32 key size and value size, followed by only the key.
+//
+//export leveldb_iterator_next_batch_keys
+func leveldb_iterator_next_batch_keys(id C.int, buf unsafe.Pointer, bufSize C.int, errOut **C.char) C.int {
+	return NextBatch(id, buf, bufSize, false, errOut)
+}
+
+func NextBatch(id C.int, buf unsafe.Pointer, bufSize C.int, withValues bool, errOut **C.char) C.int {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return C.int(0)
+	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	out := unsafe.Slice((*byte)(buf), int(bufSize))
+	offset := 0
+	count := 0
+	for {
+		if !it.pending {
+			if !it.iter.Next() {
+				SetError(errOut, it.iter.Error())
+				break
+			}
+			it.pending = true
+		}
+		key := it.iter.Key()
+		value := it.iter.Value()
+		size := 8 + len(key)
+		if withValues {
+			size += len(value)
+		}
+		if offset+size > len(out) {
+			if count == 0 {
+				return C.int(-size)
+			}
+			break
+		}
+		binary.LittleEndian.PutUint32(out[offset:], uint32(len(key)))
+		binary.LittleEndian.PutUint32(out[offset+4:], uint32(len(value)))
+		copy(out[offset+8:], key)
+		if withValues {
+			copy(out[offset+8+len(key):], value)
+		}
+		offset += size
+		count++
+		it.pending = false
+	}
+	return C.int(count)
+}
+
 //export leveldb_iterator_seek_to_first
-func leveldb_iterator_seek_to_first(id C.int) {
-	iter := GetPointer(id).(iterator.Iterator)
-	iter.First()
-	if iter.Error() != nil {
-		lastError = iter.Error()
+func leveldb_iterator_seek_to_first(id C.int, errOut **C.char) {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return
 	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	it.pending = it.iter.First()
+	SetError(errOut, it.iter.Error())
+}
+
+// leveldb_iterator_seek positions the iterator before the first entry with a key equal to or greater than the
+// given key, so the next call to next returns that entry.
+//
+//export leveldb_iterator_seek
+func leveldb_iterator_seek(id C.int, key unsafe.Pointer, keySize C.int, errOut **C.char) {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return
+	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	it.pending = it.iter.Seek(View(key, keySize))
+	SetError(errOut, it.iter.Error())
 }
 
 //export leveldb_iterator_key
-func leveldb_iterator_key(id C.int, size *C.int) unsafe.Pointer {
-	iter := GetPointer(id).(iterator.Iterator)
-	key := iter.Key()
+func leveldb_iterator_key(id C.int, size *C.int, errOut **C.char) unsafe.Pointer {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return nil
+	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	key := it.iter.Key()
 	*size = C.int(len(key))
 	return C.CBytes(key)
 }
 
 //export leveldb_iterator_value
-func leveldb_iterator_value(id C.int, size *C.int) unsafe.Pointer {
-	iter := GetPointer(id).(iterator.Iterator)
-	value := iter.Value()
+func leveldb_iterator_value(id C.int, size *C.int, errOut **C.char) unsafe.Pointer {
+	it := GetIterator(id, errOut)
+	if it == nil {
+		return nil
+	}
+	it.lock.Lock()
+	defer it.lock.Unlock()
+	value := it.iter.Value()
 	*size = C.int(len(value))
 	return C.CBytes(value)
 }
 
 //export leveldb_get
-func leveldb_get(id C.int, key unsafe.Pointer, keySize C.int, valueSize *C.int) unsafe.Pointer {
-	db := GetPointer(id).(*leveldb.DB)
-	goKey := C.GoBytes(key, keySize)
-	value, err := db.Get(goKey, nil)
+func leveldb_get(id C.int, key unsafe.Pointer, keySize C.int, valueSize *C.int, errOut **C.char) unsafe.Pointer {
+	reader := GetReader(id, errOut)
+	if reader == nil {
+		return nil
+	}
+	value, err := reader.Get(View(key, keySize), nil)
 	if err != nil {
 		if err != leveldb.ErrNotFound {
-			lastError = err
+			SetError(errOut, err)
 		}
 		return nil
 	}
@@ -262,14 +561,70 @@ func leveldb_get(id C.int, key unsafe.Pointer, keySize C.int, valueSize *C.int)
 	return C.CBytes(value)
 }
 
+// leveldb_get_into copies the value of the given key into a buffer owned by the caller. Returns the size of the
+// value, or -1 if the key does not exist. When the value is larger than the buffer, only the part that fits is
+// copied, and the caller can retry with a buffer of the returned size.
+//
+//export leveldb_get_into
+func leveldb_get_into(id C.int, key unsafe.Pointer, keySize C.int, buf unsafe.Pointer, bufSize C.int, errOut **C.char) C.int {
+	reader := GetReader(id, errOut)
+	if reader == nil {
+		return C.int(-1)
+	}
+	value, err := reader.Get(View(key, keySize), nil)
+	if err != nil {
+		if err != leveldb.ErrNotFound {
+			SetError(errOut, err)
+		}
+		return C.int(-1)
+	}
+	copy(View(buf, bufSize), value)
+	return C.int(len(value))
+}
+
+// leveldb_get_prefix returns all entries whose key starts with the given prefix in one buffer. Every entry is
+// written as a little endian uint32 key size and value size, followed by the key and the value.
+//
+//export leveldb_get_prefix
+func leveldb_get_prefix(id C.int, prefix unsafe.Pointer, prefixSize C.int, size *C.int, errOut **C.char) unsafe.Pointer {
+	reader := GetReader(id, errOut)
+	if reader == nil {
+		return nil
+	}
+	iter := reader.NewIterator(util.BytesPrefix(View(prefix, prefixSize)), nil)
+	defer iter.Release()
+	var out []byte
+	header := make([]byte, 8)
+	for iter.Next() {
+		key := iter.Key()
+		value := iter.Value()
+		binary.LittleEndian.PutUint32(header, uint32(len(key)))
+		binary.LittleEndian.PutUint32(header[4:], uint32(len(value)))
+		out = append(out, header...)
+		out = append(out, key...)
+		out = append(out, value...)
+	}
+	if iter.Error() != nil {
+		SetError(errOut, iter.Error())
+		return nil
+	}
+	*size = C.int(len(out))
+	if len(out) == 0 {
+		return nil
+	}
+	return C.CBytes(out)
+}
+
 //export leveldb_has
-func leveldb_has(id C.int, key unsafe.Pointer, keySize C.int) C.int {
-	db := GetPointer(id).(*leveldb.DB)
-	goKey := C.GoBytes(key, keySize)
-	has, err := db.Has(goKey, nil)
+func leveldb_has(id C.int, key unsafe.Pointer, keySize C.int, errOut **C.char) C.int {
+	reader := GetReader(id, errOut)
+	if reader == nil {
+		return C.int(0)
+	}
+	has, err := reader.Has(View(key, keySize), nil)
 	if err != nil {
 		if err != leveldb.ErrNotFound {
-			lastError = err
+			SetError(errOut, err)
 		}
 		return C.int(0)
 	}
@@ -280,34 +635,160 @@ func leveldb_has(id C.int, key unsafe.Pointer, keySize C.int) C.int {
 }
 
 //export leveldb_put
-func leveldb_put(id C.int, key unsafe.Pointer, keySize C.int, value unsafe.Pointer, valueSize C.int) {
-	db := GetPointer(id).(*leveldb.DB)
-	goKey := C.GoBytes(key, keySize)
-	goValue := C.GoBytes(value, valueSize)
-	err := db.Put(goKey, goValue, nil)
-	if err != nil {
-		lastError = err
+func leveldb_put(id C.int, key unsafe.Pointer, keySize C.int, value unsafe.Pointer, valueSize C.int, errOut **C.char) {
+	db := GetDB(id, errOut)
+	if db == nil {
+		return
 	}
+	// Put copies the key and value into the journal and memtable, so they do not have to be copied here
+	SetError(errOut, db.Put(View(key, keySize), View(value, valueSize), nil))
 }
 
 //export leveldb_delete
-func leveldb_delete(id C.int, key unsafe.Pointer, keySize C.int) {
-	db := GetPointer(id).(*leveldb.DB)
-	goKey := C.GoBytes(key, keySize)
-	err := db.Delete(goKey, nil)
+func leveldb_delete(id C.int, key unsafe.Pointer, keySize C.int, errOut **C.char) {
+	db := GetDB(id, errOut)
+	if db == nil {
+		return
+	}
+	SetError(errOut, db.Delete(View(key, keySize), nil))
+}
+
+// leveldb_snapshot_create creates a snapshot of the current state of the database. The returned handle can be
+// passed to all read functions instead of a database handle.
+//
+//export leveldb_snapshot_create
+func leveldb_snapshot_create(id C.int, errOut **C.char) C.int {
+	db := GetDB(id, errOut)
+	if db == nil {
+		return -1
+	}
+	snapshot, err := db.GetSnapshot()
 	if err != nil {
-		lastError = err
+		SetError(errOut, err)
+		return -1
+	}
+	return AllocatePointer(snapshot)
+}
+
+//export leveldb_snapshot_release
+func leveldb_snapshot_release(id C.int, errOut **C.char) {
+	snapshot, ok := GetPointer(id).(*leveldb.Snapshot)
+	if !ok {
+		SetError(errOut, errInvalidHandle)
+		return
+	}
+	snapshot.Release()
+	DeletePointer(id)
+}
+
+//export leveldb_writebatch_create
+func leveldb_writebatch_create() C.int {
+	return AllocatePointer(&WriteBatch{})
+}
+
+//export leveldb_writebatch_destroy
+func leveldb_writebatch_destroy(id C.int) {
+	DeletePointer(id)
+}
+
+//export leveldb_writebatch_put
+func leveldb_writebatch_put(id C.int, key unsafe.Pointer, keySize C.int, value unsafe.Pointer, valueSize C.int, errOut **C.char) {
+	wb := GetWriteBatch(id, errOut)
+	if wb == nil {
+		return
+	}
+	wb.lock.Lock()
+	defer wb.lock.Unlock()
+	wb.batch.Put(View(key, keySize), View(value, valueSize))
+}
+
+//export leveldb_writebatch_delete
+func leveldb_writebatch_delete(id C.int, key unsafe.Pointer, keySize C.int, errOut **C.char) {
+	wb := GetWriteBatch(id, errOut)
+	if wb == nil {
+		return
+	}
+	wb.lock.Lock()
+	defer wb.lock.Unlock()
+	wb.batch.Delete(View(key, keySize))
+}
+
+// leveldb_writebatch_append adds a series of packed records to the batch, so many puts and deletes only cost one
+// call. Each record is an op byte (0 = delete, 1 = put), a little endian uint32 key size and the key, followed
+// by a little endian uint32 value size and the value for puts.
+//
+//export leveldb_writebatch_append
+func leveldb_writebatch_append(id C.int, data unsafe.Pointer, size C.int, errOut **C.char) {
+	wb := GetWriteBatch(id, errOut)
+	if wb == nil {
+		return
+	}
+	wb.lock.Lock()
+	defer wb.lock.Unlock()
+	buf := View(data, size)
+	for len(buf) > 0 {
+		if len(buf) < 5 {
+			SetError(errOut, errMalformedRecord)
+			return
+		}
+		op := buf[0]
+		keySize := int(binary.LittleEndian.Uint32(buf[1:5]))
+		buf = buf[5:]
+		if len(buf) < keySize {
+			SetError(errOut, errMalformedRecord)
+			return
+		}
+		key := buf[:keySize]
+		buf = buf[keySize:]
+		if op == 0 {
+			wb.batch.Delete(key)
+			continue
+		}
+		if len(buf) < 4 {
+			SetError(errOut, errMalformedRecord)
+			return
+		}
+		valueSize := int(binary.LittleEndian.Uint32(buf[:4]))
+		buf = buf[4:]
+		if len(buf) < valueSize {
+			SetError(errOut, errMalformedRecord)
+			return
+		}
+		// Batch.Put copies the key and value into its own buffer
+		wb.batch.Put(key, buf[:valueSize])
+		buf = buf[valueSize:]
+	}
+}
+
+//export leveldb_writebatch_clear
+func leveldb_writebatch_clear(id C.int, errOut **C.char) {
+	wb := GetWriteBatch(id, errOut)
+	if wb == nil {
+		return
 	}
+	wb.lock.Lock()
+	defer wb.lock.Unlock()
+	wb.batch.Reset()
+}
+
+//export leveldb_write
+func leveldb_write(id C.int, batchId C.int, errOut **C.char) {
+	db := GetDB(id, errOut)
+	wb := GetWriteBatch(batchId, errOut)
+	if db == nil || wb == nil {
+		return
+	}
+	wb.lock.Lock()
+	defer wb.lock.Unlock()
+	SetError(errOut, db.Write(&wb.batch, nil))
 }
 
 //export leveldb_repair
-func leveldb_repair(path *C.char) {
+func leveldb_repair(path *C.char, errOut **C.char) {
 	db, err := leveldb.RecoverFile(C.GoString(path), nil)
 	if err != nil {
-		lastError = err
-	}
-	err = db.Close()
-	if err != nil {
-		lastError = err
+		SetError(errOut, err)
+		return
 	}
+	SetError(errOut, db.Close())
 }
@@ -4,15 +4,13 @@ import com.google.common.io.Files;
 import lombok.Getter;
 import nl.itslars.kosmos.enums.Dimension;
 import nl.itslars.kosmos.leveldb.LevelDB;
-import nl.itslars.kosmos.objects.entity.Player;
-import nl.itslars.kosmos.objects.entity.UnfinishedEntity;
 import nl.itslars.kosmos.objects.settings.LevelDatFile;
 import nl.itslars.kosmos.objects.world.ChunkPreset;
 import nl.itslars.kosmos.objects.world.WorldData;
 import nl.itslars.kosmos.util.FileUtils;
+import nl.itslars.kosmos.util.WorldIndex;
 import nl.itslars.mcpenbt.NBTUtil;
 import nl.itslars.mcpenbt.tags.CompoundTag;
-import nl.itslars.mcpenbt.tags.Tag;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,7 +20,6 @@ import java.nio.charset.Charset;
 import java.sql.Date;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
-import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -32,6 +29,8 @@ import java.util.HashMap;
 public class World {
 
     public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy.MM.dd-HH.mm.ss");
+    // The size of the buffer that LevelDB entries are transferred in while loading the world
+    public static final int ITERATOR_BUFFER_SIZE = 1024 * 1024;
 
     // The LevelDB storage
     private final LevelDB db;
@@ -40,18 +39,52 @@ public class World {
     // The WorldData object
     private WorldData worldData;
     private final String name;
-
-    private World(File directory, String name) throws IOException {
-        LevelDB.Options options = LevelDB.createOptions();
-        options.setCompression(LevelDB.CompressionType.RAW_ZLIB.getId());
-        options.setBlockSize(4194304);
+    // The LevelDB directory
+    private final File dbDirectory;
+    // The world index file, or null if the index is not used
+    private final File indexFile;
+
+    private World(File directory, String name, LevelDB.Options options, boolean useIndex) throws IOException {
+        this.dbDirectory = new File(directory, "db");
+        this.indexFile = useIndex ? new File(directory, WorldIndex.FILE_NAME) : null;
+        // The index is validated against the database files as they are before opening, since opening changes them
+        byte[] fingerprint = null;
+        if (useIndex) {
+            try {
+                fingerprint = WorldIndex.fingerprint(dbDirectory);
+            } catch (IOException e) {
+                // Without a fingerprint, the storage is scanned
+            }
+        }
         // Load the LevelDB and level.dat file
-        this.db = LevelDB.open(new File(directory, "db").getAbsolutePath(), options);
+        if (options == null) {
+            try (LevelDB.Options defaultOptions = createDefaultOptions()) {
+                this.db = LevelDB.open(dbDirectory.getAbsolutePath(), defaultOptions);
+            }
+        } else {
+            this.db = LevelDB.open(dbDirectory.getAbsolutePath(), options);
+        }
         this.levelDat = new File(directory, "level.dat");
         this.name = name;
 
-        // Load the world
-        loadWorld();
+        // Load the world from the index if it is up to date, otherwise scan the LevelDB storage
+        worldData = new WorldData(this, levelDat, name);
+        if (fingerprint == null || !WorldIndex.read(indexFile, fingerprint, db, worldData)) {
+            loadWorld();
+        }
+    }
+
+    /**
+     * Creates the LevelDB options that worlds are opened with by default: raw zlib compression, which is what
+     * Minecraft Bedrock uses, and a 4 MB block size. The result can be tuned further and passed to
+     * {@link #open(File, File, LevelDB.Options)}.
+     * @return The default options, which should be closed by the caller
+     */
+    public static LevelDB.Options createDefaultOptions() {
+        LevelDB.Options options = LevelDB.createOptions();
+        options.setCompression(LevelDB.CompressionType.RAW_ZLIB.getId());
+        options.setBlockSize(4194304);
+        return options;
     }
 
     /**
@@ -61,9 +94,8 @@ public class World {
      * - Chunks
      */
     private void loadWorld() {
-        worldData = new WorldData(this, levelDat, name);
-
-        LevelDB.Iterator iterator = db.iterator();
+        // Only the keys are transferred, since chunk records are identified by their key alone
+        LevelDB.Iterator iterator = db.keyIterator(ITERATOR_BUFFER_SIZE);
         iterator.seekToFirst();
 
         // Loop through all entries in the LevelDB database
@@ -72,24 +104,12 @@ public class World {
             if (key == null || key.length == 0) {
                 continue;
             }
-            byte[] value = iterator.value();
             String keyName = new String(key);
 
-            if (keyName.equals("~local_player") || keyName.startsWith("player_server")) {
-                // Check if the key represents a local player or server-side player and if so, add it to the world data
-                CompoundTag compoundTag = (CompoundTag) NBTUtil.read(false, value);
-                Player player = new Player(compoundTag, key);
-                worldData.addPlayer(player, key);
-            } else if (keyName.startsWith("player")) {
-                // Check if the key represents a pointer to a non-local player and if so, add it to the world data
-                CompoundTag compoundTag = (CompoundTag) NBTUtil.read(false, value);
-                compoundTag.getByName("ServerId").ifPresent(tag -> {
-                    byte[] pointer = tag.getAsString().getValue().getBytes();
-                    worldData.addPlayerPointer(key, pointer);
-                });
-            } else if (keyName.startsWith("actorprefix")) {
-                Tag read = NBTUtil.read(false, value);
-                worldData.getEntities().add(new UnfinishedEntity(ByteBuffer.wrap(Arrays.copyOfRange(key, 11, key.length)).getLong(), (CompoundTag) read));
+            if (WorldData.isPlayerOrEntityKey(key)) {
+                // Check if the key represents a player, player pointer or entity and if so, fetch its value and add it
+                // to the world data
+                worldData.loadPlayerOrEntity(key, db.get(key));
             }  else if (keyName.matches("^[a-zA-Z]*$") || keyName.startsWith("map_") || keyName.startsWith("digp")) {
                 // Check if the key represents a data attribute and if so, ignore it
                 // This check can NOT be removed, otherwise the next chunk load may trigger an exception
@@ -121,6 +141,14 @@ public class World {
      */
     public void close() throws IOException {
         db.close();
+        if (indexFile != null) {
+            if (worldData.hasUnsavedDeletions()) {
+                // The chunk presets and players in memory do not match the storage, so they can not be indexed
+                WorldIndex.delete(indexFile);
+            } else {
+                WorldIndex.write(indexFile, WorldIndex.fingerprint(dbDirectory), worldData);
+            }
+        }
     }
 
     /**
@@ -132,6 +160,37 @@ public class World {
      * @throws IOException When opening the world failed
      */
     public static WorldData open(File directory, File backupDirectory) throws IOException {
+        return open(directory, backupDirectory, null);
+    }
+
+    /**
+     * Opens a world from the given world directory, using the given LevelDB options, without the world index
+     * @param directory The world directory
+     * @param backupDirectory The directory that this world is backed up into, before opening it
+     * @param options The LevelDB options, or null to use the default options
+     * @return A newly instantiated WorldData object
+     * @throws IOException When opening the world failed
+     */
+    public static WorldData open(File directory, File backupDirectory, LevelDB.Options options) throws IOException {
+        return open(directory, backupDirectory, options, false);
+    }
+
+    /**
+     * Opens a world from the given world directory, using the given LevelDB options and optionally the world index.
+     * Start from {@link #createDefaultOptions()} to keep the compression Minecraft Bedrock expects.
+     * When the world index is used, the chunk coordinates and player and entity keys are read from the index file
+     * beside the db directory, instead of scanning the entire LevelDB storage. The index is only read if the database
+     * did not change since it was written, and it is written when the world is closed. Changes made directly to the
+     * LevelDB storage, instead of through the world data, are not reflected in the index.
+     * @param directory The world directory
+     * @param backupDirectory The directory that this world is backed up into, before opening it
+     * @param options The LevelDB options, or null to use the default options. The options are only used while
+     *                opening, so they can be closed afterwards.
+     * @param useIndex Whether the world index is used
+     * @return A newly instantiated WorldData object
+     * @throws IOException When opening the world failed
+     */
+    public static WorldData open(File directory, File backupDirectory, LevelDB.Options options, boolean useIndex) throws IOException {
         // Check if the directory was a proper world directory, based on the level.dat file
         File levelDat = new File(directory, "level.dat");
         if (!levelDat.exists()) {
@@ -157,6 +216,6 @@ public class World {
         }
 
         // Initiate and return a new World (and WorldData) object
-        return new World(directory, name).getWorldData();
+        return new World(directory, name, options, useIndex).getWorldData();
     }
 }
@@ -2,6 +2,7 @@ package nl.itslars.kosmos.leveldb;
 
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
 public class GoLevelDB {
@@ -11,26 +12,48 @@ public class GoLevelDB {
     }
 
     public static native void leveldb_free(Pointer ptr);
-    public static native String leveldb_error();
     public static native int leveldb_options_create();
     public static native void leveldb_options_destroy(int options);
-    public static native void leveldb_options_set_compression(int options, int compression);
-    public static native void leveldb_options_set_compression_level(int options, int compressionLevel);
-    public static native void leveldb_options_set_block_size(int options, int blockSize);
-    public static native int leveldb_open(byte[] path, int options);
-    public static native void leveldb_close(int db);
-    public static native void leveldb_shrink(int db);
-    public static native void leveldb_shrink_file(byte[] path);
-    public static native int leveldb_iterator_create(int iterator);
-    public static native void leveldb_iterator_destroy(int iterator);
-    public static native int leveldb_iterator_next(int iterator);
-    public static native void leveldb_iterator_seek_to_first(int iterator);
-    public static native Pointer leveldb_iterator_key(int iterator, PointerByReference size);
-    public static native Pointer leveldb_iterator_value(int iterator, PointerByReference size);
-    public static native Pointer leveldb_get(int db, Pointer key, int keySize, PointerByReference valueSize);
-    public static native int leveldb_has(int db, Pointer key, int keySize);
-    public static native void leveldb_put(int db, Pointer key, int keySize, Pointer value, int valueSize);
-    public static native void leveldb_delete(int db, Pointer key, int keySize);
-    public static native void leveldb_repair(byte[] path);
+    public static native void leveldb_options_set_compression(int options, int compression, PointerByReference error);
+    public static native void leveldb_options_set_compression_level(int options, int compressionLevel, PointerByReference error);
+    public static native void leveldb_options_set_block_size(int options, int blockSize, PointerByReference error);
+    public static native void leveldb_options_set_block_cache_capacity(int options, int capacity, PointerByReference error);
+    public static native void leveldb_options_set_write_buffer(int options, int writeBuffer, PointerByReference error);
+    public static native void leveldb_options_set_open_files_cache_capacity(int options, int capacity, PointerByReference error);
+    public static native void leveldb_options_set_bloom_filter(int options, int bitsPerKey, PointerByReference error);
+    public static native void leveldb_options_set_compaction_table_size(int options, int size, PointerByReference error);
+    public static native void leveldb_options_set_disable_seeks_compaction(int options, int disable, PointerByReference error);
+    public static native void leveldb_options_set_no_sync(int options, int noSync, PointerByReference error);
+    public static native int leveldb_open(byte[] path, int options, PointerByReference error);
+    public static native void leveldb_close(int db, PointerByReference error);
+    public static native void leveldb_shrink(int db, PointerByReference error);
+    public static native void leveldb_shrink_file(byte[] path, PointerByReference error);
+    public static native int leveldb_iterator_create(int db, PointerByReference error);
+    public static native int leveldb_iterator_create_range(int db, byte[] start, int startSize, byte[] limit, int limitSize, PointerByReference error);
+    public static native int leveldb_iterator_create_prefix(int db, byte[] prefix, int prefixSize, PointerByReference error);
+    public static native void leveldb_iterator_destroy(int iterator, PointerByReference error);
+    public static native int leveldb_iterator_next(int iterator, PointerByReference error);
+    public static native int leveldb_iterator_next_batch(int iterator, Pointer buffer, int bufferSize, PointerByReference error);
+    public static native int leveldb_iterator_next_batch_keys(int iterator, Pointer buffer, int bufferSize, PointerByReference error);
+    public static native void leveldb_iterator_seek_to_first(int iterator, PointerByReference error);
+    public static native void leveldb_iterator_seek(int iterator, byte[] key, int keySize, PointerByReference error);
+    public static native Pointer leveldb_iterator_key(int iterator, PointerByReference size, PointerByReference error);
+    public static native Pointer leveldb_iterator_value(int iterator, PointerByReference size, PointerByReference error);
+    public static native Pointer leveldb_get(int db, Pointer key, int keySize, PointerByReference valueSize, PointerByReference error);
+    public static native int leveldb_get_into(int db, Pointer key, int keySize, Pointer buffer, int bufferSize, PointerByReference error);
+    public static native Pointer leveldb_get_prefix(int db, byte[] prefix, int prefixSize, IntByReference size, PointerByReference error);
+    public static native int leveldb_has(int db, Pointer key, int keySize, PointerByReference error);
+    public static native void leveldb_put(int db, Pointer key, int keySize, Pointer value, int valueSize, PointerByReference error);
+    public static native void leveldb_delete(int db, Pointer key, int keySize, PointerByReference error);
+    public static native void leveldb_repair(byte[] path, PointerByReference error);
+    public static native int leveldb_snapshot_create(int db, PointerByReference error);
+    public static native void leveldb_snapshot_release(int snapshot, PointerByReference error);
+    public static native int leveldb_writebatch_create();
+    public static native void leveldb_writebatch_destroy(int batch);
+    public static native void leveldb_writebatch_put(int batch, Pointer key, int keySize, Pointer value, int valueSize, PointerByReference error);
+    public static native void leveldb_writebatch_delete(int batch, Pointer key, int keySize, PointerByReference error);
+    public static native void leveldb_writebatch_append(int batch, byte[] data, int size, PointerByReference error);
+    public static native void leveldb_writebatch_clear(int batch, PointerByReference error);
+    public static native void leveldb_write(int db, int batch, PointerByReference error);
 
 }
@@ -1,36 +1,72 @@
 package nl.itslars.kosmos.leveldb;
 
 import com.sun.jna.Memory;
+import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-public class LevelDB implements AutoCloseable {
+/**
+ * A LevelDB database, backed by the native goleveldb bridge. Reads, writes and iterators may be used from multiple
+ * threads at the same time. A single {@link Iterator}, {@link WriteBatch} or {@link Options} instance is not thread
+ * safe, and {@link #shrink()} and {@link #close()} may not run concurrently with other calls on the same database.
+ */
+public class LevelDB implements AutoCloseable, LevelDBReader {
 
-    private int id;
+    // Per-thread native buffers for keys and values, so reads and writes do not allocate native memory per call
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
-    private LevelDB(int id) {
+    private volatile int id;
+
+    private LevelDB(int id, PointerByReference error) {
+        checkError(error);
         if (id == -1) {
-            checkError();
             throw new IllegalArgumentException("Invalid id");
         }
         this.id = id;
-        checkError();
     }
 
-    private static void checkError() {
-        String s = GoLevelDB.leveldb_error();
-        if (s != null && !s.isEmpty()) {
-            throw new RuntimeException(s);
+    /**
+     * Throws the error of a native call, if it failed. Every native call reports its own error, so calls from
+     * different threads never observe each other's errors.
+     * @param error The error reference that was passed to the native call
+     */
+    private static void checkError(PointerByReference error) {
+        Pointer message = error.getValue();
+        if (message == null) {
+            return;
+        }
+        String s = message.getString(0);
+        GoLevelDB.leveldb_free(message);
+        throw new RuntimeException(s);
+    }
+
+    /**
+     * Retrieves the native address of the position of the given direct buffer
+     * @param buffer The buffer
+     * @return The pointer to the first remaining byte
+     */
+    private static Pointer address(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
         }
+        return Native.getDirectBufferPointer(buffer).share(buffer.position());
     }
 
     public static void shrink(String path) {
         if (path == null) {
             throw new IllegalArgumentException("Path cannot be null");
         }
-        GoLevelDB.leveldb_shrink_file(path.getBytes(StandardCharsets.UTF_8));
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_shrink_file(path.getBytes(StandardCharsets.UTF_8), error);
+        checkError(error);
     }
 
     public static LevelDB open(String path) {
@@ -41,100 +77,358 @@ public class LevelDB implements AutoCloseable {
         if (path == null) {
             throw new IllegalArgumentException("Path cannot be null");
         }
-        return new LevelDB(GoLevelDB.leveldb_open(path.getBytes(StandardCharsets.UTF_8), options == null ? -1 : options.id));
+        PointerByReference error = new PointerByReference();
+        int id = GoLevelDB.leveldb_open(path.getBytes(StandardCharsets.UTF_8), options == null ? -1 : options.id, error);
+        return new LevelDB(id, error);
     }
 
     public void close() {
         if (id == -1) {
             return;
         }
-        GoLevelDB.leveldb_close(id);
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_close(id, error);
         id = -1;
-        checkError();
+        checkError(error);
     }
 
     public void shrink() {
         if (id == -1) {
             return;
         }
-        GoLevelDB.leveldb_shrink(id);
-        checkError();
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_shrink(id, error);
+        checkError(error);
     }
 
     public void put(byte[] key, byte[] value) {
         if (id == -1) {
             throw new IllegalStateException("Database is closed");
         }
-        Memory keyMem = new Memory(Math.max(key.length, 1));
-        if (key.length > 0) {
-            keyMem.write(0, key, 0, key.length);
-        }
-        Memory valueMem = new Memory(Math.max(value.length, 1));
-        if (value.length > 0) {
-            valueMem.write(0, value, 0, value.length);
+        Scratch scratch = SCRATCH.get();
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_put(id, scratch.key(key), key.length, scratch.value(value), value.length, error);
+        checkError(error);
+    }
+
+    /**
+     * Stores the remaining bytes of the given value under the remaining bytes of the given key, without copying them.
+     * The positions of the buffers are not changed.
+     * @param key The key, a direct buffer
+     * @param value The value, a direct buffer
+     */
+    public void put(ByteBuffer key, ByteBuffer value) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
         }
-        GoLevelDB.leveldb_put(id, keyMem, key.length, valueMem, value.length);
-        checkError();
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_put(id, address(key), key.remaining(), address(value), value.remaining(), error);
+        checkError(error);
     }
 
     public void delete(byte[] key) {
         if (id == -1) {
             throw new IllegalStateException("Database is closed");
         }
-        Memory keyMem = new Memory(key.length);
-        keyMem.write(0, key, 0, key.length);
-        GoLevelDB.leveldb_delete(id, keyMem, key.length);
-        checkError();
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_delete(id, SCRATCH.get().key(key), key.length, error);
+        checkError(error);
+    }
+
+    /**
+     * Deletes the entry with the remaining bytes of the given key. The position of the buffer is not changed.
+     * @param key The key, a direct buffer
+     */
+    public void delete(ByteBuffer key) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_delete(id, address(key), key.remaining(), error);
+        checkError(error);
     }
 
     public byte[] get(byte[] key) {
         if (id == -1) {
             throw new IllegalStateException("Database is closed");
         }
-        Memory keyMem = new Memory(key.length);
-        keyMem.write(0, key, 0, key.length);
-        PointerByReference valueSize = new PointerByReference();
-        Pointer value = GoLevelDB.leveldb_get(id, keyMem, key.length, valueSize);
-        if (value == null) {
-            return null;
+        return getValue(id, key);
+    }
+
+    /**
+     * Copies the value of the given key into a native buffer owned by the caller
+     * @param key The key
+     * @param buffer The buffer to copy the value into
+     * @param bufferSize The size of the buffer
+     * @return The size of the value, or -1 if the key does not exist. If this is larger than the buffer size, only
+     * the first bufferSize bytes were copied.
+     */
+    public int get(byte[] key, Pointer buffer, int bufferSize) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return getValueInto(id, SCRATCH.get().key(key), key.length, buffer, bufferSize);
+    }
+
+    /**
+     * Copies the value of the remaining bytes of the given key into the remaining space of the given buffer, without
+     * intermediate copies. The positions of the buffers are not changed.
+     * @param key The key, a direct buffer
+     * @param value The buffer to copy the value into, a direct buffer
+     * @return The size of the value, or -1 if the key does not exist. If this is larger than the remaining space of
+     * the value buffer, only the part that fits was copied.
+     */
+    public int get(ByteBuffer key, ByteBuffer value) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
         }
-        byte[] valueBytes = value.getByteArray(0, valueSize.getPointer().getInt(0));
-        GoLevelDB.leveldb_free(value);
-        if (valueBytes.length == 0) {
-            checkError();
+        return getValueInto(id, address(key), key.remaining(), address(value), value.remaining());
+    }
+
+    /**
+     * Retrieves all entries whose key starts with the given prefix, in key order, using a single native call
+     * @param prefix The key prefix
+     * @return The list of entries
+     */
+    public List<Entry> getPrefix(byte[] prefix) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
         }
-        return valueBytes;
+        return getEntries(id, prefix);
     }
 
     public boolean has(byte[] key) {
         if (id == -1) {
             throw new IllegalStateException("Database is closed");
         }
-        Memory keyMem = new Memory(key.length);
-        keyMem.write(0, key, 0, key.length);
-        int i = GoLevelDB.leveldb_has(id, keyMem, key.length);
-        return i == 1;
+        return hasKey(id, SCRATCH.get().key(key), key.length);
+    }
+
+    /**
+     * Checks whether an entry with the remaining bytes of the given key exists. The position of the buffer is not
+     * changed.
+     * @param key The key, a direct buffer
+     * @return Whether the key exists
+     */
+    public boolean has(ByteBuffer key) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return hasKey(id, address(key), key.remaining());
+    }
+
+    /**
+     * Creates an iterator over all entries whose key starts with the given prefix
+     * @param prefix The key prefix
+     * @return The iterator
+     */
+    public Iterator prefixIterator(byte[] prefix) {
+        return prefixIterator(prefix, 0);
+    }
+
+    /**
+     * Creates a bulk iterator over all entries whose key starts with the given prefix, see {@link #iterator(int)}
+     * @param prefix The key prefix
+     * @param bufferSize The size of the native transfer buffer in bytes, or 0 to fetch entries one by one
+     * @return The iterator
+     */
+    public Iterator prefixIterator(byte[] prefix, int bufferSize) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return createPrefixIterator(id, prefix, bufferSize, false);
+    }
+
+    /**
+     * Creates an iterator over all entries with a key in [start, end)
+     * @param start The first key (inclusive), or null to start at the first entry
+     * @param end The last key (exclusive), or null to end at the last entry
+     * @return The iterator
+     */
+    public Iterator rangeIterator(byte[] start, byte[] end) {
+        return rangeIterator(start, end, 0);
+    }
+
+    /**
+     * Creates a bulk iterator over all entries with a key in [start, end), see {@link #iterator(int)}
+     * @param start The first key (inclusive), or null to start at the first entry
+     * @param end The last key (exclusive), or null to end at the last entry
+     * @param bufferSize The size of the native transfer buffer in bytes, or 0 to fetch entries one by one
+     * @return The iterator
+     */
+    public Iterator rangeIterator(byte[] start, byte[] end, int bufferSize) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return createRangeIterator(id, start, end, bufferSize);
+    }
+
+    /**
+     * Creates a snapshot of the current state of the database. Reads from the snapshot do not see writes that happen
+     * after it was created, so it can be read from one thread while other threads keep writing to the database.
+     * The snapshot should be closed when it is no longer needed, because it keeps old data from being compacted.
+     * @return The snapshot
+     */
+    public Snapshot snapshot() {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        PointerByReference error = new PointerByReference();
+        int snapshotId = GoLevelDB.leveldb_snapshot_create(id, error);
+        return new Snapshot(snapshotId, error);
+    }
+
+    /**
+     * Atomically applies all puts and deletes in the given batch. The batch is not cleared afterwards.
+     * @param batch The write batch
+     */
+    public void write(WriteBatch batch) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        batch.flushRecords();
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_write(id, batch.id, error);
+        checkError(error);
+        batch.written();
     }
 
     public static void repair(String path) {
         if (path == null) {
             throw new IllegalArgumentException("Path cannot be null");
         }
-        GoLevelDB.leveldb_repair(path.getBytes(StandardCharsets.UTF_8));
-        checkError();
+        PointerByReference error = new PointerByReference();
+        GoLevelDB.leveldb_repair(path.getBytes(StandardCharsets.UTF_8), error);
+        checkError(error);
     }
 
     public Iterator iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Creates an iterator that transfers entries in bulk: every native call fills a buffer of the given size with as
+     * many entries as fit, which {@link Iterator#next()} then decodes one by one. Entries larger than the buffer
+     * make it grow.
+     * @param bufferSize The size of the native transfer buffer in bytes
+     * @return The iterator
+     */
+    public Iterator iterator(int bufferSize) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return createIterator(id, bufferSize, false);
+    }
+
+    /**
+     * Creates a bulk iterator that only transfers keys and value lengths, see {@link #iterator(int)}. Calling
+     * {@link Iterator#value()} on it is not allowed, use {@link Iterator#valueLength()} or fetch the values that are
+     * actually needed with {@link #get(byte[])}.
+     * @param bufferSize The size of the native transfer buffer in bytes, must be positive
+     * @return The iterator
+     */
+    public Iterator keyIterator(int bufferSize) {
         if (id == -1) {
             throw new IllegalStateException("Database is closed");
         }
-        return new Iterator(GoLevelDB.leveldb_iterator_create(id));
+        return createIterator(id, bufferSize, true);
+    }
+
+    /**
+     * Creates a bulk iterator over the keys that start with the given prefix, see {@link #keyIterator(int)}
+     * @param prefix The key prefix
+     * @param bufferSize The size of the native transfer buffer in bytes, must be positive
+     * @return The iterator
+     */
+    public Iterator prefixKeyIterator(byte[] prefix, int bufferSize) {
+        if (id == -1) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return createPrefixIterator(id, prefix, bufferSize, true);
+    }
+
+    // The read operations below take the handle of either a database or a snapshot, since the native bridge accepts
+    // both for reads.
+
+    private static byte[] getValue(int handle, byte[] key) {
+        Scratch scratch = SCRATCH.get();
+        Pointer keyMem = scratch.key(key);
+        Memory valueMem = scratch.value(0);
+        int size = getValueInto(handle, keyMem, key.length, valueMem, (int) valueMem.size());
+        while (size > valueMem.size()) {
+            // The value did not fit, so retry with a buffer that is large enough. Another thread may have replaced
+            // the value with a larger one in the meantime, in which case it still does not fit.
+            valueMem = scratch.value(size);
+            size = getValueInto(handle, keyMem, key.length, valueMem, (int) valueMem.size());
+        }
+        if (size == -1) {
+            return null;
+        }
+        return valueMem.getByteArray(0, size);
+    }
+
+    private static int getValueInto(int handle, Pointer key, int keySize, Pointer buffer, int bufferSize) {
+        PointerByReference error = new PointerByReference();
+        int size = GoLevelDB.leveldb_get_into(handle, key, keySize, buffer, bufferSize, error);
+        checkError(error);
+        return size;
+    }
+
+    private static boolean hasKey(int handle, Pointer key, int keySize) {
+        PointerByReference error = new PointerByReference();
+        int i = GoLevelDB.leveldb_has(handle, key, keySize, error);
+        checkError(error);
+        return i == 1;
+    }
+
+    private static List<Entry> getEntries(int handle, byte[] prefix) {
+        IntByReference size = new IntByReference();
+        PointerByReference error = new PointerByReference();
+        Pointer data = GoLevelDB.leveldb_get_prefix(handle, prefix, prefix.length, size, error);
+        checkError(error);
+        List<Entry> entries = new ArrayList<>();
+        if (data == null) {
+            return entries;
+        }
+        ByteBuffer view = data.getByteBuffer(0, size.getValue()).order(ByteOrder.LITTLE_ENDIAN);
+        while (view.hasRemaining()) {
+            byte[] key = new byte[view.getInt()];
+            byte[] value = new byte[view.getInt()];
+            view.get(key);
+            view.get(value);
+            entries.add(new Entry(key, value));
+        }
+        GoLevelDB.leveldb_free(data);
+        return entries;
+    }
+
+    private static Iterator createIterator(int handle, int bufferSize, boolean keysOnly) {
+        PointerByReference error = new PointerByReference();
+        return new Iterator(GoLevelDB.leveldb_iterator_create(handle, error), error, bufferSize, keysOnly);
+    }
+
+    private static Iterator createPrefixIterator(int handle, byte[] prefix, int bufferSize, boolean keysOnly) {
+        if (prefix == null) {
+            throw new IllegalArgumentException("Prefix cannot be null");
+        }
+        PointerByReference error = new PointerByReference();
+        return new Iterator(GoLevelDB.leveldb_iterator_create_prefix(handle, prefix, prefix.length, error), error, bufferSize, keysOnly);
+    }
+
+    private static Iterator createRangeIterator(int handle, byte[] start, byte[] end, int bufferSize) {
+        PointerByReference error = new PointerByReference();
+        return new Iterator(GoLevelDB.leveldb_iterator_create_range(handle,
+                start, start == null ? 0 : start.length, end, end == null ? 0 : end.length, error), error, bufferSize, false);
     }
 
     public static Options createOptions() {
         return new Options(GoLevelDB.leveldb_options_create());
     }
 
+    public static WriteBatch createWriteBatch() {
+        return new WriteBatch(GoLevelDB.leveldb_writebatch_create());
+    }
+
     public enum CompressionType {
         NONE(0),
         SNAPPY(1),
@@ -152,6 +446,28 @@ public class LevelDB implements AutoCloseable {
         }
     }
 
+    /**
+     * A key and value pair, as returned by {@link LevelDB#getPrefix(byte[])}
+     */
+    public static class Entry {
+
+        private final byte[] key;
+        private final byte[] value;
+
+        public Entry(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
     public static class Options implements AutoCloseable {
         private int id;
 
@@ -160,31 +476,127 @@ public class LevelDB implements AutoCloseable {
                 throw new IllegalArgumentException("Invalid id");
             }
             this.id = id;
-            checkError();
         }
 
         public void setCompression(int compression) {
             if (id == -1) {
                 throw new IllegalStateException("Options are closed");
             }
-            GoLevelDB.leveldb_options_set_compression(id, compression);
-            checkError();
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_compression(id, compression, error);
+            checkError(error);
         }
 
         public void setCompressionLevel(int compressionLevel) {
             if (id == -1) {
                 throw new IllegalStateException("Options are closed");
             }
-            GoLevelDB.leveldb_options_set_compression_level(id, compressionLevel);
-            checkError();
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_compression_level(id, compressionLevel, error);
+            checkError(error);
         }
 
         public void setBlockSize(int blockSize) {
             if (id == -1) {
                 throw new IllegalStateException("Options are closed");
             }
-            GoLevelDB.leveldb_options_set_block_size(id, blockSize);
-            checkError();
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_block_size(id, blockSize, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets the capacity of the cache for uncompressed blocks. Defaults to 8 MiB.
+         * @param capacity The capacity in bytes
+         */
+        public void setBlockCacheCapacity(int capacity) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_block_cache_capacity(id, capacity, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets the size of the in-memory table that writes are collected in before they are written to a table file.
+         * A larger buffer speeds up bulk writes, at the cost of memory and recovery time. Defaults to 4 MiB.
+         * @param writeBuffer The size in bytes
+         */
+        public void setWriteBuffer(int writeBuffer) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_write_buffer(id, writeBuffer, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets the amount of table files that are kept open. Defaults to 500.
+         * @param capacity The amount of open files
+         */
+        public void setOpenFilesCacheCapacity(int capacity) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_open_files_cache_capacity(id, capacity, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets a bloom filter for table files, so lookups of keys that do not exist rarely have to read a block.
+         * The filter is only written for tables that are created after opening the database.
+         * @param bitsPerKey The amount of bits per key, 10 is a good default. 0 disables the filter.
+         */
+        public void setBloomFilter(int bitsPerKey) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_bloom_filter(id, bitsPerKey, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets the size limit of table files that are written by compactions. Defaults to 2 MiB.
+         * @param size The size in bytes
+         */
+        public void setCompactionTableSize(int size) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_compaction_table_size(id, size, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets whether compactions that are triggered by seeks are disabled
+         * @param disable Whether seek compactions are disabled
+         */
+        public void setDisableSeeksCompaction(boolean disable) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_disable_seeks_compaction(id, disable ? 1 : 0, error);
+            checkError(error);
+        }
+
+        /**
+         * Sets whether writes skip syncing the journal to disk. This makes writes much faster, but writes that
+         * happened shortly before a crash may be lost.
+         * @param noSync Whether syncing is disabled
+         */
+        public void setNoSync(boolean noSync) {
+            if (id == -1) {
+                throw new IllegalStateException("Options are closed");
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_options_set_no_sync(id, noSync ? 1 : 0, error);
+            checkError(error);
         }
 
         public void close() {
@@ -193,7 +605,124 @@ public class LevelDB implements AutoCloseable {
             }
             GoLevelDB.leveldb_options_destroy(id);
             id = -1;
-            checkError();
+        }
+    }
+
+    /**
+     * A frozen view of a database, see {@link LevelDB#snapshot()}. A snapshot may be read from multiple threads.
+     */
+    public static class Snapshot implements AutoCloseable, LevelDBReader {
+
+        private volatile int id;
+
+        private Snapshot(int id, PointerByReference error) {
+            checkError(error);
+            if (id == -1) {
+                throw new IllegalArgumentException("Invalid id");
+            }
+            this.id = id;
+        }
+
+        public byte[] get(byte[] key) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return getValue(id, key);
+        }
+
+        public int get(byte[] key, Pointer buffer, int bufferSize) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return getValueInto(id, SCRATCH.get().key(key), key.length, buffer, bufferSize);
+        }
+
+        public int get(ByteBuffer key, ByteBuffer value) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return getValueInto(id, address(key), key.remaining(), address(value), value.remaining());
+        }
+
+        public List<Entry> getPrefix(byte[] prefix) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return getEntries(id, prefix);
+        }
+
+        public boolean has(byte[] key) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return hasKey(id, SCRATCH.get().key(key), key.length);
+        }
+
+        public boolean has(ByteBuffer key) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return hasKey(id, address(key), key.remaining());
+        }
+
+        public Iterator iterator() {
+            return iterator(0);
+        }
+
+        public Iterator iterator(int bufferSize) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return createIterator(id, bufferSize, false);
+        }
+
+        public Iterator keyIterator(int bufferSize) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return createIterator(id, bufferSize, true);
+        }
+
+        public Iterator prefixIterator(byte[] prefix) {
+            return prefixIterator(prefix, 0);
+        }
+
+        public Iterator prefixIterator(byte[] prefix, int bufferSize) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return createPrefixIterator(id, prefix, bufferSize, false);
+        }
+
+        public Iterator prefixKeyIterator(byte[] prefix, int bufferSize) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return createPrefixIterator(id, prefix, bufferSize, true);
+        }
+
+        public Iterator rangeIterator(byte[] start, byte[] end) {
+            return rangeIterator(start, end, 0);
+        }
+
+        public Iterator rangeIterator(byte[] start, byte[] end, int bufferSize) {
+            if (id == -1) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return createRangeIterator(id, start, end, bufferSize);
+        }
+
+        /**
+         * Releases the snapshot. Iterators that were created from the snapshot remain usable until they are closed.
+         */
+        public void close() {
+            if (id == -1) {
+                return;
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_snapshot_release(id, error);
+            id = -1;
+            checkError(error);
         }
     }
 
@@ -201,36 +730,108 @@ public class LevelDB implements AutoCloseable {
 
         private int id;
 
-        private Iterator(int id) {
+        // Bulk mode: the native transfer buffer and a view on it, or null if entries are fetched one by one
+        private Memory buffer;
+        private ByteBuffer view;
+        // The amount of entries in the buffer that were not decoded yet
+        private int remaining;
+        // The current entry in bulk mode. The value is only copied when it is requested.
+        private byte[] currentKey;
+        private int currentValueOffset;
+        private int currentValueLength;
+        // Whether only keys and value lengths are transferred, see LevelDB#keyIterator(int)
+        private final boolean keysOnly;
+
+        private Iterator(int id, PointerByReference error, int bufferSize, boolean keysOnly) {
+            checkError(error);
             if (id == -1) {
                 throw new IllegalArgumentException("Invalid id");
             }
+            if (bufferSize < 0 || (keysOnly && bufferSize == 0)) {
+                GoLevelDB.leveldb_iterator_destroy(id, new PointerByReference());
+                throw new IllegalArgumentException(keysOnly ? "Key iterators need a buffer" : "Buffer size cannot be negative");
+            }
             this.id = id;
-            checkError();
+            this.keysOnly = keysOnly;
+            if (bufferSize > 0) {
+                allocateBuffer(bufferSize);
+            }
         }
 
         public boolean next() {
             if (id == -1) {
                 throw new IllegalStateException("Iterator is closed");
             }
-            int i = GoLevelDB.leveldb_iterator_next(id);
-            checkError();
-            return i == 1;
+            if (buffer == null) {
+                PointerByReference error = new PointerByReference();
+                int i = GoLevelDB.leveldb_iterator_next(id, error);
+                checkError(error);
+                return i == 1;
+            }
+            if (remaining == 0 && !fillBuffer()) {
+                currentKey = null;
+                return false;
+            }
+            // Decode the next entry: key size, value size, key, value (unless only keys are transferred)
+            int keySize = view.getInt();
+            int valueSize = view.getInt();
+            currentKey = new byte[keySize];
+            view.get(currentKey);
+            currentValueOffset = view.position();
+            currentValueLength = valueSize;
+            if (!keysOnly) {
+                view.position(currentValueOffset + valueSize);
+            }
+            remaining--;
+            return true;
+        }
+
+        /**
+         * Fills the bulk buffer with the next entries, growing it if the next entry does not fit
+         * @return Whether any entries were fetched
+         */
+        private boolean fillBuffer() {
+            int count = nextBatch();
+            if (count < 0) {
+                allocateBuffer(Math.max(-count, (int) buffer.size() * 2));
+                count = nextBatch();
+            }
+            view.clear();
+            remaining = count;
+            return count > 0;
+        }
+
+        private int nextBatch() {
+            PointerByReference error = new PointerByReference();
+            int count = keysOnly
+                    ? GoLevelDB.leveldb_iterator_next_batch_keys(id, buffer, (int) buffer.size(), error)
+                    : GoLevelDB.leveldb_iterator_next_batch(id, buffer, (int) buffer.size(), error);
+            checkError(error);
+            return count;
+        }
+
+        private void allocateBuffer(int size) {
+            buffer = new Memory(size);
+            view = buffer.getByteBuffer(0, size).order(ByteOrder.LITTLE_ENDIAN);
+            remaining = 0;
         }
 
         public byte[] key() {
             if (id == -1) {
                 throw new IllegalStateException("Iterator is closed");
             }
+            if (buffer != null) {
+                return currentKey;
+            }
             PointerByReference size = new PointerByReference();
-            Pointer key = GoLevelDB.leveldb_iterator_key(id, size);
-            checkError();
+            PointerByReference error = new PointerByReference();
+            Pointer key = GoLevelDB.leveldb_iterator_key(id, size, error);
+            checkError(error);
             if (key == null) {
                 return null;
             }
             byte[] keyBytes = key.getByteArray(0, size.getPointer().getInt(0));
             GoLevelDB.leveldb_free(key);
-            checkError();
             return keyBytes;
         }
 
@@ -238,35 +839,301 @@ public class LevelDB implements AutoCloseable {
             if (id == -1) {
                 throw new IllegalStateException("Iterator is closed");
             }
+            if (keysOnly) {
+                throw new IllegalStateException("Key iterators do not fetch values");
+            }
+            if (buffer != null) {
+                if (currentKey == null) {
+                    return null;
+                }
+                byte[] valueBytes = new byte[currentValueLength];
+                ByteBuffer duplicate = view.duplicate();
+                duplicate.position(currentValueOffset);
+                duplicate.get(valueBytes);
+                return valueBytes;
+            }
             PointerByReference size = new PointerByReference();
-            Pointer value = GoLevelDB.leveldb_iterator_value(id, size);
-            checkError();
+            PointerByReference error = new PointerByReference();
+            Pointer value = GoLevelDB.leveldb_iterator_value(id, size, error);
+            checkError(error);
             if (value == null) {
                 return null;
             }
             byte[] valueBytes = value.getByteArray(0, size.getPointer().getInt(0));
             GoLevelDB.leveldb_free(value);
-            checkError();
             return valueBytes;
         }
 
+        /**
+         * Retrieves the size of the value of the current entry. In bulk mode, this does not copy the value.
+         * @return The value size in bytes, or -1 if there is no current entry
+         */
+        public int valueLength() {
+            if (id == -1) {
+                throw new IllegalStateException("Iterator is closed");
+            }
+            if (buffer != null) {
+                return currentKey == null ? -1 : currentValueLength;
+            }
+            byte[] value = value();
+            return value == null ? -1 : value.length;
+        }
+
+        /**
+         * Positions the iterator before the first entry, so the next call to {@link #next()} returns the first entry
+         */
         public void seekToFirst() {
             if (id == -1) {
                 throw new IllegalStateException("Iterator is closed");
             }
-            GoLevelDB.leveldb_iterator_seek_to_first(id);
-            checkError();
+            remaining = 0;
+            currentKey = null;
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_iterator_seek_to_first(id, error);
+            checkError(error);
+        }
+
+        /**
+         * Positions the iterator before the first entry with a key equal to or greater than the given key, so the
+         * next call to {@link #next()} returns that entry
+         * @param key The key to seek to
+         */
+        public void seek(byte[] key) {
+            if (id == -1) {
+                throw new IllegalStateException("Iterator is closed");
+            }
+            remaining = 0;
+            currentKey = null;
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_iterator_seek(id, key, key.length, error);
+            checkError(error);
         }
 
         public void close() {
             if (id == -1) {
                 return;
             }
-            GoLevelDB.leveldb_iterator_destroy(id);
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_iterator_destroy(id, error);
             id = -1;
-            checkError();
+            buffer = null;
+            view = null;
+            checkError(error);
+        }
+
+    }
+
+    /**
+     * A set of puts and deletes that is applied to the database in one atomic write, see {@link LevelDB#write(WriteBatch)}.
+     * Records are packed on the Java side and handed to the native batch in large chunks, so adding a record does
+     * not cost a native call.
+     */
+    public static class WriteBatch implements AutoCloseable {
+
+        // The amount of packed record bytes after which they are handed to the native batch
+        private static final int NATIVE_FLUSH_SIZE = 1024 * 1024;
+
+        private int id;
+        // Packed records that have not been handed to the native batch yet
+        private byte[] records = new byte[8192];
+        private int recordsSize;
+        // The amount of records and the total key and value size in this batch
+        private int count;
+        private long byteSize;
+        // Whether any records were handed to the native batch since it was created or cleared
+        private boolean flushed;
+        // The actions to run once the records of this batch are written
+        private List<Runnable> writeListeners = new ArrayList<>();
+
+        private WriteBatch(int id) {
+            if (id == -1) {
+                throw new IllegalArgumentException("Invalid id");
+            }
+            this.id = id;
+        }
+
+        public void put(byte[] key, byte[] value) {
+            if (id == -1) {
+                throw new IllegalStateException("Write batch is closed");
+            }
+            ensureCapacity(9 + key.length + value.length);
+            records[recordsSize++] = 1;
+            writeRecordBytes(key);
+            writeRecordBytes(value);
+            count++;
+            byteSize += key.length + value.length;
+            if (recordsSize >= NATIVE_FLUSH_SIZE) {
+                flushRecords();
+            }
+        }
+
+        public void delete(byte[] key) {
+            if (id == -1) {
+                throw new IllegalStateException("Write batch is closed");
+            }
+            ensureCapacity(5 + key.length);
+            records[recordsSize++] = 0;
+            writeRecordBytes(key);
+            count++;
+            byteSize += key.length;
+            if (recordsSize >= NATIVE_FLUSH_SIZE) {
+                flushRecords();
+            }
         }
 
+        /**
+         * Retrieves the amount of puts and deletes in this batch
+         * @return The record count
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Retrieves the total size of all keys and values in this batch
+         * @return The size in bytes
+         */
+        public long getByteSize() {
+            return byteSize;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        /**
+         * Adds an action that runs once the records of this batch are written by {@link LevelDB#write(WriteBatch)},
+         * e.g. to mark the saved objects as unchanged. The action is dropped if the batch is cleared or closed before
+         * it is written, or if the write fails.
+         * @param listener The action
+         */
+        public void onWrite(Runnable listener) {
+            if (id == -1) {
+                throw new IllegalStateException("Write batch is closed");
+            }
+            writeListeners.add(listener);
+        }
+
+        /**
+         * Adds all puts and deletes of the other batch to the end of this batch, along with its write actions. Only the
+         * records that the other batch still holds itself can be copied, so this is not possible once it handed records
+         * to its native batch, which happens when it grows beyond a megabyte.
+         * @param other The other batch, which is not changed
+         * @return Whether the records were added. If not, the other batch should be written separately.
+         */
+        public boolean append(WriteBatch other) {
+            if (id == -1 || other.id == -1) {
+                throw new IllegalStateException("Write batch is closed");
+            }
+            if (other.flushed) {
+                return false;
+            }
+            ensureCapacity(other.recordsSize);
+            System.arraycopy(other.records, 0, records, recordsSize, other.recordsSize);
+            recordsSize += other.recordsSize;
+            count += other.count;
+            byteSize += other.byteSize;
+            writeListeners.addAll(other.writeListeners);
+            if (recordsSize >= NATIVE_FLUSH_SIZE) {
+                flushRecords();
+            }
+            return true;
+        }
+
+        public void clear() {
+            if (id == -1) {
+                throw new IllegalStateException("Write batch is closed");
+            }
+            recordsSize = 0;
+            count = 0;
+            byteSize = 0;
+            flushed = false;
+            writeListeners.clear();
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_writebatch_clear(id, error);
+            checkError(error);
+        }
+
+        public void close() {
+            if (id == -1) {
+                return;
+            }
+            GoLevelDB.leveldb_writebatch_destroy(id);
+            id = -1;
+            records = null;
+            writeListeners = null;
+        }
+
+        /**
+         * Runs the write actions, after the records of this batch were written. They only run once, even if the batch
+         * is written again.
+         */
+        private void written() {
+            List<Runnable> listeners = writeListeners;
+            writeListeners = new ArrayList<>();
+            listeners.forEach(Runnable::run);
+        }
+
+        private void flushRecords() {
+            if (id == -1) {
+                throw new IllegalStateException("Write batch is closed");
+            }
+            if (recordsSize == 0) {
+                return;
+            }
+            PointerByReference error = new PointerByReference();
+            GoLevelDB.leveldb_writebatch_append(id, records, recordsSize, error);
+            recordsSize = 0;
+            flushed = true;
+            checkError(error);
+        }
+
+        private void writeRecordBytes(byte[] bytes) {
+            int length = bytes.length;
+            records[recordsSize++] = (byte) length;
+            records[recordsSize++] = (byte) (length >>> 8);
+            records[recordsSize++] = (byte) (length >>> 16);
+            records[recordsSize++] = (byte) (length >>> 24);
+            System.arraycopy(bytes, 0, records, recordsSize, length);
+            recordsSize += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (recordsSize + extra > records.length) {
+                records = Arrays.copyOf(records, Math.max(records.length * 2, recordsSize + extra));
+            }
+        }
+    }
+
+    /**
+     * Reusable native buffers of a single thread. The buffers grow when a larger key or value is passed, and are
+     * reused for all following calls.
+     */
+    private static class Scratch {
+
+        private Memory key = new Memory(256);
+        private Memory value = new Memory(16 * 1024);
+
+        private Pointer key(byte[] bytes) {
+            if (bytes.length > key.size()) {
+                key = new Memory(Math.max(bytes.length, key.size() * 2));
+            }
+            key.write(0, bytes, 0, bytes.length);
+            return key;
+        }
+
+        private Pointer value(byte[] bytes) {
+            Memory memory = value(bytes.length);
+            memory.write(0, bytes, 0, bytes.length);
+            return memory;
+        }
+
+        private Memory value(int size) {
+            if (size > value.size()) {
+                value = new Memory(Math.max(size, value.size() * 2));
+            }
+            return value;
+        }
     }
 
 }
@@ -0,0 +1,41 @@
+package nl.itslars.kosmos.leveldb;
+
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The read operations of a LevelDB storage. Implemented by both {@link LevelDB} itself and its
+ * {@link LevelDB.Snapshot snapshots}, so code that only reads can run on either.
+ */
+public interface LevelDBReader {
+
+    byte[] get(byte[] key);
+
+    int get(byte[] key, Pointer buffer, int bufferSize);
+
+    int get(ByteBuffer key, ByteBuffer value);
+
+    List<LevelDB.Entry> getPrefix(byte[] prefix);
+
+    boolean has(byte[] key);
+
+    boolean has(ByteBuffer key);
+
+    LevelDB.Iterator iterator();
+
+    LevelDB.Iterator iterator(int bufferSize);
+
+    LevelDB.Iterator keyIterator(int bufferSize);
+
+    LevelDB.Iterator prefixIterator(byte[] prefix);
+
+    LevelDB.Iterator prefixIterator(byte[] prefix, int bufferSize);
+
+    LevelDB.Iterator prefixKeyIterator(byte[] prefix, int bufferSize);
+
+    LevelDB.Iterator rangeIterator(byte[] start, byte[] end);
+
+    LevelDB.Iterator rangeIterator(byte[] start, byte[] end, int bufferSize);
+}
@@ -1,7 +1,7 @@
 package nl.itslars.kosmos.objects.entity;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.Setter;
 import nl.itslars.kosmos.exception.InvalidTagTypeException;
 import nl.itslars.kosmos.exception.NoSuchTagException;
 import nl.itslars.mcpenbt.enums.TagType;
@@ -24,7 +24,6 @@ import static nl.itslars.kosmos.util.EntityNBTConstants.*;
  * Nearly every method in this class does not have JavaDocs. I decided this, because it would take me a huge amount
  * of time to document all methods, and it doesn't add that much value. If you want to do this, feel free to do so! :D
  */
-@AllArgsConstructor
 @Getter
 public abstract class Entity {
 
@@ -33,6 +32,24 @@ public abstract class Entity {
     // The Compound Tag that represents this entire entity. All methods (!) directly change or retrieve information
     // from this object.
     private CompoundTag parentCompoundTag;
+    // Whether this entity was created or changed since it was loaded or last saved. Only dirty entities are saved.
+    @Setter
+    private boolean dirty = true;
+
+    public Entity(long worldId, CompoundTag parentCompoundTag) {
+        this.worldId = worldId;
+        this.parentCompoundTag = parentCompoundTag;
+    }
+
+    /**
+     * Retrieves the Compound Tag that represents this entire entity. Since it can be changed directly, the entity is
+     * marked as dirty.
+     * @return The parent {@link CompoundTag}
+     */
+    public CompoundTag getParentCompoundTag() {
+        dirty = true;
+        return parentCompoundTag;
+    }
 
     public List<String> getDefinitions() {
         return getList(ENTITY_NBT_DEFINITIONS, TagType.TAG_STRING);
@@ -510,6 +527,7 @@ public abstract class Entity {
             throw new InvalidTagTypeException(tagType);
         }
         // Edit the parentCompoundTag with the new ListTag
+        dirty = true;
         parentCompoundTag.change(name, new ListTag<>(name, tagType, list.stream().map(function).collect(Collectors.toList())));
     }
 
@@ -559,30 +577,37 @@ public abstract class Entity {
     // These are some setter methods, that set the tag with the given name, and change it in the parentCompoundTag
 
     protected void setByteTag(String name, byte value) {
+        dirty = true;
         parentCompoundTag.change(name, new ByteTag(name, value));
     }
 
     protected void setShortTag(String name, short value) {
+        dirty = true;
         parentCompoundTag.change(name, new ShortTag(name, value));
     }
 
     protected void setIntTag(String name, int value) {
+        dirty = true;
         parentCompoundTag.change(name, new IntTag(name, value));
     }
 
     protected void setLongTag(String name, long value) {
+        dirty = true;
         parentCompoundTag.change(name, new LongTag(name, value));
     }
 
     protected void setFloatTag(String name, float value) {
+        dirty = true;
         parentCompoundTag.change(name, new FloatTag(name, value));
     }
 
     protected void setDoubleTag(String name, double value) {
+        dirty = true;
         parentCompoundTag.change(name, new DoubleTag(name, value));
     }
 
     protected void setStringTag(String name, String value) {
+        dirty = true;
         parentCompoundTag.change(name, new StringTag(name, value));
     }
 }
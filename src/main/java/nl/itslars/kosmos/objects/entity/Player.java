@@ -30,6 +30,8 @@ public class Player extends LivingEntity {
     }
 
     public CompoundTag getAbilities() {
+        // The abilities can be changed directly
+        setDirty(true);
         return (CompoundTag) getNbtTag(PLAYER_NBT_ABILITIES);
     }
 
@@ -2,6 +2,7 @@ package nl.itslars.kosmos.objects.entity;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import nl.itslars.mcpenbt.tags.CompoundTag;
 import nl.itslars.mcpenbt.tags.IntTag;
 import nl.itslars.mcpenbt.tags.StringTag;
@@ -20,12 +21,26 @@ import java.util.Optional;
 public class TileEntity {
 
     private final CompoundTag parent;
+    // Whether this tile entity was changed since it was loaded or last saved
+    @Setter
+    private boolean dirty = false;
+
+    /**
+     * Retrieves the compound tag that represents this tile entity. Since it can be changed directly, the tile entity
+     * is marked as dirty.
+     * @return The parent {@link CompoundTag}
+     */
+    public CompoundTag getParent() {
+        dirty = true;
+        return parent;
+    }
 
     /**
      * Sets the tile entity's x coordinate to the given value
      * @param value The tile entity's x coordinate
      */
     public void setX(int value) {
+        dirty = true;
         parent.change("x", new IntTag("x", value));
     }
 
@@ -45,6 +60,7 @@ public class TileEntity {
      * @param value The tile entity's y coordinate
      */
     public void setY(int value) {
+        dirty = true;
         parent.change("y", new IntTag("y", value));
     }
 
@@ -64,6 +80,7 @@ public class TileEntity {
      * @param value The tile entity's z coordinate
      */
     public void setZ(int value) {
+        dirty = true;
         parent.change("z", new IntTag("z", value));
     }
 
@@ -94,6 +111,7 @@ public class TileEntity {
      * @param value The tile entity's id
      */
     public void setId(String value) {
+        dirty = true;
         parent.change("id", new StringTag("id", value));
     }
 }
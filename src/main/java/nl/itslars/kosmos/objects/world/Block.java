@@ -1,22 +1,17 @@
 package nl.itslars.kosmos.objects.world;
 
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
 import nl.itslars.kosmos.enums.BlockType;
 import nl.itslars.kosmos.objects.entity.TileEntity;
+import nl.itslars.kosmos.util.BlockStateRegistry;
 import nl.itslars.mcpenbt.tags.CompoundTag;
-import nl.itslars.mcpenbt.tags.IntTag;
-import nl.itslars.mcpenbt.tags.StringTag;
-import nl.itslars.mcpenbt.tags.Tag;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Optional;
 
 /**
  * Class used for representing any block in the world.
- * Every block in the world has a unique Block object, and no two coordinates should have the same Block object.
+ * Blocks that are retrieved from a chunk are views on the {@link SubChunk} they are in: they are created when they
+ * are requested, and changing their waterlogged state or tile entity changes the SubChunk. The block state of a view
+ * is the state at the moment it was requested. Blocks that are created with a constructor are not part of any chunk.
  */
 @Getter
 public class Block {
@@ -24,47 +19,129 @@ public class Block {
     // The default block version. I think this changes occasionally, but I honestly have no clue what it does.
     public static final int DEFAULT_BLOCK_VERSION = 17825808;
 
-    // The 'states' compound tag, that represents a lot of information for some blocks, like direction.
-    private final CompoundTag states;
-    // The namespaced ID of this block. For default blocks, this is 'minecraft:*', for custom blocks this may change.
-    private final String name;
-    // The version of this block. By default set to DEFAULT_BLOCK_VERSION
-    private final int version;
-    // Whether the block was water logged or not. Be aware; not every block may be waterlogged.
-    @Setter
-    private boolean waterLogged = false;
+    // The interned block state: the name, 'states' compound tag and version of this block
+    private final BlockState state;
     // Block X, Y and Z
     private final int x;
     private final int y;
     private final int z;
-    // Tile entity associated with this block
-    @Setter
+    // The SubChunk that this block is a view on and its index in the SubChunk, or null if the block is not in a chunk
+    @Getter(AccessLevel.NONE)
+    private SubChunk subChunk;
+    @Getter(AccessLevel.NONE)
+    private int index;
+    // Whether the block was water logged or not, if the block is not in a chunk
+    private boolean waterLogged = false;
+    // Tile entity associated with this block, if the block is not in a chunk
     private TileEntity tileEntity;
 
-    public Block(CompoundTag states, String name, int version, int x, int y, int z) {
-        this.states = states;
-        this.name = name;
-        this.version = version;
+    public Block(BlockState state, int x, int y, int z) {
+        this.state = state;
         this.x = x;
         this.y = y;
         this.z = z;
     }
 
+    public Block(CompoundTag states, String name, int version, int x, int y, int z) {
+        this(BlockStateRegistry.get(name, states, version), x, y, z);
+    }
+
     public Block(String name, int x, int y, int z) {
-        this(new CompoundTag("states", new ArrayList<>()), name, DEFAULT_BLOCK_VERSION, x, y, z);
+        this(BlockStateRegistry.get(name), x, y, z);
     }
 
     public Block(BlockType blockType, int x, int y, int z) {
         this(blockType.getNameSpacedId(), x, y, z);
     }
 
+    /**
+     * Creates a block that is a view on the given SubChunk
+     * @param subChunk The SubChunk
+     * @param index The block storage index of the block in the SubChunk
+     * @param state The block state, from the palette of the SubChunk
+     * @param x The X coordinate of the block
+     * @param y The Y coordinate of the block
+     * @param z The Z coordinate of the block
+     * @return The resulting Block object.
+     */
+    static Block view(SubChunk subChunk, int index, BlockState state, int x, int y, int z) {
+        Block block = new Block(state, x, y, z);
+        block.subChunk = subChunk;
+        block.index = index;
+        return block;
+    }
+
+    /**
+     * Retrieves the 'states' compound tag, that represents a lot of information for some blocks, like direction.
+     * @return The 'states' compound tag
+     */
+    public CompoundTag getStates() {
+        return state.getStates();
+    }
+
+    /**
+     * Retrieves the namespaced ID of this block. For default blocks, this is 'minecraft:*', for custom blocks this may
+     * change.
+     * @return The namespaced ID
+     */
+    public String getName() {
+        return state.getName();
+    }
+
+    /**
+     * Retrieves the version of this block. By default set to DEFAULT_BLOCK_VERSION
+     * @return The block version
+     */
+    public int getVersion() {
+        return state.getVersion();
+    }
+
+    /**
+     * Returns whether the block is waterlogged. Be aware; not every block may be waterlogged.
+     * @return Whether the block is waterlogged
+     */
+    public boolean isWaterLogged() {
+        return subChunk != null ? subChunk.isWaterLogged(index) : waterLogged;
+    }
+
+    /**
+     * Sets whether the block is waterlogged. Be aware; not every block may be waterlogged.
+     * @param waterLogged Whether the block is waterlogged
+     */
+    public void setWaterLogged(boolean waterLogged) {
+        if (subChunk != null) {
+            subChunk.setWaterLogged(index, waterLogged);
+        } else {
+            this.waterLogged = waterLogged;
+        }
+    }
+
+    /**
+     * Retrieves the tile entity associated with this block
+     * @return The tile entity, or null if there is none
+     */
+    public TileEntity getTileEntity() {
+        return subChunk != null ? subChunk.getTileEntity(index) : tileEntity;
+    }
+
+    /**
+     * Sets the tile entity associated with this block
+     * @param tileEntity The tile entity, or null to remove the association
+     */
+    public void setTileEntity(TileEntity tileEntity) {
+        if (subChunk != null) {
+            subChunk.setTileEntity(index, tileEntity);
+        } else {
+            this.tileEntity = tileEntity;
+        }
+    }
+
     /**
      * Serializes this block into a {@link CompoundTag}. Used for creating palettes in the world data.
      * @return The serialized block, represented by a {@link CompoundTag}.
      */
     public CompoundTag serialize() {
-        List<Tag> tags = Arrays.asList(states, new StringTag("name", name), new IntTag("version", version));
-        return new CompoundTag("", tags);
+        return state.toTag();
     }
 
     /**
@@ -76,21 +153,6 @@ public class Block {
      * @return The resulting Block object.
      */
     public static Block deserialize(CompoundTag compoundTag, int x, int y, int z) {
-        Optional<Tag> statesTag = compoundTag.getByName("states");
-        Optional<Tag> nameTag = compoundTag.getByName("name");
-        Optional<Tag> versionTag = compoundTag.getByName("version");
-        if (statesTag.isPresent() && nameTag.isPresent() && versionTag.isPresent()) {
-            CompoundTag states = statesTag.get().getAsCompound();
-            String name = nameTag.get().getAsString().getValue();
-            int version = versionTag.get().getAsInt().getValue();
-            return new Block(states, name, version, x, y, z);
-        }
-        // Older worlds and worlds converted from Java might not have those tags present
-        else if (nameTag.isPresent()) {
-            String name = nameTag.get().getAsString().getValue();
-            return new Block(name, x, y, z);
-        } else {
-            throw new IllegalStateException("Failed to deserialize the block, a parsing error occured.");
-        }
+        return new Block(BlockStateRegistry.get(compoundTag), x, y, z);
     }
 }
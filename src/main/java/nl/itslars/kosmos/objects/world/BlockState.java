@@ -0,0 +1,63 @@
+package nl.itslars.kosmos.objects.world;
+
+import lombok.Getter;
+import nl.itslars.kosmos.util.BlockStateRegistry;
+import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.mcpenbt.tags.IntTag;
+import nl.itslars.mcpenbt.tags.StringTag;
+
+import java.util.Arrays;
+
+/**
+ * Class for representing a block state: the combination of a block name, its 'states' compound tag and its version.
+ * Block states are interned by the {@link BlockStateRegistry}, so every distinct state exists only once and two states
+ * can be compared by reference or by their ID. Block states should not be modified.
+ */
+@Getter
+public class BlockState {
+
+    // The dense ID of this state, assigned by the registry in order of registration
+    private final int id;
+    // The namespaced ID of the block
+    private final String name;
+    // The 'states' compound tag
+    private final CompoundTag states;
+    // The block version
+    private final int version;
+    // The NBT serialization of this state, as it is written into SubChunk palettes
+    private final byte[] serialized;
+    private final int hash;
+
+    public BlockState(int id, String name, CompoundTag states, int version, byte[] serialized) {
+        this.id = id;
+        this.name = name;
+        this.states = states;
+        this.version = version;
+        this.serialized = serialized;
+        this.hash = Arrays.hashCode(serialized);
+    }
+
+    /**
+     * Creates the {@link CompoundTag} that represents this state in a SubChunk palette
+     * @return The palette {@link CompoundTag}
+     */
+    public CompoundTag toTag() {
+        return new CompoundTag("", Arrays.asList(states, new StringTag("name", name), new IntTag("version", version)));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        // States are interned, so equal states are the same object
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name + states.getValue();
+    }
+}
@@ -0,0 +1,262 @@
+package nl.itslars.kosmos.objects.world;
+
+import lombok.Getter;
+import nl.itslars.kosmos.util.PaletteCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class for storing the blocks of a {@link SubChunk}: a palette of interned {@link BlockState} objects, and a
+ * bit-packed array containing the palette index of each of the 4096 block positions.
+ * The indices are packed the same way Minecraft Bedrock stores them. Every 32-bit word contains as many indices as
+ * fit in it, starting at the lowest bits, so loading and saving a block storage is a straight copy of the words.
+ * When the palette grows beyond what the current amount of bits per block can address, the words are repacked with
+ * more bits per block.
+ * A block storage in which all blocks have the same state is uniform. It uses 0 bits per block and has no words, so it
+ * only takes up a few bytes, and it is repacked with more bits per block on the first write of a different state.
+ * A block storage can be shared by multiple SubChunks that have the same blocks, in which case it can not be changed
+ * anymore. A SubChunk copies a shared block storage before it changes it.
+ */
+@Getter
+public class BlockStorage {
+
+    // The amount of blocks in a block storage
+    public static final int SIZE = 4096;
+
+    // The palette; the list of block states
+    private final List<BlockState> palette;
+    // The amount of bits that each palette index takes up
+    private int bitsPerBlock;
+    // The bit-packed palette indices
+    private int[] words;
+    // Whether this block storage is shared by multiple SubChunks, and can not be changed anymore
+    private boolean shared = false;
+
+    /**
+     * Creates a new uniform block storage, in which every block has the given state
+     * @param state The block state
+     */
+    public BlockStorage(BlockState state) {
+        this(new ArrayList<>(Collections.singletonList(state)), 0, new int[0]);
+    }
+
+    /**
+     * Creates a new block storage from the given palette and bit-packed palette indices
+     * @param palette The palette
+     * @param bitsPerBlock The amount of bits that each palette index takes up
+     * @param words The bit-packed palette indices
+     */
+    public BlockStorage(List<BlockState> palette, int bitsPerBlock, int[] words) {
+        if (words.length != getWordCount(bitsPerBlock)) {
+            throw new IllegalArgumentException("Expected " + getWordCount(bitsPerBlock) + " words for " + bitsPerBlock + " bits per block, got " + words.length);
+        }
+        this.palette = palette;
+        this.bitsPerBlock = bitsPerBlock;
+        this.words = words;
+    }
+
+    /**
+     * Calculates the index of the given SubChunk coordinates in a block storage
+     * @param x The x coordinate, ranging from 0-15
+     * @param y The y coordinate, ranging from 0-15
+     * @param z The z coordinate, ranging from 0-15
+     * @return The index
+     */
+    public static int index(int x, int y, int z) {
+        return (x << 8) | (z << 4) | y;
+    }
+
+    /**
+     * Calculates the amount of words that are needed to store all palette indices
+     * @param bitsPerBlock The amount of bits per block
+     * @return The word count
+     */
+    public static int getWordCount(int bitsPerBlock) {
+        return PaletteCodec.getWordCount(bitsPerBlock);
+    }
+
+    /**
+     * Retrieves the palette index of the block at the given index
+     * @param index The block index, see {@link #index(int, int, int)}
+     * @return The palette index
+     */
+    public int get(int index) {
+        if (bitsPerBlock == 0) {
+            return 0;
+        }
+        int blocksPerWord = PaletteCodec.getBlocksPerWord(bitsPerBlock);
+        int shift = (index % blocksPerWord) * bitsPerBlock;
+        return (words[index / blocksPerWord] >>> shift) & ((1 << bitsPerBlock) - 1);
+    }
+
+    /**
+     * Unpacks the palette indices of all blocks into the given array, in the order of {@link #index(int, int, int)}
+     * @param indices The array to write the 4096 palette indices into
+     */
+    public void getIndices(int[] indices) {
+        PaletteCodec.unpack(words, bitsPerBlock, indices);
+    }
+
+    /**
+     * Retrieves the block state of the block at the given index
+     * @param index The block index, see {@link #index(int, int, int)}
+     * @return The block state
+     */
+    public BlockState getState(int index) {
+        return palette.get(get(index));
+    }
+
+    /**
+     * Sets the block state of the block at the given index. If the state is not in the palette yet, it is added.
+     * @param index The block index, see {@link #index(int, int, int)}
+     * @param state The block state
+     */
+    public void setState(int index, BlockState state) {
+        checkNotShared();
+        int paletteIndex = getPaletteIndex(state);
+        if (paletteIndex < 0) {
+            palette.add(state);
+            paletteIndex = palette.size() - 1;
+            // Repack the words if the new palette index does not fit
+            if (paletteIndex >= 1 << bitsPerBlock) {
+                resize(getRequiredBits(palette.size()));
+            }
+        }
+        set(index, paletteIndex);
+    }
+
+    /**
+     * Replaces the block state of a palette entry, which changes the state of all blocks with that palette index.
+     * The palette may contain the same state multiple times afterwards, until it is compacted.
+     * @param paletteIndex The palette index
+     * @param state The new block state
+     */
+    public void setPaletteState(int paletteIndex, BlockState state) {
+        checkNotShared();
+        palette.set(paletteIndex, state);
+    }
+
+    /**
+     * Returns whether all blocks in this block storage have the same state, and it uses 0 bits per block
+     * @return Whether the block storage is uniform
+     */
+    public boolean isUniform() {
+        return bitsPerBlock == 0;
+    }
+
+    /**
+     * Marks this block storage as shared, after which it can not be changed anymore
+     */
+    public void share() {
+        shared = true;
+    }
+
+    /**
+     * Creates a copy of this block storage, that is not shared and can be changed
+     * @return The copy
+     */
+    public BlockStorage copy() {
+        return new BlockStorage(new ArrayList<>(palette), bitsPerBlock, words.clone());
+    }
+
+    private void checkNotShared() {
+        if (shared) {
+            throw new IllegalStateException("This block storage is shared, and should be copied before it is changed");
+        }
+    }
+
+    /**
+     * Retrieves the index of the given state in the palette. Since states are interned, they are compared by reference.
+     * @param state The block state
+     * @return The palette index, or -1 if the state is not in the palette
+     */
+    public int getPaletteIndex(BlockState state) {
+        for (int i = 0; i < palette.size(); i++) {
+            if (palette.get(i) == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the palette index of the block at the given index
+     * @param index The block index, see {@link #index(int, int, int)}
+     * @param paletteIndex The palette index, which should fit in the current amount of bits per block
+     */
+    private void set(int index, int paletteIndex) {
+        // In a uniform block storage, every block already has palette index 0
+        if (bitsPerBlock == 0) {
+            return;
+        }
+        int blocksPerWord = PaletteCodec.getBlocksPerWord(bitsPerBlock);
+        int shift = (index % blocksPerWord) * bitsPerBlock;
+        int mask = ((1 << bitsPerBlock) - 1) << shift;
+        int wordIndex = index / blocksPerWord;
+        words[wordIndex] = (words[wordIndex] & ~mask) | ((paletteIndex << shift) & mask);
+    }
+
+    /**
+     * Repacks all palette indices with the given amount of bits per block
+     * @param newBitsPerBlock The new amount of bits per block
+     */
+    private void resize(int newBitsPerBlock) {
+        int[] indices = new int[SIZE];
+        getIndices(indices);
+        words = PaletteCodec.pack(indices, newBitsPerBlock);
+        bitsPerBlock = newBitsPerBlock;
+    }
+
+    /**
+     * Creates a block storage that contains the same blocks as this one, but without the palette entries that are no
+     * longer used or that contain the same state as an earlier entry, and with the least amount of bits per block. If this storage is already compact, it is returned.
+     * @return The compacted block storage
+     */
+    public BlockStorage compact() {
+        int[] indices = new int[SIZE];
+        getIndices(indices);
+        int[] remap = new int[palette.size()];
+        for (int index : indices) {
+            remap[index] = 1;
+        }
+        List<BlockState> newPalette = new ArrayList<>();
+        for (int i = 0; i < remap.length; i++) {
+            if (remap[i] != 0) {
+                int existing = newPalette.indexOf(palette.get(i));
+                if (existing >= 0) {
+                    remap[i] = existing;
+                } else {
+                    remap[i] = newPalette.size();
+                    newPalette.add(palette.get(i));
+                }
+            } else {
+                remap[i] = -1;
+            }
+        }
+        int newBitsPerBlock = getRequiredBits(newPalette.size());
+        if (newPalette.size() == palette.size() && newBitsPerBlock == bitsPerBlock) {
+            return this;
+        }
+
+        for (int i = 0; i < SIZE; i++) {
+            indices[i] = remap[indices[i]];
+        }
+        return new BlockStorage(newPalette, newBitsPerBlock, PaletteCodec.pack(indices, newBitsPerBlock));
+    }
+
+    /**
+     * Calculates the smallest amount of bits per block that Minecraft Bedrock supports, for the given palette size
+     * @param paletteSize The palette size
+     * @return The amount of bits per block
+     */
+    private static int getRequiredBits(int paletteSize) {
+        for (int bits : PaletteCodec.BITS_PER_BLOCK) {
+            if (1 << bits >= paletteSize) {
+                return bits;
+            }
+        }
+        throw new IllegalStateException("A block storage can not contain more than 65536 block states");
+    }
+}
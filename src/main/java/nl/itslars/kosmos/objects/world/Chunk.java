@@ -6,10 +6,14 @@ import nl.itslars.kosmos.enums.BlockType;
 import nl.itslars.kosmos.enums.Dimension;
 import nl.itslars.kosmos.objects.entity.Entity;
 import nl.itslars.kosmos.objects.entity.TileEntity;
+import nl.itslars.kosmos.util.BlockStateRegistry;
+import nl.itslars.kosmos.util.ChunkRecords;
 import nl.itslars.kosmos.util.Chunks;
 
 import java.util.*;
-import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
@@ -22,6 +26,9 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class Chunk {
 
+    // The block state that new SubChunks are filled with
+    private static final BlockState AIR_STATE = BlockStateRegistry.get(BlockType.AIR.getNameSpacedId());
+
     // The parent WorldData class that this Chunk is stored in.
     private final WorldData world;
     // The X coordinate of the chunk
@@ -30,13 +37,25 @@ public class Chunk {
     private final int chunkZ;
     // The chunk dimension
     private final Dimension dimension;
-    // Terrain loader
-    private final BiConsumer<LevelDB, Chunk> terrainLoader;
+    // Tile entity loader
+    private final Consumer<Chunk> tileEntityLoader;
+    // SubChunk loader, decoding the stored SubChunk at the given height. Returns null if it could not be decoded.
+    private final BiFunction<Chunk, Short, SubChunk> subChunkLoader;
     // Data 2D loader
-    private final BiConsumer<LevelDB, Chunk> data2DLoader;
-
-    private boolean terrainLoaded = false;
+    private final Consumer<Chunk> data2DLoader;
+    // The heights of the SubChunks that are stored in the LevelDB storage, but are not loaded yet
+    private final Set<Short> storedSubChunks;
+    // The heights of the stored SubChunks that could not be decoded. They stay stored, so their records are never
+    // overwritten.
+    private final Set<Short> undecodableSubChunks = new HashSet<>();
+    // The raw LevelDB records that the chunk data is loaded from
+    private final ChunkRecords records;
+
+    private boolean tileEntitiesLoaded = false;
     private boolean data2DLoaded = false;
+    // Whether the tile entities and 2D data were changed since they were loaded or last saved
+    private boolean tileEntitiesDirty = false;
+    private boolean data2DDirty = false;
 
     // The 2d elevation map, that contains the maximum height of each x/z combination, plus 1.
     // TODO: When a chunk has been changed, the elevation should be updated. This is not currently done yet.
@@ -47,20 +66,63 @@ public class Chunk {
     // The set of tile entities inside this chunk
     private final Set<TileEntity> tileEntities = new HashSet<>();
 
-    // The SubChunk map. Each chunk height is mapped to the corresponding SubChunk.
+    // The SubChunk map of all loaded or created SubChunks. Each chunk height is mapped to the corresponding SubChunk.
     private final Map<Short, SubChunk> subChunks = new HashMap<>();
 
     /**
-     * Make sure the terrain is loaded before accessing it.
+     * Make sure the tile entities are loaded before accessing them.
      */
-    private void ensureTerrainLoaded() {
-        if (terrainLoaded) {
+    private void ensureTileEntitiesLoaded() {
+        if (tileEntitiesLoaded) {
             return;
         }
         // Mark as loaded before executing the loader to avoid stack overflow error.
-        terrainLoaded = true;
-        // Load the terrain
-        terrainLoader.accept(world.getWorld().getDb(), this);
+        tileEntitiesLoaded = true;
+        // Load the tile entities. Adding them to the set does not change the chunk.
+        tileEntityLoader.accept(this);
+        tileEntitiesDirty = false;
+    }
+
+    /**
+     * Retrieves the SubChunk at the given height. If it is stored but not loaded yet, only that SubChunk is loaded.
+     *
+     * @param chunkY The height of the SubChunk
+     * @return The SubChunk, or null if there is no SubChunk at that height, or if the stored one could not be decoded
+     */
+    private SubChunk getSubChunk(short chunkY) {
+        SubChunk subChunk = subChunks.get(chunkY);
+        if (subChunk == null && storedSubChunks.contains(chunkY) && !undecodableSubChunks.contains(chunkY)) {
+            subChunk = subChunkLoader.apply(this, chunkY);
+            if (subChunk == null) {
+                // Keep the height stored, so no new SubChunk is created in its place
+                undecodableSubChunks.add(chunkY);
+                return null;
+            }
+            storedSubChunks.remove(chunkY);
+            subChunks.put(chunkY, subChunk);
+            // The chunk grew, so a cache with a memory budget has to estimate its size again
+            world.getChunkCache().updateSize(this);
+        }
+        return subChunk;
+    }
+
+    /**
+     * Make sure all stored SubChunks are loaded before accessing all of them.
+     */
+    private void ensureSubChunksLoaded() {
+        for (Short chunkY : new ArrayList<>(storedSubChunks)) {
+            getSubChunk(chunkY);
+        }
+    }
+
+    /**
+     * Loads all stored SubChunks, tile entities and 2D data at once, instead of when they are first accessed.
+     * Nothing is marked as changed.
+     */
+    void loadAll() {
+        ensureSubChunksLoaded();
+        ensureTileEntitiesLoaded();
+        ensureData2DLoaded();
     }
 
     /**
@@ -72,8 +134,9 @@ public class Chunk {
         }
         // Mark as loaded before executing the loader to avoid stack overflow error.
         data2DLoaded = true;
-        // Load the 2D data
-        data2DLoader.accept(world.getWorld().getDb(), this);
+        // Load the 2D data. Filling the arrays does not change the chunk.
+        data2DLoader.accept(this);
+        data2DDirty = false;
     }
 
     /**
@@ -86,15 +149,15 @@ public class Chunk {
      * @return An {@link Optional} containing the block if present, empty otherwise.
      */
     public Optional<Block> getBlock(int translatedX, int y, int translatedZ) {
-        ensureTerrainLoaded();
         // Get the SubChunk Y
         short chunkY = (short) (y >> 4);
         // If the SubChunk is not present, return an empty optional
-        if (!subChunks.containsKey(chunkY)) {
+        SubChunk subChunk = getSubChunk(chunkY);
+        if (subChunk == null) {
             return Optional.empty();
         }
         // Return the block that is at the given coordinates
-        return Optional.ofNullable(subChunks.get(chunkY).getBlocks()[translatedX][y - (16 * chunkY)][translatedZ]);
+        return Optional.of(subChunk.getBlock(translatedX, y - (16 * chunkY), translatedZ));
     }
 
     /**
@@ -122,18 +185,16 @@ public class Chunk {
      * @return An {@link Optional} containing the resulting block if present, empty otherwise.
      */
     public Optional<Block> setBlock(int translatedX, int y, int translatedZ, String name) {
-        ensureTerrainLoaded();
         // Get the SubChunk Y
         short chunkY = (short) (y >> 4);
         // Make sure all chunks up to and including chunkY are created
         ensureChunkSpace(chunkY);
         // Retrieve the SubChunk
-        SubChunk subChunk = subChunks.get(chunkY);
+        SubChunk subChunk = getSubChunk(chunkY);
         // If the SubChunk was not null, create, set, and return the block
         if (subChunk != null) {
-            Block result = new Block(name, translatedX + 16 * chunkX, y, translatedZ + 16 * chunkZ);
-            subChunk.getBlocks()[translatedX][y - (16 * chunkY)][translatedZ] = result;
-            return Optional.of(result);
+            Block block = new Block(name, translatedX + 16 * chunkX, y, translatedZ + 16 * chunkZ);
+            return Optional.of(subChunk.setBlock(BlockStorage.index(translatedX, y - (16 * chunkY), translatedZ), block));
         }
         return Optional.empty();
     }
@@ -145,15 +206,82 @@ public class Chunk {
      * @param desiredChunkHeight The desired chunk height
      */
     public void ensureChunkSpace(int desiredChunkHeight) {
-        ensureTerrainLoaded();
-        // Loop through all chunk heights. If the SubChunk did not yet exist, create a new SubChunk
+        // Loop through all chunk heights. If the SubChunk did not yet exist, create a new SubChunk.
+        // Stored SubChunks exist already, so they do not have to be loaded. This includes the ones that could not be
+        // decoded, which are left as they are stored.
         for (short currentY = 0; currentY <= Math.min(desiredChunkHeight, 15); currentY++) {
-            if (!subChunks.containsKey(currentY)) {
+            if (!subChunks.containsKey(currentY) && !storedSubChunks.contains(currentY)) {
                 subChunks.put(currentY, createNewSubChunk(currentY));
             }
         }
     }
 
+    /**
+     * Sets all blocks in the given box to the given state. Only the SubChunks that intersect the box are visited, and
+     * only the blocks inside the box. SubChunks that are entirely inside the box are replaced by a uniform SubChunk,
+     * without loading them first. SubChunks are created up to and including the maximum y, like
+     * {@link #ensureChunkSpace(int)} does.
+     *
+     * @param minX  The minimum translated X coordinate, ranging from 0-15
+     * @param minY  The minimum y coordinate
+     * @param minZ  The minimum translated Z coordinate, ranging from 0-15
+     * @param maxX  The maximum translated X coordinate, ranging from 0-15
+     * @param maxY  The maximum y coordinate
+     * @param maxZ  The maximum translated Z coordinate, ranging from 0-15
+     * @param state The block state
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, BlockState state) {
+        ensureChunkSpace(maxY >> 4);
+        boolean entireColumn = minX == 0 && minZ == 0 && maxX == 15 && maxZ == 15;
+        // SubChunk heights are stored as a single byte
+        int minChunkY = Math.max(minY >> 4, Byte.MIN_VALUE);
+        int maxChunkY = Math.min(maxY >> 4, Byte.MAX_VALUE);
+        for (int chunkY = minChunkY; chunkY <= maxChunkY; chunkY++) {
+            int subChunkMinY = Math.max(minY - 16 * chunkY, 0);
+            int subChunkMaxY = Math.min(maxY - 16 * chunkY, 15);
+            SubChunk subChunk;
+            if (entireColumn && subChunkMinY == 0 && subChunkMaxY == 15 && !undecodableSubChunks.contains((short) chunkY)
+                    && storedSubChunks.remove((short) chunkY)) {
+                // The stored blocks are all replaced, so they do not have to be loaded. A SubChunk that could not be
+                // decoded is left as it is stored.
+                subChunk = createNewSubChunk((short) chunkY);
+                subChunks.put((short) chunkY, subChunk);
+            } else {
+                subChunk = getSubChunk((short) chunkY);
+            }
+            if (subChunk != null) {
+                subChunk.fill(minX, subChunkMinY, minZ, maxX, subChunkMaxY, maxZ, state);
+            }
+        }
+    }
+
+    /**
+     * Replaces all blocks in the given box that have one of the source states by the target state. Only the
+     * SubChunks that intersect the box are visited, see {@link SubChunk#replace}. SubChunks are created up to and
+     * including the maximum y, like {@link #ensureChunkSpace(int)} does.
+     *
+     * @param minX   The minimum translated X coordinate, ranging from 0-15
+     * @param minY   The minimum y coordinate
+     * @param minZ   The minimum translated Z coordinate, ranging from 0-15
+     * @param maxX   The maximum translated X coordinate, ranging from 0-15
+     * @param maxY   The maximum y coordinate
+     * @param maxZ   The maximum translated Z coordinate, ranging from 0-15
+     * @param source Whether a block state should be replaced
+     * @param target The state of the replaced blocks
+     */
+    public void replace(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Predicate<BlockState> source, BlockState target) {
+        ensureChunkSpace(maxY >> 4);
+        // SubChunk heights are stored as a single byte
+        int minChunkY = Math.max(minY >> 4, Byte.MIN_VALUE);
+        int maxChunkY = Math.min(maxY >> 4, Byte.MAX_VALUE);
+        for (int chunkY = minChunkY; chunkY <= maxChunkY; chunkY++) {
+            SubChunk subChunk = getSubChunk((short) chunkY);
+            if (subChunk != null) {
+                subChunk.replace(minX, Math.max(minY - 16 * chunkY, 0), minZ, maxX, Math.min(maxY - 16 * chunkY, 15), maxZ, source, target);
+            }
+        }
+    }
+
     /**
      * Creates and initializes a new {@link SubChunk} for the current chunk
      *
@@ -161,38 +289,44 @@ public class Chunk {
      * @return The newly create {@link SubChunk}
      */
     private SubChunk createNewSubChunk(short chunkY) {
-        // Create and fill a new blocks array with air
-        Block[][][] blocks = new Block[16][16][16];
-        for (int x = 0; x < 16; x++) {
-            for (int y = 0; y < 16; y++) {
-                for (int z = 0; z < 16; z++) {
-                    blocks[x][y][z] = new Block(BlockType.AIR, x + 16 * chunkX, y + 16 * chunkY, z + 16 * chunkZ);
-                }
-            }
-        }
-        return new SubChunk(this, chunkY, blocks);
+        // Create a new block storage that is filled with air
+        return new SubChunk(this, chunkY, new BlockStorage(AIR_STATE));
     }
 
     /**
      * Loops through all blocks in the chunk, and applies the function to those blocks.
-     * The block resets to the given function result.
+     * If the function returns a different block than it was given, the block is replaced by the result.
      *
      * @param function The function, returns the new block position
      */
     public void forEachBlock(UnaryOperator<Block> function) {
-        ensureTerrainLoaded();
+        ensureSubChunksLoaded();
         for (SubChunk subChunk : subChunks.values()) {
-            Block[][][] blocks = subChunk.getBlocks();
-            for (int x = 0; x < 16; x++) {
-                for (int y = 0; y < 16; y++) {
-                    for (int z = 0; z < 16; z++) {
-                        blocks[x][y][z] = function.apply(blocks[x][y][z]);
-                    }
+            for (int index = 0; index < BlockStorage.SIZE; index++) {
+                Block block = subChunk.getBlock(index);
+                Block result = function.apply(block);
+                if (result != block) {
+                    subChunk.setBlock(index, result);
                 }
             }
         }
     }
 
+    /**
+     * Estimates the amount of heap memory that this chunk takes up. Only the parts of the chunk that are loaded are
+     * counted, so the estimate grows while SubChunks and tile entities are loaded.
+     *
+     * @return The estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        // The fixed overhead, elevation and biome maps
+        long size = 256 + 16 * 16 * 2 + 16 * 16;
+        for (SubChunk subChunk : subChunks.values()) {
+            size += subChunk.getEstimatedSize();
+        }
+        return size + tileEntities.size() * 256L;
+    }
+
     /**
      * Retrieves the X coordinate of this chunk
      *
@@ -220,7 +354,44 @@ public class Chunk {
      * Saves the chunk to the Minecraft Bedrock LevelDB storage
      */
     public void save() {
-        Chunks.saveChunk(world.getWorld().getDb(), this, terrainLoaded, data2DLoaded);
+        LevelDB db = world.getWorld().getDb();
+        try (LevelDB.WriteBatch batch = LevelDB.createWriteBatch()) {
+            save(batch);
+            db.write(batch);
+        }
+    }
+
+    /**
+     * Adds the records of this chunk to the given write batch, instead of writing them to the LevelDB storage directly.
+     * The chunk is marked as unchanged once the batch is written, so it is saved again if the write fails.
+     *
+     * @param batch The write batch
+     */
+    public void save(LevelDB.WriteBatch batch) {
+        world.checkWritable();
+        boolean saveTileEntities = tileEntitiesDirty || tileEntities.stream().anyMatch(TileEntity::isDirty);
+        Chunks.saveChunk(batch, this, saveTileEntities, data2DDirty);
+        // Everything that was added is the same as the stored chunk, once it is written
+        List<TileEntity> savedTileEntities = new ArrayList<>(tileEntities);
+        List<SubChunk> savedSubChunks = new ArrayList<>(subChunks.values());
+        batch.onWrite(() -> {
+            tileEntitiesDirty = false;
+            data2DDirty = false;
+            savedTileEntities.forEach(tileEntity -> tileEntity.setDirty(false));
+            savedSubChunks.forEach(SubChunk::markSaved);
+        });
+    }
+
+    /**
+     * Checks whether any part of this chunk was changed since it was loaded or last saved, i.e. whether saving it
+     * would write anything
+     *
+     * @return Whether the chunk is dirty
+     */
+    public boolean isDirty() {
+        return tileEntitiesDirty || data2DDirty
+                || tileEntities.stream().anyMatch(TileEntity::isDirty)
+                || subChunks.values().stream().anyMatch(SubChunk::isDirty);
     }
 
     /**
@@ -240,16 +411,8 @@ public class Chunk {
             save();
         }
 
-        // Retrieve the (sub)map containing this chunk, and remove this chunk from that map
-        Map<Integer, Chunk> zs = world.getCachedChunks().get(dimension).get(chunkX);
-        // If chunk is deleted, zs might be null
-        if (zs != null) {
-            zs.remove(chunkZ);
-            // If the new map is empty, remove it entirely from the chunk map
-            if (zs.size() == 0) {
-                world.getCachedChunks().get(dimension).remove(chunkX);
-            }
-        }
+        // Remove this chunk from the cache. If the chunk is deleted, it is not cached anymore.
+        world.getChunkCache().remove(dimension, chunkX, chunkZ);
     }
 
     /**
@@ -275,27 +438,111 @@ public class Chunk {
         return this.dimension;
     }
 
+    /**
+     * Retrieves the elevation map. Since the array can be changed directly, the 2D data is marked as changed.
+     *
+     * @return The elevation map
+     */
     public short[][] getElevation() {
         ensureData2DLoaded();
+        data2DDirty = true;
         return this.elevation;
     }
 
+    /**
+     * Retrieves the biome map. Since the array can be changed directly, the 2D data is marked as changed.
+     *
+     * @return The biome map
+     */
     public byte[][] getBiomes() {
         ensureData2DLoaded();
+        data2DDirty = true;
         return this.biomes;
     }
 
+    /**
+     * Retrieves the elevation at the given in-chunk coordinates, without marking the 2D data as changed
+     *
+     * @param translatedX The translated X coordinate, ranging from 0-15
+     * @param translatedZ The translated Z coordinate, ranging from 0-15
+     * @return The elevation
+     */
+    public short getElevation(int translatedX, int translatedZ) {
+        ensureData2DLoaded();
+        return this.elevation[translatedX][translatedZ];
+    }
+
+    /**
+     * Retrieves the biome at the given in-chunk coordinates, without marking the 2D data as changed
+     *
+     * @param translatedX The translated X coordinate, ranging from 0-15
+     * @param translatedZ The translated Z coordinate, ranging from 0-15
+     * @return The biome
+     */
+    public byte getBiome(int translatedX, int translatedZ) {
+        ensureData2DLoaded();
+        return this.biomes[translatedX][translatedZ];
+    }
+
+    /**
+     * Retrieves the set of tile entities. Since the set can be changed directly, the tile entities are marked as
+     * changed.
+     *
+     * @return The set of tile entities
+     */
     public Set<TileEntity> getTileEntities() {
-        ensureTerrainLoaded();
+        ensureTileEntitiesLoaded();
+        tileEntitiesDirty = true;
+        return this.tileEntities;
+    }
+
+    /**
+     * Retrieves the set of tile entities, without marking them as changed. The set should not be changed.
+     *
+     * @return The set of tile entities
+     */
+    Set<TileEntity> readTileEntities() {
+        ensureTileEntitiesLoaded();
         return this.tileEntities;
     }
 
     public Map<Short, SubChunk> getSubChunks() {
-        ensureTerrainLoaded();
+        ensureSubChunksLoaded();
         return this.subChunks;
     }
 
+    /**
+     * Retrieves the SubChunks that were loaded or created, without loading the other stored SubChunks
+     *
+     * @return The map of loaded SubChunks
+     */
+    public Map<Short, SubChunk> getLoadedSubChunks() {
+        return this.subChunks;
+    }
+
+    /**
+     * Retrieves the heights of the SubChunks that are stored, but are not loaded yet
+     *
+     * @return The set of SubChunk heights
+     */
+    Set<Short> getStoredSubChunks() {
+        return this.storedSubChunks;
+    }
+
+    /**
+     * Retrieves the raw LevelDB records that the data of this chunk is loaded from
+     *
+     * @return The chunk records
+     */
+    public ChunkRecords getRecords() {
+        return this.records;
+    }
+
     public List<Entity> getEntities() {
-        return Collections.unmodifiableList(world.getEntities().stream().filter(entity -> entity.getChunkX() == chunkX && entity.getChunkZ() == chunkZ).collect(Collectors.toList()));
+        List<Entity> entities = world.getEntities();
+        // Other chunks may be loading their entities into the list at the same time
+        synchronized (entities) {
+            return Collections.unmodifiableList(entities.stream().filter(entity -> entity.getChunkX() == chunkX && entity.getChunkZ() == chunkZ).collect(Collectors.toList()));
+        }
     }
 }
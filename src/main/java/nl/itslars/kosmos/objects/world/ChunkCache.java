@@ -0,0 +1,112 @@
+package nl.itslars.kosmos.objects.world;
+
+import nl.itslars.kosmos.enums.Dimension;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Interface for the cache that holds the loaded chunks of a {@link WorldData}.
+ * A cache may evict chunks by itself to stay within a memory budget. Evicted chunks are passed to the eviction
+ * listener, which writes them back to the LevelDB storage if they were changed. Chunks that are pinned are never
+ * evicted, until they are unpinned.
+ * The default implementation is the {@link LruChunkCache}. A different implementation can be set with
+ * {@link WorldData#setChunkCache(ChunkCache)}.
+ */
+public interface ChunkCache {
+
+    /**
+     * Retrieves the cached chunk at the given location, and counts the lookup as a hit or a miss
+     * @param dimension The chunk dimension
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @return The chunk, or null if it is not cached
+     */
+    Chunk get(Dimension dimension, int chunkX, int chunkZ);
+
+    /**
+     * Checks whether the chunk at the given location is cached, without counting the lookup as a hit or a miss
+     * @param dimension The chunk dimension
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @return Whether the chunk is cached
+     */
+    boolean contains(Dimension dimension, int chunkX, int chunkZ);
+
+    /**
+     * Adds a chunk to the cache. Other chunks may be evicted to make room for it.
+     * @param chunk The chunk
+     */
+    void put(Chunk chunk);
+
+    /**
+     * Tells the cache that the given chunk grew, e.g. because one of its SubChunks was loaded. A cache with a memory
+     * budget estimates the size of the chunk again, and may evict other chunks to make room for it.
+     * Nothing happens if the chunk is not cached.
+     * @param chunk The chunk
+     */
+    default void updateSize(Chunk chunk) {
+    }
+
+    /**
+     * Removes the chunk at the given location from the cache, without passing it to the eviction listener
+     * @param dimension The chunk dimension
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @return The removed chunk, or null if it was not cached
+     */
+    Chunk remove(Dimension dimension, int chunkX, int chunkZ);
+
+    /**
+     * Removes all chunks from the cache, without passing them to the eviction listener
+     */
+    void clear();
+
+    /**
+     * Retrieves a copy of all cached chunks
+     * @return The cached chunks
+     */
+    Collection<Chunk> getChunks();
+
+    /**
+     * Retrieves the amount of cached chunks
+     * @return The chunk count
+     */
+    int size();
+
+    /**
+     * Prevents the given chunk from being evicted, until it is unpinned as often as it was pinned
+     * @param chunk The chunk
+     */
+    void pin(Chunk chunk);
+
+    /**
+     * Allows the given chunk to be evicted again, once it is unpinned as often as it was pinned
+     * @param chunk The chunk
+     */
+    void unpin(Chunk chunk);
+
+    /**
+     * Sets the listener that is called with every chunk that the cache evicts
+     * @param listener The eviction listener
+     */
+    void setEvictionListener(Consumer<Chunk> listener);
+
+    /**
+     * Retrieves the amount of lookups that found a cached chunk
+     * @return The hit count
+     */
+    long getHitCount();
+
+    /**
+     * Retrieves the amount of lookups that did not find a cached chunk
+     * @return The miss count
+     */
+    long getMissCount();
+
+    /**
+     * Retrieves the amount of chunks that were evicted
+     * @return The eviction count
+     */
+    long getEvictionCount();
+}
@@ -0,0 +1,33 @@
+package nl.itslars.kosmos.objects.world;
+
+import nl.itslars.kosmos.enums.Dimension;
+
+/**
+ * The location of a chunk, used as the key of the chunk caches
+ */
+final class ChunkKey {
+
+    private final Dimension dimension;
+    private final int chunkX;
+    private final int chunkZ;
+
+    ChunkKey(Dimension dimension, int chunkX, int chunkZ) {
+        this.dimension = dimension;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkKey)) {
+            return false;
+        }
+        ChunkKey key = (ChunkKey) o;
+        return dimension == key.dimension && chunkX == key.chunkX && chunkZ == key.chunkZ;
+    }
+
+    @Override
+    public int hashCode() {
+        return (dimension.ordinal() * 31 + chunkX) * 31 + chunkZ;
+    }
+}
@@ -0,0 +1,133 @@
+package nl.itslars.kosmos.objects.world;
+
+import nl.itslars.kosmos.World;
+import nl.itslars.kosmos.enums.Dimension;
+import nl.itslars.kosmos.leveldb.LevelDB;
+import nl.itslars.kosmos.util.ChunkRecords;
+import nl.itslars.kosmos.util.Chunks;
+import nl.itslars.kosmos.util.LevelChunkTag;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Optional;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator that assembles the chunks of a dimension from a single ordered pass over the LevelDB storage.
+ * All records of a chunk start with the same key prefix, so they are next to each other in key order. The records are
+ * collected while they stream by, and the chunk is created once a record of the next chunk is read. This reads the
+ * storage sequentially, instead of looking up every chunk on its own.
+ * Chunks that are cached are passed as they are. The other chunks are not added to the cache.
+ */
+class ChunkSpliterator extends Spliterators.AbstractSpliterator<Chunk> implements AutoCloseable {
+
+    private final WorldData world;
+    private final Dimension dimension;
+    // The iterator over all records, or null once it is closed
+    private LevelDB.Iterator iterator;
+    // The records of the chunk that is being read, or null if no chunk record was read yet
+    private ChunkRecords records;
+    private int chunkX;
+    private int chunkZ;
+
+    /**
+     * Creates a spliterator over the chunks of the given dimension
+     * @param world The world data
+     * @param dimension The dimension
+     * @param estimatedSize The estimated amount of chunks
+     */
+    ChunkSpliterator(WorldData world, Dimension dimension, long estimatedSize) {
+        super(estimatedSize, ORDERED | DISTINCT | NONNULL);
+        this.world = world;
+        this.dimension = dimension;
+        this.iterator = world.getReader().iterator(World.ITERATOR_BUFFER_SIZE);
+        iterator.seekToFirst();
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Chunk> action) {
+        while (iterator != null) {
+            Chunk chunk;
+            if (iterator.next()) {
+                byte[] key = iterator.key();
+                if (!isChunkRecordKey(key)) {
+                    continue;
+                }
+                int x = getInt(key, 0);
+                int z = getInt(key, 4);
+                if (records != null && x == chunkX && z == chunkZ) {
+                    records.add(key, iterator.value(), dimension);
+                    continue;
+                }
+                // The first record of the next chunk, so the previous chunk is complete
+                chunk = createChunk();
+                records = ChunkRecords.create();
+                chunkX = x;
+                chunkZ = z;
+                records.add(key, iterator.value(), dimension);
+            } else {
+                chunk = createChunk();
+                records = null;
+                close();
+            }
+            if (chunk != null) {
+                action.accept(chunk);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the chunk of the records that were read
+     * @return The chunk, or null if no records were read or the chunk was deleted
+     */
+    private Chunk createChunk() {
+        if (records == null) {
+            return null;
+        }
+        Optional<ChunkPreset> preset = world.getChunkPreset(dimension, chunkX, chunkZ);
+        if (!preset.isPresent()) {
+            return null;
+        }
+        if (world.getChunkCache().contains(dimension, chunkX, chunkZ)) {
+            return world.getChunkCache().get(dimension, chunkX, chunkZ);
+        }
+        // The compressed copy would be outdated if the streamed chunk is changed and saved
+        if (world.getCompressedChunkCache() != null) {
+            world.getCompressedChunkCache().remove(dimension, chunkX, chunkZ);
+        }
+        return Chunks.loadChunk(preset.get(), records);
+    }
+
+    /**
+     * Checks whether the given key is a chunk record in the dimension of this spliterator
+     * @param key The LevelDB key
+     * @return Whether the key is a chunk record
+     */
+    private boolean isChunkRecordKey(byte[] key) {
+        if (!Chunks.isChunkRecordKey(key, dimension)) {
+            return false;
+        }
+        if (dimension != Dimension.OVERWORLD && getInt(key, 8) != dimension.getId()) {
+            return false;
+        }
+        return LevelChunkTag.fromId(key[dimension == Dimension.OVERWORLD ? 8 : 12]) != null;
+    }
+
+    private static int getInt(byte[] key, int offset) {
+        return ByteBuffer.wrap(key, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /**
+     * Closes the iterator, if the stream was not read until the end
+     */
+    @Override
+    public void close() {
+        if (iterator != null) {
+            iterator.close();
+            iterator = null;
+        }
+    }
+}
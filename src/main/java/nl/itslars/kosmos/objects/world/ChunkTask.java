@@ -0,0 +1,74 @@
+package nl.itslars.kosmos.objects.world;
+
+import lombok.RequiredArgsConstructor;
+import nl.itslars.kosmos.leveldb.LevelDB;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Fork-join task that processes a range of chunk presets. The range is split in halves until a single chunk remains,
+ * so idle worker threads can steal the halves that were not started yet.
+ * Every chunk is taken from the caches of its world, or loaded if it was not cached, and passed to the predicate.
+ * If the chunk should be saved and it was changed, it is encoded into its own write batch, which is handed to the
+ * single thread that writes to the LevelDB storage. The chunk is not cached afterwards.
+ * Tasks never complete exceptionally, so a task only completes once all its subtasks did. The first exception is
+ * stored instead, after which no new chunks are started, and the chunk that failed is put back in the chunk cache.
+ */
+@RequiredArgsConstructor
+class ChunkTask extends RecursiveAction {
+
+    private final WorldData world;
+    private final List<ChunkPreset> presets;
+    // The range of presets to process, from inclusive to exclusive
+    private final int from;
+    private final int to;
+    // Returns whether the chunk should be saved
+    private final Predicate<Chunk> predicate;
+    // The write batches of the processed chunks, that are yet to be written
+    private final BlockingQueue<LevelDB.WriteBatch> writeQueue;
+    // The first exception of any task, or null if all chunks were processed so far
+    private final AtomicReference<Throwable> failure;
+
+    @Override
+    protected void compute() {
+        if (to - from > 1) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChunkTask(world, presets, from, middle, predicate, writeQueue, failure),
+                    new ChunkTask(world, presets, middle, to, predicate, writeQueue, failure));
+        } else if (to > from && failure.get() == null) {
+            process(presets.get(from));
+        }
+    }
+
+    /**
+     * Processes the chunk of the given preset
+     * @param preset The chunk preset
+     */
+    private void process(ChunkPreset preset) {
+        Chunk chunk = null;
+        LevelDB.WriteBatch batch = null;
+        try {
+            chunk = world.takeChunk(preset);
+            if (!predicate.test(chunk) || !chunk.isDirty()) {
+                return;
+            }
+            batch = LevelDB.createWriteBatch();
+            chunk.save(batch);
+            // Waits if the writing thread falls behind, so encoded chunks do not pile up
+            writeQueue.put(batch);
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            if (batch != null) {
+                batch.close();
+            }
+            // Keep the chunk, including its changes, like a chunk whose predicate failed in a sequential loop
+            if (chunk != null) {
+                world.getChunkCache().put(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package nl.itslars.kosmos.objects.world;
+
+import lombok.Getter;
+import nl.itslars.kosmos.enums.Dimension;
+import nl.itslars.kosmos.util.ChunkRecords;
+import nl.itslars.kosmos.util.Chunks;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Second-tier chunk cache, that keeps chunks evicted from the {@link ChunkCache} in a compressed form, within a
+ * maximum amount of bytes. The SubChunks that were loaded are compressed with {@link SubChunk#compress()}, and the
+ * record keys that were listed are kept, so restoring a chunk neither lists its keys nor reads and parses its loaded
+ * SubChunks from the LevelDB storage again. Tile entities, 2D data and SubChunks that were not loaded are read from
+ * the LevelDB storage again when they are accessed.
+ * Only chunks that are the same as the stored ones may be added. The methods are thread-safe. Chunks are compressed
+ * and restored outside the lock, so threads only wait for each other to update the entries.
+ */
+public class CompressedChunkCache {
+
+    // The maximum size of all compressed chunks in bytes
+    @Getter
+    private final long maxBytes;
+    // The compressed chunks, ordered from least to most recently added
+    private final Map<ChunkKey, Entry> entries = new LinkedHashMap<>();
+    // The sum of the sizes of all compressed chunks
+    @Getter
+    private long estimatedBytes = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Creates a compressed chunk cache
+     * @param maxBytes The maximum size of all compressed chunks in bytes
+     */
+    public CompressedChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Compresses and adds a chunk. The least recently added chunks are dropped to stay within the maximum size.
+     * @param chunk The chunk, which should not have changes that were not saved
+     */
+    public void put(Chunk chunk) {
+        Entry entry = new Entry(chunk.getRecords());
+        entry.storedSubChunks.addAll(chunk.getStoredSubChunks());
+        for (Map.Entry<Short, SubChunk> subChunk : chunk.getLoadedSubChunks().entrySet()) {
+            byte[] compressed = subChunk.getValue().compress();
+            entry.compressedSubChunks.put(subChunk.getKey(), compressed);
+            entry.storedSubChunks.add(subChunk.getKey());
+            entry.size += compressed.length;
+        }
+        add(new ChunkKey(chunk.getDimension(), chunk.getChunkX(), chunk.getChunkZ()), entry);
+    }
+
+    /**
+     * Adds a compressed chunk, and drops the least recently added chunks to stay within the maximum size
+     * @param key The chunk key
+     * @param entry The compressed chunk
+     */
+    private synchronized void add(ChunkKey key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            estimatedBytes -= previous.size;
+        }
+        estimatedBytes += entry.size;
+
+        // Drop the oldest chunks; they are read from the LevelDB storage again
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (estimatedBytes > maxBytes && iterator.hasNext()) {
+            Entry oldest = iterator.next();
+            iterator.remove();
+            estimatedBytes -= oldest.size;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes the chunk with the given preset, and restores it
+     * @param preset The chunk preset
+     * @return The restored chunk, or null if the chunk is not in this cache
+     */
+    public Chunk take(ChunkPreset preset) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(new ChunkKey(preset.getDimension(), preset.getX(), preset.getZ()));
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            estimatedBytes -= entry.size;
+        }
+        // The entry was removed, so no other thread restores the same chunk
+        return Chunks.restoreChunk(preset, entry.records, entry.compressedSubChunks, entry.storedSubChunks);
+    }
+
+    /**
+     * Removes the chunk at the given location, without restoring it
+     * @param dimension The chunk dimension
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     */
+    public synchronized void remove(Dimension dimension, int chunkX, int chunkZ) {
+        Entry entry = entries.remove(new ChunkKey(dimension, chunkX, chunkZ));
+        if (entry != null) {
+            estimatedBytes -= entry.size;
+        }
+    }
+
+    /**
+     * Removes all chunks
+     */
+    public synchronized void clear() {
+        entries.clear();
+        estimatedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * A compressed chunk: its records, its compressed SubChunks and the heights of all its SubChunks
+     */
+    private static final class Entry {
+
+        // The fixed overhead of an entry and its records, in bytes
+        private static final long OVERHEAD = 512;
+
+        private final ChunkRecords records;
+        private final Map<Short, byte[]> compressedSubChunks = new HashMap<>();
+        private final Set<Short> storedSubChunks = new TreeSet<>();
+        private long size = OVERHEAD;
+
+        private Entry(ChunkRecords records) {
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package nl.itslars.kosmos.objects.world;
+
+import lombok.Getter;
+import nl.itslars.kosmos.enums.Dimension;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Chunk cache that evicts the least recently used chunks when it holds more than a maximum amount of chunks, or when
+ * the estimated size of its chunks exceeds a maximum amount of bytes. Without limits, chunks are only removed when
+ * they are unloaded.
+ * The size of a chunk is estimated with {@link Chunk#getEstimatedSize()} whenever it is added or looked up, and
+ * whenever it reports that it grew, since chunks grow while their SubChunks are loaded.
+ * The cache can be shared by multiple threads. The eviction listener is called after the lock of the cache is
+ * released, so writing evicted chunks does not block other threads that use the cache.
+ */
+public class LruChunkCache implements ChunkCache {
+
+    // The maximum amount of cached chunks, or 0 or lower for no limit
+    @Getter
+    private final int maxChunks;
+    // The maximum estimated size of all cached chunks in bytes, or 0 or lower for no limit
+    @Getter
+    private final long maxBytes;
+    // The cached chunks, ordered from least to most recently used
+    private final Map<ChunkKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // The sum of the estimated sizes of all cached chunks
+    @Getter
+    private long estimatedBytes = 0;
+    // Called outside the lock, so it is read without holding it
+    private volatile Consumer<Chunk> evictionListener = chunk -> {};
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache without limits
+     */
+    public LruChunkCache() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a cache with the given limits
+     * @param maxChunks The maximum amount of cached chunks, or 0 for no limit
+     * @param maxBytes The maximum estimated size of all cached chunks in bytes, or 0 for no limit
+     */
+    public LruChunkCache(int maxChunks, long maxBytes) {
+        this.maxChunks = maxChunks;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Chunk get(Dimension dimension, int chunkX, int chunkZ) {
+        Entry entry;
+        List<Chunk> evicted;
+        synchronized (this) {
+            entry = entries.get(new ChunkKey(dimension, chunkX, chunkZ));
+            if (entry == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            estimateSize(entry);
+            evicted = evict(entry);
+        }
+        evicted.forEach(evictionListener);
+        return entry.chunk;
+    }
+
+    @Override
+    public synchronized boolean contains(Dimension dimension, int chunkX, int chunkZ) {
+        return entries.containsKey(new ChunkKey(dimension, chunkX, chunkZ));
+    }
+
+    @Override
+    public void put(Chunk chunk) {
+        List<Chunk> evicted;
+        synchronized (this) {
+            Entry entry = new Entry(chunk);
+            Entry previous = entries.put(new ChunkKey(chunk.getDimension(), chunk.getChunkX(), chunk.getChunkZ()), entry);
+            if (previous != null) {
+                estimatedBytes -= previous.size;
+                entry.pins = previous.pins;
+            }
+            estimateSize(entry);
+            evicted = evict(entry);
+        }
+        evicted.forEach(evictionListener);
+    }
+
+    @Override
+    public void updateSize(Chunk chunk) {
+        List<Chunk> evicted;
+        synchronized (this) {
+            Entry entry = getEntry(chunk);
+            if (entry == null) {
+                return;
+            }
+            estimateSize(entry);
+            evicted = evict(entry);
+        }
+        evicted.forEach(evictionListener);
+    }
+
+    @Override
+    public synchronized Chunk remove(Dimension dimension, int chunkX, int chunkZ) {
+        Entry entry = entries.remove(new ChunkKey(dimension, chunkX, chunkZ));
+        if (entry == null) {
+            return null;
+        }
+        estimatedBytes -= entry.size;
+        return entry.chunk;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        estimatedBytes = 0;
+    }
+
+    @Override
+    public synchronized Collection<Chunk> getChunks() {
+        List<Chunk> result = new ArrayList<>(entries.size());
+        entries.values().forEach(entry -> result.add(entry.chunk));
+        return result;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void pin(Chunk chunk) {
+        Entry entry = getEntry(chunk);
+        if (entry != null) {
+            entry.pins++;
+        }
+    }
+
+    @Override
+    public synchronized void unpin(Chunk chunk) {
+        Entry entry = getEntry(chunk);
+        if (entry != null && entry.pins > 0) {
+            entry.pins--;
+        }
+    }
+
+    @Override
+    public synchronized void setEvictionListener(Consumer<Chunk> listener) {
+        this.evictionListener = listener;
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Retrieves the entry of the given chunk
+     * @param chunk The chunk
+     * @return The entry, or null if the chunk is not cached
+     */
+    private Entry getEntry(Chunk chunk) {
+        Entry entry = entries.get(new ChunkKey(chunk.getDimension(), chunk.getChunkX(), chunk.getChunkZ()));
+        return entry != null && entry.chunk == chunk ? entry : null;
+    }
+
+    /**
+     * Estimates the size of the chunk of the given entry again
+     * @param entry The cache entry
+     */
+    private void estimateSize(Entry entry) {
+        long size = entry.chunk.getEstimatedSize();
+        estimatedBytes += size - entry.size;
+        entry.size = size;
+    }
+
+    /**
+     * Evicts the least recently used chunks that are not pinned, until the cache is within its limits. The evicted
+     * chunks should be passed to the eviction listener once the lock of the cache is released.
+     * @param added The entry that was just added or used, which is never evicted
+     * @return The evicted chunks
+     */
+    private List<Chunk> evict(Entry added) {
+        List<Chunk> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (isOverLimit() && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry == added || entry.pins > 0) {
+                continue;
+            }
+            iterator.remove();
+            estimatedBytes -= entry.size;
+            evictionCount++;
+            evicted.add(entry.chunk);
+        }
+        return evicted;
+    }
+
+    private boolean isOverLimit() {
+        return (maxChunks > 0 && entries.size() > maxChunks) || (maxBytes > 0 && estimatedBytes > maxBytes);
+    }
+
+    /**
+     * A cached chunk, with its last estimated size and the amount of times it was pinned
+     */
+    private static final class Entry {
+
+        private final Chunk chunk;
+        private long size = 0;
+        private int pins = 0;
+
+        private Entry(Chunk chunk) {
+            this.chunk = chunk;
+        }
+    }
+}
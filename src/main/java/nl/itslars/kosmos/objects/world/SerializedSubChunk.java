@@ -3,9 +3,6 @@ package nl.itslars.kosmos.objects.world;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
-import nl.itslars.mcpenbt.tags.CompoundTag;
-
-import java.util.List;
 
 /**
  * Class representing a serialized {@link SubChunk}. When a {@link SubChunk} is loaded, it is loaded from a
@@ -20,16 +17,11 @@ public class SerializedSubChunk {
     private final Chunk parentChunk;
     // The chunk Y level
     private final short subChunkHeight;
-    // The block palette indices
-    private final short[][][] paletteIndices;
-    // The palette; the list of blocks
-    private final List<CompoundTag> palette;
+    // The block storage, containing the palette and the palette indices
+    private final BlockStorage storage;
 
-    // The water logged palette indices
-    @Setter
-    private short[][][] waterLoggedIndices;
-    // The palette; the list of blocks. For water logging, this should have only 2 blocks: water and air.
+    // The water logged block storage. Its palette should have only 2 blocks: water and air.
     @Setter
-    private List<CompoundTag> waterLoggedPalette;
+    private BlockStorage waterLoggedStorage;
 
 }
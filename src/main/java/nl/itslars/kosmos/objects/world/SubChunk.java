@@ -1,83 +1,523 @@
 package nl.itslars.kosmos.objects.world;
 
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import nl.itslars.kosmos.enums.BlockType;
-import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.kosmos.objects.entity.TileEntity;
+import nl.itslars.kosmos.util.BlockStateRegistry;
+import nl.itslars.kosmos.util.SubChunkPool;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Class for representing a SubChunk (16x16x16 area) of a {@link Chunk}.
- * This contains all chunk blocks.
+ * This contains all chunk blocks, stored as a {@link BlockStorage}. {@link Block} objects are only created when a
+ * block is requested, and act as a view on this SubChunk.
  */
-@RequiredArgsConstructor
 @Getter
 public class SubChunk {
 
+    // The odd multiplier of the content fingerprint. Different blocks may have the same fingerprint, so it is only
+    // used to quickly detect blocks that differ from the stored ones.
+    private static final long FINGERPRINT_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
     // A one-time-created palette for waterlogged blocks
-    private static final List<CompoundTag> WATER_LOGGED_PALETTE = Arrays.asList(
-            new Block(BlockType.AIR, 0, 0, 0).serialize(),
-            new Block(BlockType.WATER, 0, 0, 0).serialize()
+    private static final List<BlockState> WATER_LOGGED_PALETTE = Arrays.asList(
+            BlockStateRegistry.get(BlockType.AIR.getNameSpacedId()),
+            BlockStateRegistry.get(BlockType.WATER.getNameSpacedId())
     );
 
     // The parent Chunk that this SubChunk belongs to
     private final Chunk parentChunk;
     // The chunk Y of this SubChunk
     private final short subChunkHeight;
-    // The 16x16x16 3D-array containing all blocks in this chunk
-    private final Block[][][] blocks;
+    // The block storage, containing the palette and palette indices of all blocks in this SubChunk. It may be shared
+    // with other SubChunks that have the same blocks, in which case it is copied before it is changed.
+    private BlockStorage storage;
+    // The block storage indices of all waterlogged blocks
+    private final BitSet waterLogged = new BitSet(BlockStorage.SIZE);
+    // The tile entities that were linked to or unlinked from blocks, mapped by block storage index. A null value means
+    // that the block has no tile entity anymore.
+    private final Map<Integer, TileEntity> tileEntities = new HashMap<>();
+    // The tile entities of the chunk that are in this SubChunk, mapped by block storage index. They are only linked
+    // when a block is first asked for its tile entity.
+    private Map<Integer, TileEntity> storedTileEntities;
+    // Whether the blocks of this SubChunk were changed since it was loaded or last saved. Only dirty SubChunks are saved.
+    private boolean dirty = true;
+    // The stored blocks and waterlogged states, and their fingerprint, kept right before the first change after the
+    // SubChunk was loaded or last saved. They are used to detect changes that were reverted, so the stored value does
+    // not have to be rewritten. The block storage is null if the stored blocks are unknown.
+    @Getter(AccessLevel.NONE)
+    private BlockStorage storedStorage;
+    @Getter(AccessLevel.NONE)
+    private BitSet storedWaterLogged;
+    @Getter(AccessLevel.NONE)
+    private long storedFingerprint;
+
+    public SubChunk(Chunk parentChunk, short subChunkHeight, BlockStorage storage) {
+        this.parentChunk = parentChunk;
+        this.subChunkHeight = subChunkHeight;
+        this.storage = storage;
+    }
 
     /**
-     * Converts an instance of this object into a {@link SerializedSubChunk}, that is then saved by the chunk saver.
-     * @return A new {@link SerializedSubChunk} object.
+     * Creates a view of the block at the given SubChunk coordinates
+     * @param x The x coordinate, ranging from 0-15
+     * @param y The y coordinate, ranging from 0-15
+     * @param z The z coordinate, ranging from 0-15
+     * @return The block
      */
-    public SerializedSubChunk serialize() {
-        // Create a new array of palette indices
-        short[][][] paletteIndices = new short[16][16][16];
-        // Create a new list that wil represent the palette of this SubChunk
-        List<CompoundTag> palette = new ArrayList<>();
-
-        // After looping through all blocks, this boolean will tell whether the chunk contains any waterlogged blocks.
-        boolean hasWaterLoggedBlocks = false;
-        // The 3d array of all waterlogged indices. A point is this array is '1' if the block is waterlogged.
-        short[][][] waterLoggedIndices = new short[16][16][16];
-
-        // Loop through all blocks
-        for (int x = 0; x < 16; x++) {
-            for (int y = 0; y < 16; y++) {
-                for (int z = 0; z < 16; z++) {
-                    Block block = blocks[x][y][z];
-                    // Check if the block was waterlogged
-                    if (block.isWaterLogged()) {
-                        hasWaterLoggedBlocks = true;
-                        waterLoggedIndices[x][y][z] = 1;
-                    }
-                    // Serialize the block into a CompoundTag, to add to the palette.
-                    CompoundTag tag = block.serialize();
-                    // Check if this block was already in the palette.
-                    int index = palette.indexOf(tag);
-
-                    // If the block was already in the palette, we point the index of this block to that palette location
-                    // Otherwise, we add the new palette item to the palette, and point the block index to that location
-                    if (index >= 0) {
-                        paletteIndices[x][y][z] = (short) index;
-                    } else {
-                        palette.add(tag);
-                        paletteIndices[x][y][z] = (short) (palette.size() - 1);
+    public Block getBlock(int x, int y, int z) {
+        return getBlock(BlockStorage.index(x, y, z));
+    }
+
+    /**
+     * Creates a view of the block at the given block storage index
+     * @param index The block storage index
+     * @return The block
+     */
+    public Block getBlock(int index) {
+        return Block.view(this, index, storage.getState(index),
+                (index >> 8) + 16 * parentChunk.getChunkX(),
+                (index & 15) + 16 * subChunkHeight,
+                ((index >> 4) & 15) + 16 * parentChunk.getChunkZ());
+    }
+
+    /**
+     * Replaces the block at the given block storage index with the given block. The block is no longer waterlogged
+     * or linked to a tile entity, unless the given block is.
+     * @param index The block storage index
+     * @param block The block, of which the state, waterlogged state and tile entity are copied
+     * @return A view of the new block
+     */
+    public Block setBlock(int index, Block block) {
+        beforeChange();
+        getWritableStorage().setState(index, block.getState());
+        dirty = true;
+        setWaterLogged(index, block.isWaterLogged());
+        setTileEntity(index, block.getTileEntity());
+        return getBlock(index);
+    }
+
+    /**
+     * Sets all blocks in the given box to the given state. Like {@link #setBlock(int, Block)}, the blocks are no
+     * longer waterlogged or linked to a tile entity. If the box covers the entire SubChunk, the block storage is
+     * replaced by a uniform one.
+     * @param minX The minimum x coordinate, ranging from 0-15
+     * @param minY The minimum y coordinate, ranging from 0-15
+     * @param minZ The minimum z coordinate, ranging from 0-15
+     * @param maxX The maximum x coordinate, ranging from 0-15
+     * @param maxY The maximum y coordinate, ranging from 0-15
+     * @param maxZ The maximum z coordinate, ranging from 0-15
+     * @param state The block state
+     */
+    public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, BlockState state) {
+        beforeChange();
+        dirty = true;
+        if (minX == 0 && minY == 0 && minZ == 0 && maxX == 15 && maxY == 15 && maxZ == 15) {
+            storage = new BlockStorage(state);
+            waterLogged.clear();
+            tileEntities.clear();
+            // None of the tile entities of the chunk are linked to a block in this SubChunk anymore
+            storedTileEntities = new HashMap<>();
+            return;
+        }
+        BlockStorage writableStorage = getWritableStorage();
+        Map<Integer, TileEntity> linkedTileEntities = getStoredTileEntities();
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int y = minY; y <= maxY; y++) {
+                    int index = BlockStorage.index(x, y, z);
+                    writableStorage.setState(index, state);
+                    waterLogged.clear(index);
+                    unlinkTileEntity(index, linkedTileEntities);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces all blocks in the given box that have one of the source states by the target state. Like
+     * {@link #setBlock(int, Block)}, the replaced blocks are no longer waterlogged or linked to a tile entity.
+     * The source states are looked up in the palette first, so the blocks are not visited at all if the palette does
+     * not contain them. If the box covers the entire SubChunk, only the palette entries are replaced.
+     * @param minX The minimum x coordinate, ranging from 0-15
+     * @param minY The minimum y coordinate, ranging from 0-15
+     * @param minZ The minimum z coordinate, ranging from 0-15
+     * @param maxX The maximum x coordinate, ranging from 0-15
+     * @param maxY The maximum y coordinate, ranging from 0-15
+     * @param maxZ The maximum z coordinate, ranging from 0-15
+     * @param source Whether a block state should be replaced
+     * @param target The state of the replaced blocks
+     */
+    public void replace(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Predicate<BlockState> source, BlockState target) {
+        List<BlockState> palette = storage.getPalette();
+        BitSet sourceEntries = new BitSet(palette.size());
+        for (int i = 0; i < palette.size(); i++) {
+            if (source.test(palette.get(i))) {
+                sourceEntries.set(i);
+            }
+        }
+        if (sourceEntries.isEmpty()) {
+            return;
+        }
+
+        beforeChange();
+        dirty = true;
+        BlockStorage writableStorage = getWritableStorage();
+        Map<Integer, TileEntity> linkedTileEntities = getStoredTileEntities();
+        if (minX == 0 && minY == 0 && minZ == 0 && maxX == 15 && maxY == 15 && maxZ == 15) {
+            // The palette indices stay the same, so the replaced blocks can still be found by their palette index
+            for (int i = sourceEntries.nextSetBit(0); i >= 0; i = sourceEntries.nextSetBit(i + 1)) {
+                writableStorage.setPaletteState(i, target);
+            }
+            for (int index = waterLogged.nextSetBit(0); index >= 0; index = waterLogged.nextSetBit(index + 1)) {
+                if (sourceEntries.get(writableStorage.get(index))) {
+                    waterLogged.clear(index);
+                }
+            }
+            Set<Integer> tileEntityIndices = new HashSet<>(linkedTileEntities.keySet());
+            tileEntityIndices.addAll(tileEntities.keySet());
+            for (int index : tileEntityIndices) {
+                if (sourceEntries.get(writableStorage.get(index))) {
+                    unlinkTileEntity(index, linkedTileEntities);
+                }
+            }
+            return;
+        }
+
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                for (int y = minY; y <= maxY; y++) {
+                    int index = BlockStorage.index(x, y, z);
+                    // New palette entries are added at the end, so the source entries keep their palette index
+                    if (sourceEntries.get(writableStorage.get(index))) {
+                        writableStorage.setState(index, target);
+                        waterLogged.clear(index);
+                        unlinkTileEntity(index, linkedTileEntities);
                     }
                 }
             }
         }
+    }
+
+    /**
+     * Unlinks the tile entity of the block at the given index, if it has one. Blocks without a tile entity are
+     * skipped, instead of adding an override for every block.
+     * @param index The block storage index
+     * @param linkedTileEntities The tile entities that were linked when the SubChunk was loaded
+     */
+    private void unlinkTileEntity(int index, Map<Integer, TileEntity> linkedTileEntities) {
+        if (tileEntities.get(index) != null || (!tileEntities.containsKey(index) && linkedTileEntities.containsKey(index))) {
+            tileEntities.put(index, null);
+        }
+    }
+
+    /**
+     * Returns whether the block at the given block storage index is waterlogged
+     * @param index The block storage index
+     * @return Whether the block is waterlogged
+     */
+    public boolean isWaterLogged(int index) {
+        return waterLogged.get(index);
+    }
+
+    /**
+     * Sets whether the block at the given block storage index is waterlogged
+     * @param index The block storage index
+     * @param waterLogged Whether the block is waterlogged
+     */
+    public void setWaterLogged(int index, boolean waterLogged) {
+        if (this.waterLogged.get(index) != waterLogged) {
+            beforeChange();
+            this.waterLogged.set(index, waterLogged);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Marks this SubChunk as changed, so it is written when the chunk is saved. This is done by all methods of this
+     * class that change blocks, but should be called after changing the {@link #getWritableStorage()} or
+     * {@link #getWaterLogged()} directly.
+     */
+    public void markDirty() {
+        dirty = true;
+        // The blocks before the change are unknown, so the SubChunk is always written
+        clearStoredBlocks();
+    }
+
+    /**
+     * Marks this SubChunk as unchanged, after it was written to the LevelDB storage
+     */
+    void markSaved() {
+        dirty = false;
+        clearStoredBlocks();
+    }
+
+    private void clearStoredBlocks() {
+        storedStorage = null;
+        storedWaterLogged = null;
+    }
+
+    /**
+     * Retrieves the block storage in order to change it directly. If the block storage is shared with other
+     * SubChunks, this SubChunk gets its own copy first. The block storage returned by {@link #getStorage()} should
+     * not be changed.
+     * @return The block storage, which is not shared
+     */
+    public BlockStorage getWritableStorage() {
+        if (storage.isShared()) {
+            storage = storage.copy();
+        }
+        return storage;
+    }
+
+    /**
+     * Keeps the stored blocks, if this is the first change since the SubChunk was loaded or saved. A shared block
+     * storage is never changed, so it is kept as it is.
+     */
+    private void beforeChange() {
+        if (!dirty) {
+            storedStorage = storage.isShared() ? storage : storage.copy();
+            storedWaterLogged = (BitSet) waterLogged.clone();
+            storedFingerprint = fingerprint();
+        }
+    }
+
+    /**
+     * Checks whether the blocks of this SubChunk are the same as the stored ones, even though they were changed, e.g.
+     * because a block was replaced and then set back. The stored value then does not have to be written again.
+     * @return Whether the blocks are known to be unchanged
+     */
+    public boolean isUnchanged() {
+        if (!dirty) {
+            return true;
+        }
+        // The fingerprints only tell for sure that the blocks differ, so equal ones are confirmed block by block
+        return storedStorage != null && fingerprint() == storedFingerprint && hasStoredBlocks();
+    }
+
+    /**
+     * Compares the block states and waterlogged states of all blocks with the stored ones. It does not depend on the
+     * order of the palette or the amount of bits per block.
+     * @return Whether all blocks are the same as the stored ones
+     */
+    private boolean hasStoredBlocks() {
+        if (!waterLogged.equals(storedWaterLogged)) {
+            return false;
+        }
+        if (storage == storedStorage) {
+            return true;
+        }
+        List<BlockState> palette = storage.getPalette();
+        List<BlockState> storedPalette = storedStorage.getPalette();
+        int[] indices = new int[BlockStorage.SIZE];
+        int[] storedIndices = new int[BlockStorage.SIZE];
+        storage.getIndices(indices);
+        storedStorage.getIndices(storedIndices);
+        for (int index = 0; index < BlockStorage.SIZE; index++) {
+            // Block states are interned, so they are compared by reference
+            if (palette.get(indices[index]) != storedPalette.get(storedIndices[index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates a fingerprint of the block states and waterlogged states of all blocks. It does not depend on the
+     * order of the palette or the amount of bits per block.
+     * @return The fingerprint
+     */
+    private long fingerprint() {
+        List<BlockState> palette = storage.getPalette();
+        int[] ids = new int[palette.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = palette.get(i).getId();
+        }
+        int[] indices = new int[BlockStorage.SIZE];
+        storage.getIndices(indices);
+        long hash = 0;
+        for (int index : indices) {
+            hash = hash * FINGERPRINT_MULTIPLIER + ids[index];
+        }
+        long[] waterLoggedWords = waterLogged.toLongArray();
+        hash = hash * FINGERPRINT_MULTIPLIER + waterLoggedWords.length;
+        for (long word : waterLoggedWords) {
+            hash = hash * FINGERPRINT_MULTIPLIER + word;
+        }
+        return hash;
+    }
+
+    /**
+     * Retrieves the tile entity that is linked to the block at the given block storage index
+     * @param index The block storage index
+     * @return The tile entity, or null if no tile entity is linked
+     */
+    public TileEntity getTileEntity(int index) {
+        if (tileEntities.containsKey(index)) {
+            return tileEntities.get(index);
+        }
+        return getStoredTileEntities().get(index);
+    }
+
+    /**
+     * Links a tile entity to the block at the given block storage index
+     * @param index The block storage index
+     * @param tileEntity The tile entity, or null to remove the link
+     */
+    public void setTileEntity(int index, TileEntity tileEntity) {
+        tileEntities.put(index, tileEntity);
+    }
+
+    /**
+     * Links the tile entities of the parent chunk that are in this SubChunk to their block storage index
+     * @return The map of block storage indices to tile entities
+     */
+    private Map<Integer, TileEntity> getStoredTileEntities() {
+        if (storedTileEntities == null) {
+            storedTileEntities = new HashMap<>();
+            for (TileEntity tileEntity : parentChunk.readTileEntities()) {
+                if (tileEntity.getY() >> 4 == subChunkHeight) {
+                    storedTileEntities.put(BlockStorage.index(tileEntity.getX() & 15, tileEntity.getY() & 15, tileEntity.getZ() & 15), tileEntity);
+                }
+            }
+        }
+        return storedTileEntities;
+    }
 
-        // Create the new SerializedSubChunk
-        SerializedSubChunk result = new SerializedSubChunk(parentChunk, subChunkHeight, paletteIndices, palette);
-        // If the chunk had waterlogged blocks, add them to the SerializedSubChunk
-        if (hasWaterLoggedBlocks) {
-            result.setWaterLoggedIndices(waterLoggedIndices);
-            result.setWaterLoggedPalette(WATER_LOGGED_PALETTE);
+    /**
+     * Estimates the amount of heap memory that this SubChunk takes up: its packed palette indices and palette unless
+     * they are shared, its waterlogged states, and the copy of its stored blocks while it is changed, plus a fixed
+     * overhead
+     * @return The estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        long size = 128 + getEstimatedSize(storage) + waterLogged.size() / 8;
+        if (storedStorage != null && storedStorage != storage) {
+            size += getEstimatedSize(storedStorage) + storedWaterLogged.size() / 8;
+        }
+        return size;
+    }
+
+    private static long getEstimatedSize(BlockStorage storage) {
+        // A pooled block storage is only counted once, by the pool that shares it
+        return storage.isShared() && SubChunkPool.contains(storage) ? 0 : storage.getWords().length * 4L + storage.getPalette().size() * 8L;
+    }
+
+    /**
+     * Compresses the blocks and waterlogged states of this SubChunk into a compact form, which is cheaper to decode
+     * than a SubChunk record. The palette is stored as {@link BlockStateRegistry} IDs, so the compressed form is only
+     * valid within the running program.
+     * @return The compressed SubChunk
+     */
+    @SneakyThrows
+    public byte[] compress() {
+        BlockStorage compacted = storage.compact();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            out.writeByte(compacted.getBitsPerBlock());
+            out.writeShort(compacted.getPalette().size());
+            for (BlockState state : compacted.getPalette()) {
+                out.writeInt(state.getId());
+            }
+            for (int word : compacted.getWords()) {
+                out.writeInt(word);
+            }
+            long[] waterLoggedWords = waterLogged.toLongArray();
+            out.writeShort(waterLoggedWords.length);
+            for (long word : waterLoggedWords) {
+                out.writeLong(word);
+            }
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a SubChunk that was compressed by {@link #compress()}. The SubChunk is not marked as dirty, since it
+     * should only be compressed when it is the same as the stored one.
+     * @param compressed The compressed SubChunk
+     * @param parentChunk The parent chunk
+     * @param subChunkHeight The SubChunk height
+     * @return The SubChunk
+     */
+    @SneakyThrows
+    public static SubChunk decompress(byte[] compressed, Chunk parentChunk, short subChunkHeight) {
+        Inflater inflater = new Inflater();
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed), inflater))) {
+            int bitsPerBlock = in.readByte();
+            List<BlockState> palette = new ArrayList<>();
+            int paletteSize = in.readUnsignedShort();
+            for (int i = 0; i < paletteSize; i++) {
+                palette.add(BlockStateRegistry.get(in.readInt()));
+            }
+            int[] words = new int[BlockStorage.getWordCount(bitsPerBlock)];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readInt();
+            }
+            BlockStorage storage = new BlockStorage(palette, bitsPerBlock, words);
+            long[] waterLoggedWords = new long[in.readUnsignedShort()];
+            for (int i = 0; i < waterLoggedWords.length; i++) {
+                waterLoggedWords[i] = in.readLong();
+            }
+            return load(parentChunk, subChunkHeight, storage, BitSet.valueOf(waterLoggedWords));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Creates a SubChunk with the given blocks, which are the same as the stored ones. The block storage may be
+     * shared with other SubChunks.
+     * @param parentChunk The parent chunk
+     * @param subChunkHeight The SubChunk height
+     * @param storage The block storage
+     * @param waterLogged The block storage indices of all waterlogged blocks, which are copied
+     * @return The SubChunk
+     */
+    public static SubChunk load(Chunk parentChunk, short subChunkHeight, BlockStorage storage, BitSet waterLogged) {
+        SubChunk result = new SubChunk(parentChunk, subChunkHeight, storage);
+        result.waterLogged.or(waterLogged);
+        result.dirty = false;
+        return result;
+    }
+
+    /**
+     * Converts an instance of this object into a {@link SerializedSubChunk}, that is then saved by the chunk saver.
+     * @return A new {@link SerializedSubChunk} object.
+     */
+    public SerializedSubChunk serialize() {
+        // Leave out the palette entries of blocks that were replaced since the SubChunk was loaded
+        storage = storage.compact();
+        SerializedSubChunk result = new SerializedSubChunk(parentChunk, subChunkHeight, storage);
+
+        // If the chunk had waterlogged blocks, add them to the SerializedSubChunk. Water is palette index '1'.
+        if (!waterLogged.isEmpty()) {
+            BlockStorage waterLoggedStorage = new BlockStorage(WATER_LOGGED_PALETTE, 1, new int[BlockStorage.getWordCount(1)]);
+            for (int index = waterLogged.nextSetBit(0); index >= 0; index = waterLogged.nextSetBit(index + 1)) {
+                waterLoggedStorage.setState(index, WATER_LOGGED_PALETTE.get(1));
+            }
+            result.setWaterLoggedStorage(waterLoggedStorage);
         }
         return result;
     }
@@ -88,27 +528,24 @@ public class SubChunk {
      * @return The newly created SubChunk
      */
     public static SubChunk deserialize(SerializedSubChunk serializedSubChunk) {
-        // Create a new SubChunk instance
         SubChunk result = new SubChunk(serializedSubChunk.getParentChunk(),
                 serializedSubChunk.getSubChunkHeight(),
-                new Block[16][16][16]);
-
-        // Loop through all blocks in the SubChunk
-        for (int x = 0; x < 16; x++) {
-            for (int y = 0; y < 16; y++) {
-                for (int z = 0; z < 16; z++) {
-                    // Check the palette index that the block corresponded to.
-                    short paletteIndex = serializedSubChunk.getPaletteIndices()[x][y][z];
-                    CompoundTag tag = serializedSubChunk.getPalette().get(paletteIndex);
-                    // Deserialize the palette CompoundTag into a Block, and set it in the SubChunk
-                    result.getBlocks()[x][y][z] = Block.deserialize(tag,
-                            x + 16 * serializedSubChunk.getParentChunk().getChunkX(),
-                            y + 16 * serializedSubChunk.getSubChunkHeight(),
-                            z + 16 * serializedSubChunk.getParentChunk().getChunkZ());
+                serializedSubChunk.getStorage());
+
+        BlockStorage waterLoggedStorage = serializedSubChunk.getWaterLoggedStorage();
+        if (waterLoggedStorage != null && !waterLoggedStorage.getPalette().isEmpty()) {
+            // Check whether the 0-index in the palette is air or water
+            boolean zeroIsAir = waterLoggedStorage.getPalette().get(0).getName().equals(BlockType.AIR.getNameSpacedId());
+            int waterIndex = zeroIsAir ? 1 : 0;
+            // For all blocks, parse their waterlogged state
+            for (int index = 0; index < BlockStorage.SIZE; index++) {
+                if (waterLoggedStorage.get(index) == waterIndex) {
+                    result.setWaterLogged(index, true);
                 }
             }
         }
-
+        // The SubChunk is the same as the stored one
+        result.dirty = false;
         return result;
     }
 }
@@ -5,13 +5,18 @@ import lombok.SneakyThrows;
 import nl.itslars.kosmos.World;
 import nl.itslars.kosmos.enums.BlockType;
 import nl.itslars.kosmos.enums.Dimension;
+import nl.itslars.kosmos.leveldb.LevelDB;
+import nl.itslars.kosmos.leveldb.LevelDBReader;
 import nl.itslars.kosmos.objects.entity.Entity;
 import nl.itslars.kosmos.objects.entity.Player;
+import nl.itslars.kosmos.objects.entity.UnfinishedEntity;
 import nl.itslars.kosmos.objects.settings.LevelDatFile;
+import nl.itslars.kosmos.util.BlockStateRegistry;
 import nl.itslars.kosmos.util.Chunks;
 import nl.itslars.mcpenbt.NBTUtil;
 import nl.itslars.mcpenbt.enums.HeaderType;
 import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.mcpenbt.tags.Tag;
 
 import java.io.Closeable;
 import java.io.File;
@@ -20,12 +25,21 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Class for representing the following data of a Minecraft world:
@@ -37,6 +51,14 @@ import java.util.stream.Stream;
  */
 public class WorldData implements Closeable {
 
+    // The default amount of key and value bytes after which a save writes its batch to the LevelDB storage
+    public static final long DEFAULT_WRITE_BATCH_SIZE = 4 * 1024 * 1024;
+    // LevelDB key (prefixes) of entities and players
+    public static final byte[] ACTOR_PREFIX = "actorprefix".getBytes();
+    public static final byte[] LOCAL_PLAYER_KEY = "~local_player".getBytes();
+    public static final byte[] SERVER_PLAYER_PREFIX = "player_server".getBytes();
+    public static final byte[] PLAYER_PREFIX = "player".getBytes();
+
     // Maps Players to their corresponding player_server_X id, or ~localhost if localhost player
     private final Map<Player, byte[]> players = new HashMap<>();
     // List of all entities in the world
@@ -46,12 +68,17 @@ public class WorldData implements Closeable {
     private final Map<byte[], byte[]> playerPointers = new HashMap<>();
     // List of keys that are scheduled to be removed with the next world save
     private final Set<byte[]> deletionKeys = new HashSet<>();
+    // The player, player pointer and entity keys that are currently stored in the LevelDB storage
+    private final Set<ByteBuffer> storedKeys = new HashSet<>();
     // Map containing all chunks that Minecraft has generated. FORMAT: <Dimension, <X, <Z, CHUNK>>>
     @Getter
     private final Map<Dimension, Map<Integer, Map<Integer, ChunkPreset>>> chunkPresets = new EnumMap<>(Dimension.class);
-    // Map containing all cached chunks that have been loaded. FORMAT: <Dimension, <X, <Z, CHUNK>>>
+    // The cache containing all chunks that have been loaded and were not unloaded or evicted yet
+    @Getter
+    private ChunkCache chunkCache = new LruChunkCache();
+    // The optional second-tier cache, containing chunks that were evicted from the chunk cache in a compressed form
     @Getter
-    private final Map<Dimension, Map<Integer, Map<Integer, Chunk>>> cachedChunks = new EnumMap<>(Dimension.class);
+    private CompressedChunkCache compressedChunkCache;
     // The parent World file, that contains all interaction with the LevelDB storage
     @Getter
     private final World world;
@@ -59,41 +86,81 @@ public class WorldData implements Closeable {
     @Getter
     private final LevelDatFile levelDatFile;
     private String name;
+    // The amount of key and value bytes after which a save writes its batch. 0 or lower writes everything at once.
+    @Getter
+    private long writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    // The storage that chunks, players and entities are read from. This is the LevelDB storage itself, or a snapshot
+    // of it for read-only views.
+    @Getter
+    private final LevelDBReader reader;
+    // The snapshot that this read-only view is bound to, or null if this world data can be modified
+    private final LevelDB.Snapshot snapshot;
 
     public WorldData(World world, File levelDat, String name) {
+        this(world, levelDat, name, world.getDb(), null);
+    }
+
+    private WorldData(World world, File levelDat, String name, LevelDBReader reader, LevelDB.Snapshot snapshot) {
         this.world = world;
         this.levelDatFile = new LevelDatFile(levelDat, (CompoundTag) NBTUtil.read(true, levelDat.toPath()));
         this.name = name;
+        this.reader = reader;
+        this.snapshot = snapshot;
         // Initialize dimensions in the chunk maps
         Stream.of(Dimension.values()).forEach(dim -> {
             chunkPresets.put(dim, new HashMap<>());
-            cachedChunks.put(dim, new ConcurrentHashMap<>());
         });
+        chunkCache.setEvictionListener(this::evict);
     }
 
     /**
      * Saves the world data to the LevelDB storage.
+     * All records are collected in write batches, that are written whenever they exceed the {@link #writeBatchSize}.
+     * If the write batch size is 0 or lower, the entire save is written in one atomic batch.
+     * Chunks, players and entities are only marked as unchanged once the batch that contains them is written, so a
+     * save that failed can be retried.
      */
     @SneakyThrows
     public void save() {
-        // Save all chunks
-        saveChunks();
-        // Saving all player data:
-        players.forEach((key, value) -> {
-            byte[] playerData = NBTUtil.write(key.getParentCompoundTag());
-            world.getDb().put(value, playerData);
-        });
-        // Saving all entities:
-        entities.forEach(entity -> {
-            byte[] entityData = NBTUtil.write(entity.getParentCompoundTag());
-            ByteBuffer allocate = ByteBuffer.allocate(11 + 8);
-            allocate.put("actorprefix".getBytes());
-            allocate.putLong(entity.getWorldId());
-            world.getDb().put(allocate.array(), entityData);
-        });
-        // Deleting all scheduled deletion keys:
-        for (byte[] key : deletionKeys) {
-            world.getDb().delete(key);
+        checkWritable();
+        LevelDB db = world.getDb();
+        try (LevelDB.WriteBatch batch = LevelDB.createWriteBatch()) {
+            // Save all chunks
+            saveChunks(batch);
+            // Saving all player data that was created or changed:
+            for (Map.Entry<Player, byte[]> entry : players.entrySet()) {
+                if (!entry.getKey().isDirty()) {
+                    continue;
+                }
+                Player player = entry.getKey();
+                batch.put(entry.getValue(), NBTUtil.write(player.getParentCompoundTag()));
+                batch.onWrite(() -> player.setDirty(false));
+                storedKeys.add(ByteBuffer.wrap(entry.getValue()));
+                flushIfFull(batch);
+            }
+            // Saving all entities that were created or changed:
+            for (Entity entity : entities) {
+                if (!entity.isDirty()) {
+                    continue;
+                }
+                byte[] entityData = NBTUtil.write(entity.getParentCompoundTag());
+                batch.onWrite(() -> entity.setDirty(false));
+                ByteBuffer allocate = ByteBuffer.allocate(11 + 8);
+                allocate.put(ACTOR_PREFIX);
+                allocate.putLong(entity.getWorldId());
+                batch.put(allocate.array(), entityData);
+                storedKeys.add(ByteBuffer.wrap(allocate.array()));
+                flushIfFull(batch);
+            }
+            // Deleting all scheduled deletion keys:
+            for (byte[] key : deletionKeys) {
+                batch.delete(key);
+                storedKeys.remove(ByteBuffer.wrap(key));
+                flushIfFull(batch);
+            }
+            if (!batch.isEmpty()) {
+                db.write(batch);
+            }
         }
         deletionKeys.clear();
         // Delete the level.dat file, then save it
@@ -109,11 +176,112 @@ public class WorldData implements Closeable {
     }
 
     /**
-     * Save all cached chunks in {@link #cachedChunks} to the LevelDB storage
+     * Save all cached chunks in the {@link #chunkCache} to the LevelDB storage
      */
     public void saveChunks() {
-        // Saving all chunks:
-        cachedChunks.forEach((d, xzc) -> xzc.forEach((x, zc) -> zc.forEach((z, chunk) -> chunk.save())));
+        checkWritable();
+        try (LevelDB.WriteBatch batch = LevelDB.createWriteBatch()) {
+            saveChunks(batch);
+            if (!batch.isEmpty()) {
+                world.getDb().write(batch);
+            }
+        }
+    }
+
+    /**
+     * Adds all changed parts of the cached chunks in the {@link #chunkCache} to the given write batch. The batch is
+     * written to the LevelDB storage and cleared whenever it exceeds the {@link #writeBatchSize}.
+     *
+     * @param batch The write batch
+     */
+    private void saveChunks(LevelDB.WriteBatch batch) {
+        for (Chunk chunk : chunkCache.getChunks()) {
+            // Chunks that were only read have nothing to write
+            if (!chunk.isDirty()) {
+                continue;
+            }
+            chunk.save(batch);
+            flushIfFull(batch);
+        }
+    }
+
+    /**
+     * Writes a chunk that was evicted from the {@link #chunkCache} to the LevelDB storage, if it was changed.
+     * Read-only views can not write, so their changes are dropped. The chunk is then added to the
+     * {@link #compressedChunkCache}, if there is one.
+     *
+     * @param chunk The evicted chunk
+     */
+    private void evict(Chunk chunk) {
+        if (!isReadOnly() && chunk.isDirty()) {
+            chunk.save();
+        }
+        if (compressedChunkCache != null && !chunk.isDirty()) {
+            compressedChunkCache.put(chunk);
+        }
+    }
+
+    /**
+     * Sets the second-tier cache, that keeps chunks evicted from the {@link #chunkCache} in a compressed form.
+     * Loading such a chunk again does not have to read and parse its SubChunks from the LevelDB storage.
+     *
+     * @param compressedChunkCache The compressed chunk cache, or null to disable the second tier
+     */
+    public void setCompressedChunkCache(CompressedChunkCache compressedChunkCache) {
+        this.compressedChunkCache = compressedChunkCache;
+    }
+
+    /**
+     * Replaces the chunk cache, e.g. by an {@link LruChunkCache} with a memory budget. The chunks that are cached
+     * now are moved to the new cache. Changed chunks that the new cache evicts are written to the LevelDB storage.
+     *
+     * @param chunkCache The new chunk cache
+     */
+    public void setChunkCache(ChunkCache chunkCache) {
+        chunkCache.setEvictionListener(this::evict);
+        for (Chunk chunk : this.chunkCache.getChunks()) {
+            chunkCache.put(chunk);
+        }
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * Retrieves all cached chunks, mapped by their location. FORMAT: <Dimension, <X, <Z, CHUNK>>>
+     * The map is a copy, so changing it does not change the {@link #chunkCache}.
+     *
+     * @return The map of cached chunks
+     */
+    public Map<Dimension, Map<Integer, Map<Integer, Chunk>>> getCachedChunks() {
+        Map<Dimension, Map<Integer, Map<Integer, Chunk>>> result = new EnumMap<>(Dimension.class);
+        for (Dimension dimension : Dimension.values()) {
+            result.put(dimension, new HashMap<>());
+        }
+        for (Chunk chunk : chunkCache.getChunks()) {
+            result.get(chunk.getDimension()).computeIfAbsent(chunk.getChunkX(), x -> new HashMap<>()).put(chunk.getChunkZ(), chunk);
+        }
+        return result;
+    }
+
+    /**
+     * Writes and clears the given batch if it exceeds the {@link #writeBatchSize}
+     *
+     * @param batch The write batch
+     */
+    private void flushIfFull(LevelDB.WriteBatch batch) {
+        if (writeBatchSize > 0 && batch.getByteSize() >= writeBatchSize) {
+            world.getDb().write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sets the amount of key and value bytes after which {@link #save()} writes its batch to the LevelDB storage.
+     * Larger batches mean fewer (but bigger) writes. Set to 0 or lower to make every save a single atomic write.
+     *
+     * @param writeBatchSize The write batch size in bytes
+     */
+    public void setWriteBatchSize(long writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
     }
 
     /**
@@ -125,9 +293,88 @@ public class WorldData implements Closeable {
     @Override
     public void close() throws IOException {
         unloadChunks();
+        if (snapshot != null) {
+            // A read-only view only releases its snapshot, the world itself stays open
+            snapshot.close();
+            return;
+        }
         world.close();
     }
 
+    /**
+     * Creates a read-only view of this world, bound to a snapshot of the LevelDB storage. The view sees the chunks,
+     * players and entities as they are stored at this moment, and keeps seeing them while this world data is modified
+     * and saved. This makes it possible to export or render a consistent copy of the world on another thread, without
+     * copying the world directory first.
+     * The view should be created on the thread that modifies this world data, and can then be handed to another
+     * thread. Changes that were not saved yet are not part of the view. Closing the view releases the snapshot, but
+     * does not close the world.
+     *
+     * @return The read-only view
+     */
+    public WorldData snapshot() {
+        LevelDB.Snapshot snapshot = world.getDb().snapshot();
+        try {
+            WorldData view = new WorldData(world, levelDatFile.getFile(), name, snapshot, snapshot);
+            // Copy the chunk presets, so the view does not have to scan the storage for them
+            chunkPresets.forEach((dimension, xMap) -> xMap.forEach((chunkX, zMap) -> {
+                Map<Integer, ChunkPreset> viewZMap = view.chunkPresets.get(dimension).computeIfAbsent(chunkX, x -> new HashMap<>());
+                zMap.forEach((chunkZ, preset) -> viewZMap.put(chunkZ, new ChunkPreset(view, chunkX, chunkZ, dimension)));
+            }));
+            // Players and entities are read from the snapshot, since they may have been changed in memory
+            for (byte[] prefix : new byte[][]{LOCAL_PLAYER_KEY, PLAYER_PREFIX, ACTOR_PREFIX}) {
+                try (LevelDB.Iterator iterator = snapshot.prefixIterator(prefix, World.ITERATOR_BUFFER_SIZE)) {
+                    while (iterator.next()) {
+                        view.loadPlayerOrEntity(iterator.key(), iterator.value());
+                    }
+                }
+            }
+            return view;
+        } catch (RuntimeException e) {
+            snapshot.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves the keys of the players, player pointers and entities that are currently stored in the LevelDB
+     * storage: the keys that were loaded, plus the keys that were written by {@link #save()}, minus the keys that
+     * were deleted by it.
+     *
+     * @return The list of stored keys
+     */
+    public List<byte[]> getStoredKeys() {
+        return storedKeys.stream().map(ByteBuffer::array).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns whether players or chunks were deleted without saving the world afterwards. If so, the chunk presets
+     * and players in memory do not match the LevelDB storage yet.
+     *
+     * @return Whether there are unsaved deletions
+     */
+    public boolean hasUnsavedDeletions() {
+        return !deletionKeys.isEmpty();
+    }
+
+    /**
+     * Returns whether this world data is a read-only view, created by {@link #snapshot()}
+     *
+     * @return Whether this world data is read-only
+     */
+    public boolean isReadOnly() {
+        return snapshot != null;
+    }
+
+    /**
+     * Makes sure this world data may be modified and saved
+     */
+    void checkWritable() {
+        if (snapshot != null) {
+            throw new UnsupportedOperationException("This world data is a read-only snapshot view");
+        }
+    }
+
     /**
      * Returns the name of the world from levelname.txt file or null if not found.
      * @return the name of the world from levelname.txt file or null if not found
@@ -205,10 +452,7 @@ public class WorldData implements Closeable {
      * @return is the chunk cached
      */
     public boolean isCached(Dimension dimension, int chunkX, int chunkZ) {
-        Map<Integer, Chunk> zChunks = cachedChunks.get(dimension).get(chunkX);
-        if (zChunks == null) return false;
-        Chunk chunk = zChunks.get(chunkZ);
-        return chunk != null;
+        return chunkCache.contains(dimension, chunkX, chunkZ);
     }
 
     /**
@@ -275,12 +519,9 @@ public class WorldData implements Closeable {
     public Optional<Chunk> getChunk(Dimension dimension, int chunkX, int chunkZ) {
         // Check if the chunk was cached (caching chunks saves a LOT of time on big world operations)
         // If it was cached, return the cached chunk
-        Map<Integer, Chunk> zChunks = cachedChunks.get(dimension).get(chunkX);
-        if (zChunks != null) {
-            Chunk chunk = zChunks.get(chunkZ);
-            if (chunk != null) {
-                return Optional.of(chunk);
-            }
+        Chunk cachedChunk = chunkCache.get(dimension, chunkX, chunkZ);
+        if (cachedChunk != null) {
+            return Optional.of(cachedChunk);
         }
 
         // If the chunk was not cached, we check if Minecraft has actually already generated this chunk.
@@ -288,13 +529,54 @@ public class WorldData implements Closeable {
         ChunkPreset chunkPreset = getChunkPreset(dimension, chunkX, chunkZ).orElse(null);
         if (chunkPreset == null) return Optional.empty();
 
-        // If the chunk was generated by Minecraft, load it from the LevelDB database, cache it, and then return it.
-        Chunk chunk = Chunks.loadChunk(chunkPreset);
-        cachedChunks.get(dimension).computeIfAbsent(chunkX, x -> new ConcurrentHashMap<>())
-                .put(chunkZ, chunk);
+        // If the chunk was generated by Minecraft, restore it from the compressed cache or load it from the LevelDB
+        // database, cache it, and then return it. The cache may evict other chunks to make room for it.
+        Chunk chunk = loadChunk(chunkPreset);
+        chunkCache.put(chunk);
         return Optional.of(chunk);
     }
 
+    /**
+     * Restores the chunk of the given preset from the compressed chunk cache, or loads it from the LevelDB storage
+     *
+     * @param preset The chunk preset
+     * @return The chunk, which is not cached
+     */
+    private Chunk loadChunk(ChunkPreset preset) {
+        Chunk chunk = compressedChunkCache == null ? null : compressedChunkCache.take(preset);
+        if (chunk == null) {
+            chunk = Chunks.loadChunk(preset);
+        }
+        return chunk;
+    }
+
+    /**
+     * Removes the chunk of the given preset from the chunk caches, or loads it if it was not cached. The chunk is not
+     * cached afterwards, so it is never evicted while it is being processed.
+     *
+     * @param preset The chunk preset
+     * @return The chunk
+     */
+    Chunk takeChunk(ChunkPreset preset) {
+        Chunk chunk = chunkCache.remove(preset.getDimension(), preset.getX(), preset.getZ());
+        return chunk != null ? chunk : loadChunk(preset);
+    }
+
+    /**
+     * Streams all chunks in the given dimension, in LevelDB key order. The chunks are assembled from a single ordered
+     * pass over the LevelDB storage, so their records are read sequentially instead of being looked up per chunk.
+     * Chunks that are cached are streamed as they are. The other chunks are not cached, so changes to them should be
+     * saved with {@link Chunk#save()}. The stream should be closed if it is not read until the end.
+     *
+     * @param dimension The dimension
+     * @return The stream of chunks
+     */
+    public Stream<Chunk> streamChunks(Dimension dimension) {
+        long chunkCount = chunkPresets.get(dimension).values().stream().mapToLong(Map::size).sum();
+        ChunkSpliterator spliterator = new ChunkSpliterator(this, dimension, chunkCount);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
     /**
      * Loops through all chunk presets, loads them, applies the predicate,
      * then unloads them and, if necessary, saves them
@@ -328,6 +610,279 @@ public class WorldData implements Closeable {
                 });
     }
 
+    /**
+     * Loops through all chunk presets in parallel, loads them, applies the predicate,
+     * then unloads them and, if necessary, saves them. See {@link #forEachChunk(Dimension, Predicate, int)}.
+     *
+     * @param predicate   The predicate. Returns whether the chunk should be saved or not
+     * @param parallelism The amount of threads that process chunks
+     */
+    public void forEachChunk(Predicate<Chunk> predicate, int parallelism) {
+        for (Dimension dimension : Dimension.values()) {
+            forEachChunk(dimension, predicate, parallelism);
+        }
+    }
+
+    /**
+     * Loops through all chunk presets in the given dimension in parallel, loads them, applies the predicate,
+     * then unloads them and, if necessary, saves them.
+     * The chunks are divided over a fork-join pool with the given parallelism, and are saved by the calling thread
+     * in batches of the {@link #setWriteBatchSize(long) write batch size}. The predicate is called from multiple
+     * threads at the same time, so it should be thread safe. Chunks that are cached are taken out of the cache.
+     *
+     * @param dimension   The dimension
+     * @param predicate   The predicate. Returns whether the chunk should be saved or not
+     * @param parallelism The amount of threads that process chunks
+     */
+    public void forEachChunk(Dimension dimension, Predicate<Chunk> predicate, int parallelism) {
+        processChunks(getChunkPresets().get(dimension).values().stream()
+                .flatMap(zMap -> zMap.values().stream())
+                .collect(Collectors.toList()), parallelism, predicate);
+    }
+
+    /**
+     * Loops through all chunk presets in a pipeline, see {@link #forEachChunkPipelined(Dimension, Predicate, int)}.
+     *
+     * @param predicate The predicate. Returns whether the chunk should be saved or not
+     * @param prefetch  The maximum amount of chunks that are loaded ahead, and of saved chunks that are yet to be written
+     */
+    public void forEachChunkPipelined(Predicate<Chunk> predicate, int prefetch) {
+        for (Dimension dimension : Dimension.values()) {
+            forEachChunkPipelined(dimension, predicate, prefetch);
+        }
+    }
+
+    /**
+     * Loops through all chunk presets in the given dimension, loads them, applies the predicate,
+     * then unloads them and, if necessary, saves them. This works in three stages that run at the same time:
+     * a background thread loads and decodes the next chunks, the calling thread applies the predicate, and another
+     * background thread encodes the chunks that should be saved and writes them in batches of the
+     * {@link #setWriteBatchSize(long) write batch size}. Both background stages are at most the given amount of
+     * chunks ahead of or behind the predicate, so the memory use stays the same for any amount of chunks.
+     * The predicate is only called from the calling thread. Chunks that are cached are taken out of the cache.
+     * If the predicate or a stage fails, the chunks that were loaded but not finished are put back in the cache, and the
+     * chunks that were accepted for saving are still written, before the exception is thrown.
+     *
+     * @param dimension The dimension
+     * @param predicate The predicate. Returns whether the chunk should be saved or not
+     * @param prefetch  The maximum amount of chunks that are loaded ahead, and of saved chunks that are yet to be written
+     */
+    @SneakyThrows
+    public void forEachChunkPipelined(Dimension dimension, Predicate<Chunk> predicate, int prefetch) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("The prefetch must be at least 1, got " + prefetch);
+        }
+        Iterator<ChunkPreset> presets = getChunkPresets().get(dimension).values().stream()
+                .flatMap(zMap -> zMap.values().stream())
+                .collect(Collectors.toList()).iterator();
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Deque<Future<Chunk>> reads = new ArrayDeque<>();
+        Deque<Future<?>> writes = new ArrayDeque<>();
+        // The batch is only used by the writing thread, until all writes are done
+        LevelDB.WriteBatch batch = LevelDB.createWriteBatch();
+        Throwable failure = null;
+        // The chunk that was taken from the reading stage, but not handed to the writing stage yet
+        Chunk current = null;
+        try {
+            while (true) {
+                while (reads.size() < prefetch && presets.hasNext()) {
+                    ChunkPreset preset = presets.next();
+                    reads.add(reader.submit(() -> {
+                        Chunk chunk = takeChunk(preset);
+                        try {
+                            chunk.loadAll();
+                        } catch (Throwable t) {
+                            chunkCache.put(chunk);
+                            throw t;
+                        }
+                        return chunk;
+                    }));
+                }
+                Future<Chunk> read = reads.poll();
+                if (read == null) {
+                    break;
+                }
+                current = await(read);
+                if (predicate.test(current) && current.isDirty()) {
+                    // Wait for the oldest write if too many saved chunks are waiting to be written
+                    if (writes.size() >= prefetch) {
+                        await(writes.poll());
+                    }
+                    Chunk chunk = current;
+                    writes.add(writer.submit(() -> {
+                        chunk.save(batch);
+                        flushIfFull(batch);
+                    }));
+                }
+                current = null;
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+
+        // Stop loading chunks that were not started yet, and wait for the chunk that is being loaded
+        reads.forEach(read -> read.cancel(false));
+        reader.shutdown();
+        awaitTermination(reader);
+        if (failure != null) {
+            // Keep the chunks that were taken out of the cache, like a sequential loop keeps the chunk that failed
+            if (current != null) {
+                chunkCache.put(current);
+            }
+            for (Future<Chunk> read : reads) {
+                if (!read.isCancelled()) {
+                    try {
+                        chunkCache.put(await(read));
+                    } catch (Throwable t) {
+                        failure.addSuppressed(t);
+                    }
+                }
+            }
+        }
+
+        // Let the writes that were already accepted finish, then write what is left of the batch
+        writer.shutdown();
+        awaitTermination(writer);
+        for (Future<?> write : writes) {
+            try {
+                await(write);
+            } catch (Throwable t) {
+                failure = addFailure(failure, t);
+            }
+        }
+        try {
+            if (!batch.isEmpty()) {
+                world.getDb().write(batch);
+            }
+        } catch (Throwable t) {
+            failure = addFailure(failure, t);
+        } finally {
+            batch.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Combines the first failure of an operation with a later one
+     *
+     * @param failure The first failure, or null if there was none
+     * @param next    The later failure
+     * @return The first failure, with the later one suppressed, or the later failure if there was no first one
+     */
+    private static Throwable addFailure(Throwable failure, Throwable next) {
+        if (failure == null) {
+            return next;
+        }
+        failure.addSuppressed(next);
+        return failure;
+    }
+
+    /**
+     * Waits for the given future to complete
+     *
+     * @param future The future
+     * @param <T>    The result type
+     * @return The result
+     */
+    @SneakyThrows
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // Throw the exception of the task itself
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Waits until all tasks of the given executor service completed after it was shut down
+     *
+     * @param executor The executor service
+     */
+    @SneakyThrows
+    private static void awaitTermination(ExecutorService executor) {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Processes the chunks of the given presets on a fork-join pool, see {@link ChunkTask}. The calling thread is
+     * the only one that writes to the LevelDB storage: it adds the write batches of the processed chunks to a single
+     * batch, which is written whenever it exceeds the {@link #writeBatchSize}.
+     * If a chunk fails, no new chunks are started, but the chunks that were already processed are still written
+     * before the exception is thrown.
+     *
+     * @param presets     The chunk presets
+     * @param parallelism The amount of threads that process chunks
+     * @param predicate   The predicate. Returns whether the chunk should be saved or not
+     */
+    @SneakyThrows
+    private void processChunks(List<ChunkPreset> presets, int parallelism, Predicate<Chunk> predicate) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism must be at least 1, got " + parallelism);
+        }
+        // The queue is bounded, so the workers wait if the chunks are encoded faster than they are written
+        BlockingQueue<LevelDB.WriteBatch> writeQueue = new ArrayBlockingQueue<>(4 * parallelism);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        // Failures of the writing thread itself; later batches are then no longer written
+        Throwable writeFailure = null;
+        try (LevelDB.WriteBatch batch = LevelDB.createWriteBatch();
+             LevelDB.WriteBatch end = LevelDB.createWriteBatch()) {
+            pool.submit(() -> {
+                try {
+                    new ChunkTask(this, presets, 0, presets.size(), predicate, writeQueue, failure).invoke();
+                } finally {
+                    // All chunk tasks completed, so nothing is added to the queue after this
+                    writeQueue.put(end);
+                }
+                return null;
+            });
+
+            LevelDB.WriteBatch chunkBatch;
+            while ((chunkBatch = writeQueue.take()) != end) {
+                try (LevelDB.WriteBatch ignored = chunkBatch) {
+                    if (writeFailure == null) {
+                        writeChunkBatch(batch, chunkBatch);
+                    }
+                } catch (Throwable t) {
+                    // Stop the workers, but keep taking their batches so none of them waits forever
+                    writeFailure = t;
+                    failure.compareAndSet(null, t);
+                }
+            }
+            if (writeFailure == null && !batch.isEmpty()) {
+                world.getDb().write(batch);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Adds the records of a chunk batch to the given batch, and writes the batch if it is full
+     *
+     * @param batch      The batch that is written to the LevelDB storage
+     * @param chunkBatch The batch of a single chunk
+     */
+    private void writeChunkBatch(LevelDB.WriteBatch batch, LevelDB.WriteBatch chunkBatch) {
+        if (!batch.append(chunkBatch)) {
+            // The chunk batch is too large to be copied, so it is written on its own, after the chunks before it
+            if (!batch.isEmpty()) {
+                world.getDb().write(batch);
+                batch.clear();
+            }
+            world.getDb().write(chunkBatch);
+        }
+        flushIfFull(batch);
+    }
+
     /**
      * Loops through all chunk presets, loads them, applies the predicate,
      * then unloads them and, if necessary, saves them.
@@ -394,13 +949,15 @@ public class WorldData implements Closeable {
     }
 
     /**
-     * Unloads all cached chunks.
-     * When performing big world operations, this might be required (occasionally) to prevent Java heap out of memory errors
+     * Unloads all cached chunks, without saving them.
+     * To perform big world operations in a fixed amount of memory, set a {@link LruChunkCache} with a limit instead,
+     * see {@link #setChunkCache(ChunkCache)}
      */
     public void unloadChunks() {
-        cachedChunks.get(Dimension.OVERWORLD).clear();
-        cachedChunks.get(Dimension.NETHER).clear();
-        cachedChunks.get(Dimension.END).clear();
+        chunkCache.clear();
+        if (compressedChunkCache != null) {
+            compressedChunkCache.clear();
+        }
     }
 
     /**
@@ -489,6 +1046,7 @@ public class WorldData implements Closeable {
      * @return An optional containing the block if it was successfully set, empty otherwise
      */
     public Optional<Block> setBlock(Dimension dimension, int x, int y, int z, String name) {
+        checkWritable();
         // Retrieve the block's chunk X and Z
         int chunkX = x >> 4;
         int chunkZ = z >> 4;
@@ -504,9 +1062,8 @@ public class WorldData implements Closeable {
 
     /**
      * Fills an entire area of blocks in the OVERWORLD, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * Only the blocks inside the area are visited, and SubChunks that are entirely inside it are replaced by a uniform
+     * SubChunk without loading them. Every chunk is saved and unloaded after it is filled.
      *
      * @param x         The starting block X
      * @param y         The starting block Y
@@ -522,9 +1079,8 @@ public class WorldData implements Closeable {
 
     /**
      * Fills an entire area of blocks in the OVERWORLD, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * Only the blocks inside the area are visited, and SubChunks that are entirely inside it are replaced by a uniform
+     * SubChunk without loading them. Every chunk is saved and unloaded after it is filled.
      *
      * @param x    The starting block X
      * @param y    The starting block Y
@@ -540,9 +1096,8 @@ public class WorldData implements Closeable {
 
     /**
      * Fills an entire area of blocks in the given dimension, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * Only the blocks inside the area are visited, and SubChunks that are entirely inside it are replaced by a uniform
+     * SubChunk without loading them. Every chunk is saved and unloaded after it is filled.
      *
      * @param dimension The fill dimension
      * @param x         The starting block X
@@ -559,9 +1114,8 @@ public class WorldData implements Closeable {
 
     /**
      * Fills an entire area of blocks in the given dimension, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * Only the blocks inside the area are visited, and SubChunks that are entirely inside it are replaced by a uniform
+     * SubChunk without loading them. Every chunk is saved and unloaded after it is filled.
      *
      * @param dimension The fill dimension
      * @param x         The starting block X
@@ -573,6 +1127,7 @@ public class WorldData implements Closeable {
      * @param name      The name of the block to fill
      */
     public void fill(Dimension dimension, int x, int y, int z, int x2, int y2, int z2, String name) {
+        checkWritable();
         // Convert the coordinates to a min/max list
         int xMin = Math.min(x, x2);
         int xMax = Math.max(x, x2);
@@ -581,7 +1136,8 @@ public class WorldData implements Closeable {
         int zMin = Math.min(z, z2);
         int zMax = Math.max(z, z2);
 
-        // Loop through all blocks, and set the block at that position
+        // Loop through all chunks that intersect the box, and fill the blocks inside it
+        BlockState state = BlockStateRegistry.get(name);
         int minChunkX = xMin >> 4;
         int maxChunkX = xMax >> 4;
         int minChunkZ = zMin >> 4;
@@ -589,26 +1145,66 @@ public class WorldData implements Closeable {
         for (int currentChunkX = minChunkX; currentChunkX <= maxChunkX; currentChunkX++) {
             for (int currentChunkZ = minChunkZ; currentChunkZ <= maxChunkZ; currentChunkZ++) {
                 getChunk(dimension, currentChunkX, currentChunkZ).ifPresent(chunk -> {
-                    chunk.ensureChunkSpace(yMax >> 4);
-                    chunk.forEachBlock(block -> {
-                        if (block.getX() >= xMin && block.getX() <= xMax
-                                && block.getY() >= yMin && block.getY() <= yMax
-                                && block.getZ() >= zMin && block.getZ() <= zMax) {
-                            block = new Block(name, block.getX(), block.getY(), block.getZ());
-                        }
-                        return block;
-                    });
+                    fillChunk(chunk, xMin, yMin, zMin, xMax, yMax, zMax, state);
                     chunk.unload(true);
                 });
             }
         }
     }
 
+    /**
+     * Fills an entire area of blocks in the given dimension in parallel, between the given coordinates.
+     * This works like {@link #fill(Dimension, int, int, int, int, int, int, String)}, but the chunks are divided
+     * over a fork-join pool with the given parallelism, and are saved by the calling thread in batches.
+     *
+     * @param dimension   The fill dimension
+     * @param x           The starting block X
+     * @param y           The starting block Y
+     * @param z           The starting block Z
+     * @param x2          The ending block X
+     * @param y2          The ending block Y
+     * @param z2          The ending block Z
+     * @param name        The name of the block to fill
+     * @param parallelism The amount of threads that fill chunks
+     */
+    public void fill(Dimension dimension, int x, int y, int z, int x2, int y2, int z2, String name, int parallelism) {
+        checkWritable();
+        // Convert the coordinates to a min/max list
+        int xMin = Math.min(x, x2);
+        int xMax = Math.max(x, x2);
+        int yMin = Math.min(y, y2);
+        int yMax = Math.max(y, y2);
+        int zMin = Math.min(z, z2);
+        int zMax = Math.max(z, z2);
+
+        BlockState state = BlockStateRegistry.get(name);
+        processChunks(getChunkPresetsInRange(dimension, xMin >> 4, zMin >> 4, xMax >> 4, zMax >> 4), parallelism, chunk -> {
+            fillChunk(chunk, xMin, yMin, zMin, xMax, yMax, zMax, state);
+            return true;
+        });
+    }
+
+    /**
+     * Fills the part of the given area that intersects the given chunk
+     *
+     * @param chunk The chunk
+     * @param xMin  The minimum block X
+     * @param yMin  The minimum block Y
+     * @param zMin  The minimum block Z
+     * @param xMax  The maximum block X
+     * @param yMax  The maximum block Y
+     * @param zMax  The maximum block Z
+     * @param state The block state to fill
+     */
+    private static void fillChunk(Chunk chunk, int xMin, int yMin, int zMin, int xMax, int yMax, int zMax, BlockState state) {
+        chunk.fill(Math.max(xMin - 16 * chunk.getChunkX(), 0), yMin, Math.max(zMin - 16 * chunk.getChunkZ(), 0),
+                Math.min(xMax - 16 * chunk.getChunkX(), 15), yMax, Math.min(zMax - 16 * chunk.getChunkZ(), 15), state);
+    }
+
     /**
      * Replaces an entire area of blocks in the OVERWORLD, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * SubChunks whose palette does not contain the source block are skipped, and in SubChunks that are entirely inside
+     * the area only the palette is changed. Every chunk is saved and unloaded after the replacement.
      *
      * @param x      The starting block X
      * @param y      The starting block Y
@@ -625,9 +1221,8 @@ public class WorldData implements Closeable {
 
     /**
      * Replaces an entire area of blocks in the OVERWORLD, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * SubChunks whose palette does not contain the source block are skipped, and in SubChunks that are entirely inside
+     * the area only the palette is changed. Every chunk is saved and unloaded after the replacement.
      *
      * @param x      The starting block X
      * @param y      The starting block Y
@@ -644,9 +1239,8 @@ public class WorldData implements Closeable {
 
     /**
      * Replaces an entire area of blocks in the given dimension, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * SubChunks whose palette does not contain the source block are skipped, and in SubChunks that are entirely inside
+     * the area only the palette is changed. Every chunk is saved and unloaded after the replacement.
      *
      * @param dimension The replacement dimension
      * @param x         The starting block X
@@ -664,9 +1258,8 @@ public class WorldData implements Closeable {
 
     /**
      * Replaces an entire area of blocks in the given dimension, between the given coordinates.
-     * Note that this method is relatively slow for larger areas. It may also cause Java heap out of memory errors.
-     * A faster (possibly multi-threaded) solution may be created in the future. If you create one yourself, please
-     * create a PR on GitHub so people can use it!
+     * SubChunks whose palette does not contain the source block are skipped, and in SubChunks that are entirely inside
+     * the area only the palette is changed. Every chunk is saved and unloaded after the replacement.
      *
      * @param dimension The replacement dimension
      * @param x         The starting block X
@@ -679,6 +1272,7 @@ public class WorldData implements Closeable {
      * @param target    The name of the block that will be placed
      */
     public void replace(Dimension dimension, int x, int y, int z, int x2, int y2, int z2, String source, String target) {
+        checkWritable();
         // Convert the coordinates to a min/max list
         int xMin = Math.min(x, x2);
         int xMax = Math.max(x, x2);
@@ -687,7 +1281,10 @@ public class WorldData implements Closeable {
         int zMin = Math.min(z, z2);
         int zMax = Math.max(z, z2);
 
-        // Loop through all blocks, and set the block at that position
+        BlockState targetState = BlockStateRegistry.get(target);
+        Predicate<BlockState> sourcePredicate = createSourcePredicate(source);
+
+        // Loop through all chunks that intersect the box, and replace the blocks inside it
         int minChunkX = xMin >> 4;
         int maxChunkX = xMax >> 4;
         int minChunkZ = zMin >> 4;
@@ -695,22 +1292,105 @@ public class WorldData implements Closeable {
         for (int currentChunkX = minChunkX; currentChunkX <= maxChunkX; currentChunkX++) {
             for (int currentChunkZ = minChunkZ; currentChunkZ <= maxChunkZ; currentChunkZ++) {
                 getChunk(dimension, currentChunkX, currentChunkZ).ifPresent(chunk -> {
-                    chunk.ensureChunkSpace(yMax >> 4);
-                    chunk.forEachBlock(block -> {
-                        if (block.getX() >= xMin && block.getX() <= xMax
-                                && block.getY() >= yMin && block.getY() <= yMax
-                                && block.getZ() >= zMin && block.getZ() <= zMax
-                                && block.getName().equals(source)) {
-                            block = new Block(target, block.getX(), block.getY(), block.getZ());
-                        }
-                        return block;
-                    });
+                    replaceChunk(chunk, xMin, yMin, zMin, xMax, yMax, zMax, sourcePredicate, targetState);
                     chunk.unload(true);
                 });
             }
         }
     }
 
+    /**
+     * Replaces an entire area of blocks in the given dimension in parallel, between the given coordinates.
+     * This works like {@link #replace(Dimension, int, int, int, int, int, int, String, String)}, but the chunks are
+     * divided over a fork-join pool with the given parallelism, and are saved by the calling thread in batches.
+     *
+     * @param dimension   The replacement dimension
+     * @param x           The starting block X
+     * @param y           The starting block Y
+     * @param z           The starting block Z
+     * @param x2          The ending block X
+     * @param y2          The ending block Y
+     * @param z2          The ending block Z
+     * @param source      The name of the block that is to be replaced
+     * @param target      The name of the block that will be placed
+     * @param parallelism The amount of threads that replace blocks in chunks
+     */
+    public void replace(Dimension dimension, int x, int y, int z, int x2, int y2, int z2, String source, String target, int parallelism) {
+        checkWritable();
+        // Convert the coordinates to a min/max list
+        int xMin = Math.min(x, x2);
+        int xMax = Math.max(x, x2);
+        int yMin = Math.min(y, y2);
+        int yMax = Math.max(y, y2);
+        int zMin = Math.min(z, z2);
+        int zMax = Math.max(z, z2);
+
+        BlockState targetState = BlockStateRegistry.get(target);
+        processChunks(getChunkPresetsInRange(dimension, xMin >> 4, zMin >> 4, xMax >> 4, zMax >> 4), parallelism, chunk -> {
+            // The source predicate is not thread safe, so every chunk gets its own
+            replaceChunk(chunk, xMin, yMin, zMin, xMax, yMax, zMax, createSourcePredicate(source), targetState);
+            return true;
+        });
+    }
+
+    /**
+     * Replaces the blocks in the part of the given area that intersects the given chunk
+     *
+     * @param chunk  The chunk
+     * @param xMin   The minimum block X
+     * @param yMin   The minimum block Y
+     * @param zMin   The minimum block Z
+     * @param xMax   The maximum block X
+     * @param yMax   The maximum block Y
+     * @param zMax   The maximum block Z
+     * @param source Whether a block state should be replaced
+     * @param target The state of the replaced blocks
+     */
+    private static void replaceChunk(Chunk chunk, int xMin, int yMin, int zMin, int xMax, int yMax, int zMax,
+                                     Predicate<BlockState> source, BlockState target) {
+        chunk.replace(Math.max(xMin - 16 * chunk.getChunkX(), 0), yMin, Math.max(zMin - 16 * chunk.getChunkZ(), 0),
+                Math.min(xMax - 16 * chunk.getChunkX(), 15), yMax, Math.min(zMax - 16 * chunk.getChunkZ(), 15), source, target);
+    }
+
+    /**
+     * Creates a predicate that matches the block states with the given name. The name is only compared once for
+     * every block state, after which the state ID decides. The predicate is not thread safe.
+     *
+     * @param source The block name
+     * @return The predicate
+     */
+    private static Predicate<BlockState> createSourcePredicate(String source) {
+        BitSet checkedStates = new BitSet();
+        BitSet sourceStates = new BitSet();
+        return state -> {
+            if (!checkedStates.get(state.getId())) {
+                checkedStates.set(state.getId());
+                sourceStates.set(state.getId(), state.getName().equals(source));
+            }
+            return sourceStates.get(state.getId());
+        };
+    }
+
+    /**
+     * Retrieves the presets of the generated chunks in the given range
+     *
+     * @param dimension The dimension
+     * @param minChunkX The minimum chunk X
+     * @param minChunkZ The minimum chunk Z
+     * @param maxChunkX The maximum chunk X
+     * @param maxChunkZ The maximum chunk Z
+     * @return The chunk presets
+     */
+    private List<ChunkPreset> getChunkPresetsInRange(Dimension dimension, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+        List<ChunkPreset> presets = new ArrayList<>();
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                getChunkPreset(dimension, chunkX, chunkZ).ifPresent(presets::add);
+            }
+        }
+        return presets;
+    }
+
     // ==============================================================
     //               PLAYER DATA MODIFICATION METHODS
     // ==============================================================
@@ -734,6 +1414,60 @@ public class WorldData implements Closeable {
         players.put(player, key);
     }
 
+    /**
+     * Checks whether the given LevelDB key belongs to a player, player pointer or entity record
+     *
+     * @param key The LevelDB key
+     * @return Whether the record should be passed to {@link #loadPlayerOrEntity(byte[], byte[])}
+     */
+    public static boolean isPlayerOrEntityKey(byte[] key) {
+        return Arrays.equals(key, LOCAL_PLAYER_KEY) || startsWith(key, PLAYER_PREFIX) || startsWith(key, ACTOR_PREFIX);
+    }
+
+    /**
+     * Adds the player, player pointer or entity that is stored in the given LevelDB record to this world data
+     *
+     * @param key   The LevelDB key
+     * @param value The LevelDB value
+     */
+    public void loadPlayerOrEntity(byte[] key, byte[] value) {
+        if (isPlayerOrEntityKey(key)) {
+            storedKeys.add(ByteBuffer.wrap(key));
+        }
+        String keyName = new String(key);
+        if (keyName.equals("~local_player") || keyName.startsWith("player_server")) {
+            // Check if the key represents a local player or server-side player and if so, add it to the world data
+            CompoundTag compoundTag = (CompoundTag) NBTUtil.read(false, value);
+            Player player = new Player(compoundTag, key);
+            player.setDirty(false);
+            addPlayer(player, key);
+        } else if (keyName.startsWith("player")) {
+            // Check if the key represents a pointer to a non-local player and if so, add it to the world data
+            CompoundTag compoundTag = (CompoundTag) NBTUtil.read(false, value);
+            compoundTag.getByName("ServerId").ifPresent(tag -> {
+                byte[] pointer = tag.getAsString().getValue().getBytes();
+                addPlayerPointer(key, pointer);
+            });
+        } else if (keyName.startsWith("actorprefix")) {
+            Tag read = NBTUtil.read(false, value);
+            Entity entity = new UnfinishedEntity(ByteBuffer.wrap(Arrays.copyOfRange(key, 11, key.length)).getLong(), (CompoundTag) read);
+            entity.setDirty(false);
+            entities.add(entity);
+        }
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Adds a player pointer to the player pointer list. I have no clue what these are used for, but they are
      * player data, so I'm just storing them.
@@ -752,6 +1486,7 @@ public class WorldData implements Closeable {
      * @param player The Player object
      */
     public void deletePlayer(Player player) {
+        checkWritable();
         // Retrieve the key
         byte[] key = players.get(player);
         // Add all associated pointers to the scheduled deletion list
@@ -768,10 +1503,48 @@ public class WorldData implements Closeable {
         deletionKeys.add(key);
     }
 
+    /**
+     * Retrieves the LevelDB keys of all entities (actors) that are stored in the world, using a single prefix scan
+     *
+     * @return The list of all 'actorprefix' keys
+     */
+    public List<byte[]> getActorKeys() {
+        return getKeys(ACTOR_PREFIX);
+    }
+
+    /**
+     * Retrieves the LevelDB keys of all players that are stored in the world (~local_player and player_server_X),
+     * using two prefix scans
+     *
+     * @return The list of all player keys
+     */
+    public List<byte[]> getPlayerKeys() {
+        List<byte[]> keys = getKeys(LOCAL_PLAYER_KEY);
+        keys.addAll(getKeys(SERVER_PLAYER_PREFIX));
+        return keys;
+    }
+
+    /**
+     * Retrieves all LevelDB keys that start with the given prefix
+     *
+     * @param prefix The key prefix
+     * @return The list of keys
+     */
+    private List<byte[]> getKeys(byte[] prefix) {
+        List<byte[]> keys = new ArrayList<>();
+        try (LevelDB.Iterator iterator = reader.prefixKeyIterator(prefix, World.ITERATOR_BUFFER_SIZE)) {
+            while (iterator.next()) {
+                keys.add(iterator.key());
+            }
+        }
+        return keys;
+    }
+
     /**
      * Deletes the player data and pointers from all currently loaded players.
      */
     public void deleteAllPlayers() {
+        checkWritable();
         // Adds all player keys and pointer keys to the scheduled deletion list
         deletionKeys.addAll(players.values());
         deletionKeys.addAll(playerPointers.keySet());
@@ -816,6 +1589,7 @@ public class WorldData implements Closeable {
      * @param chunkZ    The chunk Z
      */
     public void deleteChunk(Dimension dimension, int chunkX, int chunkZ) {
+        checkWritable();
         // If chunk is not generated, we don't have to remove it
         if (!isGenerated(dimension, chunkX, chunkZ)) {
             return;
@@ -829,12 +1603,9 @@ public class WorldData implements Closeable {
         // Add all chunk related keys to deletionKeys
         deletionKeys.addAll(Chunks.getDeletionKeys(chunkPreset));
         // If chunk was already cached, we also need to remove the cache
-        if (isCached(dimension, chunkX, chunkZ)) {
-            cachedChunks.get(dimension).get(chunkX).remove(chunkZ);
-            // If the new map is empty, remove it entirely from the chunk map
-            if (cachedChunks.get(dimension).get(chunkX).isEmpty()) {
-                cachedChunks.get(dimension).remove(chunkX);
-            }
+        chunkCache.remove(dimension, chunkX, chunkZ);
+        if (compressedChunkCache != null) {
+            compressedChunkCache.remove(dimension, chunkX, chunkZ);
         }
     }
 }
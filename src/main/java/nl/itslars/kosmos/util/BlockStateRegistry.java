@@ -0,0 +1,116 @@
+package nl.itslars.kosmos.util;
+
+import nl.itslars.kosmos.objects.world.Block;
+import nl.itslars.kosmos.objects.world.BlockState;
+import nl.itslars.mcpenbt.NBTUtil;
+import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.mcpenbt.tags.IntTag;
+import nl.itslars.mcpenbt.tags.StringTag;
+import nl.itslars.mcpenbt.tags.Tag;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Utility class that interns {@link BlockState} objects. Every distinct combination of block name, states and version
+ * is registered once, and is given a dense ID. States are identified by their NBT serialization, which is cached in
+ * the state so palettes can be written without serializing them again.
+ * The registry is shared by all worlds, and is thread safe.
+ */
+public class BlockStateRegistry {
+
+    // All registered states, mapped by their NBT serialization
+    private static final Map<ByteBuffer, BlockState> STATES = new ConcurrentHashMap<>();
+    // The default states of block names, that have no states and the default version
+    private static final Map<String, BlockState> DEFAULT_STATES = new ConcurrentHashMap<>();
+    // All registered states, indexed by their ID
+    private static final List<BlockState> BY_ID = new ArrayList<>();
+
+    private BlockStateRegistry() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Retrieves the default state of the block with the given name: no states, and the default block version
+     * @param name The namespaced ID of the block
+     * @return The interned block state
+     */
+    public static BlockState get(String name) {
+        return DEFAULT_STATES.computeIfAbsent(name,
+                key -> get(key, new CompoundTag("states", new ArrayList<>()), Block.DEFAULT_BLOCK_VERSION));
+    }
+
+    /**
+     * Retrieves the state with the given name, states and version
+     * @param name The namespaced ID of the block
+     * @param states The 'states' compound tag
+     * @param version The block version
+     * @return The interned block state
+     */
+    public static BlockState get(String name, CompoundTag states, int version) {
+        List<Tag> tags = Arrays.asList(states, new StringTag("name", name), new IntTag("version", version));
+        byte[] serialized = NBTUtil.write(new CompoundTag("", tags));
+        BlockState state = STATES.get(ByteBuffer.wrap(serialized));
+        if (state != null) {
+            return state;
+        }
+        synchronized (BY_ID) {
+            // Check again, another thread may have registered the state in the meantime
+            state = STATES.get(ByteBuffer.wrap(serialized));
+            if (state == null) {
+                state = new BlockState(BY_ID.size(), name, states, version, serialized);
+                BY_ID.add(state);
+                STATES.put(ByteBuffer.wrap(serialized), state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Retrieves the state that the given palette {@link CompoundTag} represents. Palette entries of older worlds and
+     * worlds converted from Java might only have a name, in which case the default state of that name is returned.
+     * @param compoundTag The palette {@link CompoundTag}
+     * @return The interned block state
+     */
+    public static BlockState get(CompoundTag compoundTag) {
+        Optional<Tag> statesTag = compoundTag.getByName("states");
+        Optional<Tag> nameTag = compoundTag.getByName("name");
+        Optional<Tag> versionTag = compoundTag.getByName("version");
+        if (statesTag.isPresent() && nameTag.isPresent() && versionTag.isPresent()) {
+            CompoundTag states = statesTag.get().getAsCompound();
+            String name = nameTag.get().getAsString().getValue();
+            int version = versionTag.get().getAsInt().getValue();
+            return get(name, states, version);
+        } else if (nameTag.isPresent()) {
+            return get(nameTag.get().getAsString().getValue());
+        } else {
+            throw new IllegalStateException("Failed to deserialize the block, a parsing error occured.");
+        }
+    }
+
+    /**
+     * Retrieves the state with the given ID
+     * @param id The state ID
+     * @return The interned block state
+     */
+    public static BlockState get(int id) {
+        synchronized (BY_ID) {
+            return BY_ID.get(id);
+        }
+    }
+
+    /**
+     * Retrieves the amount of registered states
+     * @return The amount of states
+     */
+    public static int size() {
+        synchronized (BY_ID) {
+            return BY_ID.size();
+        }
+    }
+}
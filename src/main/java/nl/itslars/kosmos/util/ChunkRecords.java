@@ -0,0 +1,163 @@
+package nl.itslars.kosmos.util;
+
+import nl.itslars.kosmos.enums.Dimension;
+import nl.itslars.kosmos.leveldb.LevelDB;
+import nl.itslars.kosmos.leveldb.LevelDBReader;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Class holding the raw LevelDB records of a single chunk, grouped by {@link LevelChunkTag}.
+ * The records are either fetched at once with a single prefix lookup, after which the chunk loaders decode them
+ * without going back to the LevelDB storage, or only their keys are listed and every value is fetched when it is
+ * requested.
+ */
+public class ChunkRecords {
+
+    // The size of the buffer that the keys of a chunk are transferred in
+    private static final int KEY_BUFFER_SIZE = 4096;
+
+    // The LevelDB storage that values are fetched from when requested, or null if all values were fetched at once
+    private final LevelDBReader reader;
+    // The keys of the records of the chunk, except for the SubChunks
+    private final Map<LevelChunkTag, byte[]> keys = new EnumMap<>(LevelChunkTag.class);
+    // The keys of the SubChunk records, mapped by their SubChunk height
+    private final Map<Byte, byte[]> subChunkKeys = new TreeMap<>();
+    // The records of the chunk that were fetched at once, except for the SubChunks
+    private final Map<LevelChunkTag, byte[]> records = new EnumMap<>(LevelChunkTag.class);
+    // The SubChunk records that were fetched at once, mapped by their SubChunk height
+    private final Map<Byte, byte[]> subChunks = new TreeMap<>();
+
+    private ChunkRecords(LevelDBReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Creates an empty set of records, to which the records of a chunk are added together with their values, e.g.
+     * while they are read by an iterator
+     * @return The empty records
+     */
+    public static ChunkRecords create() {
+        return new ChunkRecords(null);
+    }
+
+    /**
+     * Fetches all records of the given chunk from the LevelDB storage, using a single native call
+     * @param db The LevelDB storage or snapshot
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @param dimension The chunk dimension
+     * @return The fetched records
+     */
+    public static ChunkRecords fetch(LevelDBReader db, int chunkX, int chunkZ, Dimension dimension) {
+        ChunkRecords result = new ChunkRecords(null);
+        for (LevelDB.Entry entry : db.getPrefix(Chunks.generateChunkKeyPrefix(chunkX, chunkZ, dimension))) {
+            result.add(entry.getKey(), entry.getValue(), dimension);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the keys of all records of the given chunk, without transferring their values. The value of a record is
+     * fetched from the LevelDB storage when it is requested.
+     * @param db The LevelDB storage or snapshot, which should stay open while the records are used
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @param dimension The chunk dimension
+     * @return The listed records
+     */
+    public static ChunkRecords list(LevelDBReader db, int chunkX, int chunkZ, Dimension dimension) {
+        ChunkRecords result = new ChunkRecords(db);
+        try (LevelDB.Iterator iterator = db.prefixKeyIterator(Chunks.generateChunkKeyPrefix(chunkX, chunkZ, dimension), KEY_BUFFER_SIZE)) {
+            while (iterator.next()) {
+                result.add(iterator.key(), null, dimension);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a record to this set, if the key is a chunk record of the given dimension
+     * @param key The LevelDB key
+     * @param value The LevelDB value, or null if it should be fetched when it is requested
+     * @param dimension The chunk dimension
+     */
+    public void add(byte[] key, byte[] value, Dimension dimension) {
+        if (!Chunks.isChunkRecordKey(key, dimension)) {
+            return;
+        }
+        int tagIndex = dimension == Dimension.OVERWORLD ? 8 : 12;
+        LevelChunkTag tag = LevelChunkTag.fromId(key[tagIndex]);
+        if (tag == LevelChunkTag.SubChunkPrefix) {
+            subChunkKeys.put(key[tagIndex + 1], key);
+            if (value != null) {
+                subChunks.put(key[tagIndex + 1], value);
+            }
+        } else if (tag != null) {
+            keys.put(tag, key);
+            if (value != null) {
+                records.put(tag, value);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the record with the given tag
+     * @param tag The record type
+     * @return The record value, or null if the chunk has no such record
+     */
+    public byte[] get(LevelChunkTag tag) {
+        byte[] value = records.get(tag);
+        if (value == null && reader != null && keys.containsKey(tag)) {
+            value = reader.get(keys.get(tag));
+        }
+        return value;
+    }
+
+    /**
+     * Retrieves the SubChunk record at the given height
+     * @param subChunkHeight The SubChunk height
+     * @return The record value, or null if the chunk has no SubChunk at that height
+     */
+    public byte[] getSubChunk(byte subChunkHeight) {
+        byte[] value = subChunks.get(subChunkHeight);
+        if (value == null && reader != null && subChunkKeys.containsKey(subChunkHeight)) {
+            value = reader.get(subChunkKeys.get(subChunkHeight));
+        }
+        return value;
+    }
+
+    /**
+     * Retrieves the heights of all stored SubChunks, in ascending order
+     * @return The set of SubChunk heights
+     */
+    public Set<Byte> getSubChunkHeights() {
+        return subChunkKeys.keySet();
+    }
+
+    /**
+     * Retrieves all SubChunk records, ordered by SubChunk height
+     * @return The map of SubChunk heights to SubChunk record values
+     */
+    public Map<Byte, byte[]> getSubChunks() {
+        if (reader == null) {
+            return subChunks;
+        }
+        Map<Byte, byte[]> result = new LinkedHashMap<>();
+        for (byte subChunkHeight : subChunkKeys.keySet()) {
+            byte[] value = getSubChunk(subChunkHeight);
+            if (value != null) {
+                result.put(subChunkHeight, value);
+            }
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty() && subChunkKeys.isEmpty();
+    }
+}
@@ -2,21 +2,24 @@ package nl.itslars.kosmos.util;
 
 import lombok.SneakyThrows;
 import nl.itslars.kosmos.leveldb.LevelDB;
+import nl.itslars.kosmos.leveldb.LevelDBReader;
 import nl.itslars.kosmos.enums.Dimension;
 import nl.itslars.kosmos.objects.entity.Entity;
 import nl.itslars.kosmos.objects.entity.TileEntity;
 import nl.itslars.kosmos.objects.world.*;
 import nl.itslars.mcpenbt.NBTUtil;
 import nl.itslars.mcpenbt.tags.CompoundTag;
-import nl.itslars.mcpenbt.tags.Tag;
-import org.apache.commons.compress.utils.BitInputStream;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
 
 /**
  * Utility class for saving and loading chunks to and from the LevelDB storage
@@ -49,40 +52,67 @@ public class Chunks {
     }
 
     /**
-     * Loads a chunk from the given preset from the LevelDB storage
+     * Loads a chunk from the given preset from the LevelDB storage.
+     * Only the keys of the chunk records are listed. Every record is fetched and decoded when the part of the chunk
+     * data it contains is first accessed, so touching a single SubChunk only decodes that SubChunk.
      * @param preset The chunk preset
      * @return The newly loaded chunks
      */
     public static Chunk loadChunk(ChunkPreset preset) {
+        return loadChunk(preset, ChunkRecords.list(preset.getWorld().getReader(), preset.getX(), preset.getZ(), preset.getDimension()));
+    }
+
+    /**
+     * Loads a chunk from the given preset from records that were read before, e.g. by an iterator over the LevelDB
+     * storage. The legacy entities of the chunk are loaded into the world.
+     * @param preset The chunk preset
+     * @param records All records of the chunk
+     * @return The newly loaded chunk
+     */
+    public static Chunk loadChunk(ChunkPreset preset, ChunkRecords records) {
         // Create a new chunk instance
-        loadChunkEntities(preset);
+        loadChunkEntities(records, preset);
+        Set<Short> storedSubChunks = new TreeSet<>();
+        records.getSubChunkHeights().forEach(subChunkHeight -> storedSubChunks.add((short) subChunkHeight));
+        return restoreChunk(preset, records, new HashMap<>(), storedSubChunks);
+    }
+
+    /**
+     * Creates a chunk from records that were listed before, e.g. by a chunk that was evicted from the cache.
+     * The entities of the chunk are not loaded again.
+     * @param preset The chunk preset
+     * @param records The records of the chunk
+     * @param compressedSubChunks SubChunks that are decoded from their compressed form instead of their record,
+     *                            mapped by their height, see {@link SubChunk#compress()}
+     * @param storedSubChunks The heights of all SubChunks of the chunk
+     * @return The chunk
+     */
+    public static Chunk restoreChunk(ChunkPreset preset, ChunkRecords records, Map<Short, byte[]> compressedSubChunks, Set<Short> storedSubChunks) {
         return new Chunk(preset.getWorld(), preset.getX(), preset.getZ(), preset.getDimension(),
-                (db, chunk) -> {
-            loadChunkTileEntities(db, chunk);
-            loadChunkSubChunks(db, chunk);
-            linkTileEntities(chunk);
-        }, Chunks::loadChunkData2D);
+                chunk -> loadChunkTileEntities(records, chunk),
+                (chunk, subChunkHeight) -> {
+                    byte[] compressed = compressedSubChunks.remove(subChunkHeight);
+                    if (compressed != null) {
+                        return SubChunk.decompress(compressed, chunk, subChunkHeight);
+                    }
+                    return loadSubChunk(records.getSubChunk((byte) (short) subChunkHeight), chunk, subChunkHeight);
+                },
+                chunk -> loadChunkData2D(records, chunk),
+                storedSubChunks,
+                records);
     }
 
     /**
      * Load the 2D elevation and biome data into the chunk
-     * @param db The LevelDB storage
+     * @param records The records of the chunk
      * @param preset The chunk object
      */
-    private static void loadChunkData2D(LevelDB db, Chunk preset) {
-        // Generate the level DB key
-        byte[] levelDBKey = generateLevelDBKey(preset.getChunkX(), preset.getChunkZ(), preset.getDimension(), LevelChunkTag.Data2D, (byte) 0);
-        boolean oldFormat = db.has(levelDBKey);
-        byte[] value = null;
-        // Check for new format
-        if (oldFormat) {
-            value = db.get(levelDBKey);
-        }
-        else {
-            levelDBKey = generateLevelDBKey(preset.getChunkX(), preset.getChunkZ(), preset.getDimension(), LevelChunkTag.Data3D, (byte) 0);
-            if (db.has(levelDBKey)) {
-                value = db.get(levelDBKey);
-            }
+    private static void loadChunkData2D(ChunkRecords records, Chunk preset) {
+        // Check for the old format first, then for the new format
+        byte[] value = records.get(LevelChunkTag.Data2D);
+        boolean oldFormat = value != null;
+        if (!oldFormat) {
+            value = records.get(LevelChunkTag.Data3D);
         }
         // When both are absent, skip the loading
         if (value == null) {
@@ -108,18 +138,16 @@ public class Chunks {
 
     /**
      * Load all tile entities that are stored for this chunk, into the chunk
-     * @param db The LevelDB storage
+     * @param records The records of the chunk
      * @param preset The chunk object
      */
     @SneakyThrows
-    private static void loadChunkTileEntities(LevelDB db, Chunk preset) {
-        // Generate the level DB key
-        byte[] levelDBKey = generateLevelDBKey(preset.getChunkX(), preset.getChunkZ(), preset.getDimension(), LevelChunkTag.BlockEntity, (byte) 0);
+    private static void loadChunkTileEntities(ChunkRecords records, Chunk preset) {
+        byte[] value = records.get(LevelChunkTag.BlockEntity);
         // Return if no tile entities exist for this chunk
-        if (!db.has(levelDBKey)) {
+        if (value == null) {
             return;
         }
-        byte[] value = db.get(levelDBKey);
 
         // Loop through and parse all tile entities that the value array contains.
         InputStream stream = new ByteArrayInputStream(value);
@@ -131,190 +159,140 @@ public class Chunks {
 
     /**
      * Load all entities that are stored for this chunk in a legacy format, into the chunk
+     * @param records The records of the chunk
      * @param preset The chunk preset object
      */
     @SneakyThrows
-    private static void loadChunkEntities(ChunkPreset preset) {
-        LevelDB db = preset.getWorld().getWorld().getDb();
-        // Generate the level DB key
-        byte[] levelDBKey = generateLevelDBKey(preset.getX(), preset.getZ(), preset.getDimension(), LevelChunkTag.Entity, (byte) 0);
+    private static void loadChunkEntities(ChunkRecords records, ChunkPreset preset) {
+        byte[] value = records.get(LevelChunkTag.Entity);
         // Return if no entities exist for this chunk
-        if (!db.has(levelDBKey)) {
+        if (value == null) {
             return;
         }
-        byte[] value = db.get(levelDBKey);
 
         // Loop through and parse all entities that the value array contains.
         InputStream stream = new ByteArrayInputStream(value);
         while (stream.available() != 0) {
             CompoundTag entity = (CompoundTag) NBTUtil.read(false, stream);
-            preset.getWorld().getEntities().add(Entities.createEntity(entity));
+            Entity loaded = Entities.createEntity(entity);
+            // The entity is the same as the stored one
+            loaded.setDirty(false);
+            // Chunks may be loaded by multiple threads at the same time
+            List<Entity> entities = preset.getWorld().getEntities();
+            synchronized (entities) {
+                entities.add(loaded);
+            }
         }
     }
 
     /**
      * Most difficult part of chunk storage, the SubChunks. Relevant storage information is at:
      * {@see <a href="https://minecraft.gamepedia.com/Bedrock_Edition_level_format">Bedrock Level Format</a>}
-     * Loads all SubChunks that are stored for this chunk, into the chunk
-     * @param db The LevelDB storage
+     * Decodes a single SubChunk record of a chunk
+     * @param value The SubChunk record value, or null if the SubChunk is not stored
      * @param preset The chunk object
+     * @param subChunkHeight The SubChunk height
+     * @return The decoded SubChunk, or null if it was not stored or could not be decoded
      */
-    private static void loadChunkSubChunks(LevelDB db, Chunk preset) {
-        // Loop through all possible subchunks
-        for (byte subChunkHeight = -4; subChunkHeight < 16; subChunkHeight++) {
-            // Generate the level DB key
-            byte[] levelDBKey = generateLevelDBKey(preset.getChunkX(), preset.getChunkZ(), preset.getDimension(), LevelChunkTag.SubChunkPrefix, subChunkHeight);
+    private static SubChunk loadSubChunk(byte[] value, Chunk preset, short subChunkHeight) {
+        if (value == null) {
+            return null;
+        }
+        // Identical records share their decoded blocks, so they are only decoded once
+        SubChunk pooled = SubChunkPool.get(value, preset, subChunkHeight);
+        if (pooled != null) {
+            return pooled;
+        }
 
-            // If the value didn't exist, the top subchunk is reached, and we can stop.
-            if (!db.has(levelDBKey)) {
-                continue;
+        // Create a new InputStream, containing the value data
+        try (InputStream inputStream = new ByteArrayInputStream(value)) {
+            // Read the subchunk version
+            int version = inputStream.read();
+            // Read the amount of storage sections in this subchunk (1 default, 2 for water logging)
+            int storageCount = 1;
+            if (version >= 8) {
+                storageCount = inputStream.read();
             }
-            byte[] value = db.get(levelDBKey);
-
-            // Create a new InputStream, containing the value data
-            try (InputStream inputStream = new ByteArrayInputStream(value)) {
-                // Read the subchunk version
-                int version = inputStream.read();
-                // Read the amount of storage sections in this subchunk (1 default, 2 for water logging)
-                int storageCount = 1;
-                if (version >= 8) {
-                    storageCount = inputStream.read();
-                }
-                if (version >= 9) {
-                    inputStream.read();
+            if (version >= 9) {
+                inputStream.read();
+            }
+            SerializedSubChunk subChunk = null;
+            // Loop through all storage sections
+            for (int blockStorage = 0; blockStorage < storageCount; blockStorage++) {
+                // Read the storage version
+                byte storageVersion = (byte) inputStream.read();
+                // Parse the bits per block
+                int bitsPerBlock = storageVersion >> 1;
+
+                // Read all little endian words of this storage section straight from the value.
+                // They are kept packed as they are.
+                int wordCount = PaletteCodec.getWordCount(bitsPerBlock);
+                int offset = value.length - inputStream.available();
+                if (inputStream.skip(wordCount * 4L) != wordCount * 4L) {
+                    throw new EOFException("SubChunk " + subChunkHeight + " ended in the middle of a block storage");
                 }
-                SubChunk resultingSubChunk = null;
-                // Loop through all storage sections
-                for (int blockStorage = 0; blockStorage < storageCount; blockStorage++) {
-                    // Read the storage version
-                    byte storageVersion = (byte) inputStream.read();
-                    // Parse the bits per block
-                    int bitsPerBlock = storageVersion >> 1;
-                    // Parse the blocks per word
-                    int blocksPerWord = (int) Math.floor(32.0 / bitsPerBlock);
-                    // Find the amount of words
-                    int wordCount = (int) Math.ceil(4096.0 / blocksPerWord);
-                    // Whether padding was added at the end of each word
-                    boolean hasPadding = 32 % blocksPerWord != 0;
-
-                    // Integer containing the current position
-                    int position = 0;
-                    // BitInputStream containing all little endian integers from all words in this storage section
-                    BitInputStream bitInputStream = new BitInputStream(inputStream, ByteOrder.LITTLE_ENDIAN);
-
-                    // initialize a new blocks array
-                    short[][][] blocks = new short[16][16][16];
-
-                    // Loop through all words
-                    for (int wordIndex = 0; wordIndex < wordCount; wordIndex++) {
-                        // Loop through all blocks in the current word
-                        for (int blockIndex = 0; blockIndex < blocksPerWord; blockIndex++) {
-                            long result = bitInputStream.readBits(bitsPerBlock);
-                            // This is not an implementation mistake. Because of words with padding,
-                            // it can happen that the position becomes too large.
-                            if (position >= 4096) {
-                                continue;
-                            }
-
-                            // Retrieve x, y and z coordinate
-                            int x = position / 256;
-                            int y = position % 16;
-                            int z = (position % 256) / 16;
-
-                            // Set the result for the block location
-                            blocks[x][y][z] = (short) result;
-                            position++;
-                        }
-
-                        // If padding was added at the end of this word (always 2 bits), read it
-                        if (hasPadding) {
-                            bitInputStream.readBits(2);
-                        }
-                    }
+                int[] words = PaletteCodec.readWords(value, offset, wordCount);
 
-                    // Read the amount of palettes in this storage section
-                    int paletteSize = ByteBuffer
+                // Read the amount of palettes in this storage section. A storage with 0 bits per block has no such
+                // field, and always has a single palette.
+                int paletteSize = 1;
+                if (bitsPerBlock != 0) {
+                    paletteSize = ByteBuffer
                             .wrap(new byte[]{(byte) inputStream.read(), (byte) inputStream.read(), (byte) inputStream.read(), (byte) inputStream.read()})
                             .order(ByteOrder.LITTLE_ENDIAN)
                             .getInt();
+                }
 
-                    // Load and parse all palettes in this storage section
-                    List<CompoundTag> palette = new ArrayList<>();
-                    for (int i = 0; i < paletteSize; i++) {
-                        palette.add((CompoundTag) NBTUtil.read(false, inputStream));
-                    }
+                // Load and parse all palettes in this storage section, and intern them as block states
+                List<BlockState> palette = new ArrayList<>();
+                for (int i = 0; i < paletteSize; i++) {
+                    palette.add(BlockStateRegistry.get((CompoundTag) NBTUtil.read(false, inputStream)));
+                }
 
-                    // Check if we are in the first block storage (0 = world, 1 = water logging)
-                    if (blockStorage == 0) {
-                        // If we are in the first block storage, create and initialize a new SubChunk
-                        SerializedSubChunk subChunk = new SerializedSubChunk(preset, subChunkHeight, blocks, palette);
-                        resultingSubChunk = SubChunk.deserialize(subChunk);
-                        preset.getSubChunks().put((short) subChunkHeight, resultingSubChunk);
-                    } else if (resultingSubChunk != null && !palette.isEmpty()) {
-                        // If we are in the second block storage, for waterlogged blocks, parse all waterlogged blocks
-
-                        // Check whether the 0-index in the palette is air or water
-                        Optional<Tag> paletteOptional = palette.get(0).getByName("name");
-                        if (!paletteOptional.isPresent()) {
-                            throw new IllegalStateException("An error occurred while attempting to parse the waterlogged block palette");
-                        }
-                        boolean zeroIsAir = paletteOptional.get().getAsString().getValue().equals("minecraft:air");
-                        // For all blocks, parse their waterlogged state.
-                        for (int x = 0; x < 16; x++) {
-                            for (int y = 0; y < 16; y++) {
-                                for (int z = 0; z < 16; z++) {
-                                    short block = blocks[x][y][z];
-                                    resultingSubChunk.getBlocks()[x][y][z].setWaterLogged((zeroIsAir && block == 1) || (!zeroIsAir && block == 0));
-                                }
-                            }
-                        }
-                    }
+                // Check if we are in the first block storage (0 = world, 1 = water logging)
+                BlockStorage storage = new BlockStorage(palette, bitsPerBlock, words);
+                if (blockStorage == 0) {
+                    subChunk = new SerializedSubChunk(preset, subChunkHeight, storage);
+                } else if (subChunk != null) {
+                    subChunk.setWaterLoggedStorage(storage);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            // Create and initialize a new SubChunk
+            if (subChunk != null) {
+                SubChunk result = SubChunk.deserialize(subChunk);
+                SubChunkPool.put(value, result);
+                return result;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return null;
     }
 
     /**
-     * Links TileEntities to Blocks
-     * @param chunk The chunk object
-     */
-    private static void linkTileEntities(Chunk chunk) {
-        for (TileEntity tileEntity : chunk.getTileEntities()) {
-            int localX = tileEntity.getX() % 16;
-            int localZ = tileEntity.getZ() % 16;
-            if (localX < 0) localX += 16;
-            if (localZ < 0) localZ += 16;
-            chunk.getBlock(localX, tileEntity.getY(), localZ).ifPresent(block -> {
-                block.setTileEntity(tileEntity);
-            });
-        }
-    }
-
-    /**
-     * Saves the given chunk to the LevelDB storage
-     * @param db The LevelDB storage
+     * Adds the records of the given chunk to a write batch. The batch should be written to the LevelDB storage
+     * afterwards, see {@link LevelDB#write(LevelDB.WriteBatch)}.
+     * @param batch The write batch
      * @param chunk The chunk object
-     * @param terrainLoaded whether the terrain was loaded and should be saved
-     * @param data2DLoaded whether the data2D was loaded and should be saved
+     * @param saveTileEntities whether the tile entities were changed and should be saved
+     * @param saveData2D whether the data2D was changed and should be saved
      */
-    public static void saveChunk(LevelDB db, Chunk chunk, boolean terrainLoaded, boolean data2DLoaded) {
-        if (data2DLoaded) {
-            saveChunkData2D(db, chunk);
+    public static void saveChunk(LevelDB.WriteBatch batch, Chunk chunk, boolean saveTileEntities, boolean saveData2D) {
+        if (saveData2D) {
+            saveChunkData2D(batch, chunk);
         }
-        if (terrainLoaded) {
-            saveChunkTileEntities(db, chunk);
-            saveChunkSubChunks(db, chunk);
+        if (saveTileEntities) {
+            saveChunkTileEntities(batch, chunk);
         }
+        saveChunkSubChunks(batch, chunk);
     }
 
     /**
-     * Saves the 2d chunk data (elevation, biomes) from the given chunk to the LevelDB storage
-     * @param db The LevelDB storage
+     * Adds the 2d chunk data (elevation, biomes) from the given chunk to the write batch
+     * @param batch The write batch
      * @param chunk The chunk object
      */
-    private static void saveChunkData2D(LevelDB db, Chunk chunk) {
+    private static void saveChunkData2D(LevelDB.WriteBatch batch, Chunk chunk) {
         // Generate the level DB key
         byte[] levelDBKey = generateLevelDBKey(chunk.getChunkX(), chunk.getChunkZ(), chunk.getDimension(), LevelChunkTag.Data2D, (byte) 0);
         byte[] value = new byte[768];
@@ -325,23 +303,24 @@ public class Chunks {
                 int elevationIndex = 2 * (x + z * 16);
                 int biomeIndex = 512 + x + z * 16;
 
-                value[elevationIndex] = (byte) (chunk.getElevation()[x][z] & 0xff);
-                value[elevationIndex + 1] = (byte) ((chunk.getElevation()[x][z] >> 8) & 0xff);
-                value[biomeIndex] = chunk.getBiomes()[x][z];
+                value[elevationIndex] = (byte) (chunk.getElevation(x, z) & 0xff);
+                value[elevationIndex + 1] = (byte) ((chunk.getElevation(x, z) >> 8) & 0xff);
+                value[biomeIndex] = chunk.getBiome(x, z);
             }
         }
 
-        // Save to DB
-        db.put(levelDBKey, value);
+        // Add to the batch, and remember the key in case the chunk is restored from its records
+        batch.put(levelDBKey, value);
+        chunk.getRecords().add(levelDBKey, null, chunk.getDimension());
     }
 
     /**
-     * Saves the tile entity data from the given chunk to the LevelDB storage
-     * @param db The LevelDB storage
+     * Adds the tile entity data from the given chunk to the write batch
+     * @param batch The write batch
      * @param chunk The chunk object
      */
     @SneakyThrows
-    private static void saveChunkTileEntities(LevelDB db, Chunk chunk) {
+    private static void saveChunkTileEntities(LevelDB.WriteBatch batch, Chunk chunk) {
         // Generate the level DB key
         byte[] levelDBKey = generateLevelDBKey(chunk.getChunkX(), chunk.getChunkZ(), chunk.getDimension(), LevelChunkTag.BlockEntity, (byte) 0);
 
@@ -352,21 +331,29 @@ public class Chunks {
             outputStream.write(bytes);
         }
 
-        // Save to DB
-        db.put(levelDBKey, outputStream.toByteArray());
+        // Add to the batch, and remember the key in case the chunk is restored from its records
+        batch.put(levelDBKey, outputStream.toByteArray());
+        chunk.getRecords().add(levelDBKey, null, chunk.getDimension());
     }
 
     /**
      * Most difficult part of chunk storage, the SubChunks. Relevant storage information is at:
      * {@see <a href="https://minecraft.gamepedia.com/Bedrock_Edition_level_format">Bedrock Level Format</a>}
-     * Saves all SubChunks that are stored in this chunk to the LevelDB storage
-     * @param db The LevelDB storage
+     * Adds all SubChunks of this chunk that were created or changed to the write batch. SubChunks that were never
+     * accessed, only read, or changed back to their stored blocks are unchanged, so they are not written again.
+     * Their stored value is kept byte for byte, including SubChunk versions and block storages that are not decoded.
+     * @param batch The write batch
      * @param chunk The chunk object
      */
     @SneakyThrows
-    private static void saveChunkSubChunks(LevelDB db, Chunk chunk) {
-        // Loop through all stored subchunks
-        chunk.getSubChunks().forEach((subChunkHeight, deserializedSubChunk) -> {
+    private static void saveChunkSubChunks(LevelDB.WriteBatch batch, Chunk chunk) {
+        // Loop through all loaded subchunks
+        chunk.getLoadedSubChunks().forEach((subChunkHeight, deserializedSubChunk) -> {
+            // An unchanged SubChunk is left as it is stored, so it is not re-encoded and an identical value is not
+            // written into the LevelDB storage again
+            if (deserializedSubChunk.isUnchanged()) {
+                return;
+            }
             SerializedSubChunk subChunk = deserializedSubChunk.serialize();
             // Generate the level DB key
             byte[] levelDBKey = generateLevelDBKey(chunk.getChunkX(), chunk.getChunkZ(), chunk.getDimension(), LevelChunkTag.SubChunkPrefix, (byte) ((short) subChunkHeight));
@@ -375,84 +362,101 @@ public class Chunks {
             // Write version (8)
             outputStream.write(8);
             // Write the amount of storages (1 by default, 2 if water logging data is present)
-            int storageCount = subChunk.getWaterLoggedPalette() == null ? 1 : 2;
+            int storageCount = subChunk.getWaterLoggedStorage() == null ? 1 : 2;
             outputStream.write(storageCount);
 
             // Add the default block storage section to the output stream
-            addBlockStorageToOutputStream(outputStream, subChunk.getPalette(), subChunk.getPaletteIndices());
+            addBlockStorageToOutputStream(outputStream, subChunk.getStorage());
             if (storageCount == 2) {
                 // Add the water logging block storage section to the output stream
-                addBlockStorageToOutputStream(outputStream, subChunk.getWaterLoggedPalette(), subChunk.getWaterLoggedIndices());
+                addBlockStorageToOutputStream(outputStream, subChunk.getWaterLoggedStorage());
             }
 
-            // Save to DB
+            // Add to the batch
             byte[] value = outputStream.toByteArray();
-            db.put(levelDBKey, value);
+            batch.put(levelDBKey, value);
+            chunk.getRecords().add(levelDBKey, null, chunk.getDimension());
         });
     }
 
     /**
-     * Writes an entire block storage section for the given palette and palette indices to the given output stream.
+     * Writes an entire block storage section to the given output stream. The words of the block storage are written
+     * as they are, since they are already packed the way Minecraft Bedrock stores them.
      * @param outputStream The output stream to write to
-     * @param palette The palette
-     * @param paletteIndices The palette indices
+     * @param storage The block storage
      */
     @SneakyThrows
-    private static void addBlockStorageToOutputStream(OutputStream outputStream, List<CompoundTag> palette, short[][][] paletteIndices) {
-        int paletteCount = palette.size();
-        // Parse the amount of bits that are required to store the current set of blocks
-        int bitsPerBlock = (int) Math.max(Math.ceil(Math.log(paletteCount) / Math.log(2)), 1);
-        for (int i : new byte[]{1, 2, 3, 4, 5, 6, 8, 16}) {
-            if (i >= bitsPerBlock) {
-                bitsPerBlock = i;
-                break;
-            }
-        }
-
+    private static void addBlockStorageToOutputStream(OutputStream outputStream, BlockStorage storage) {
         // Calculate the storage version
-        byte storageVersion = (byte) (bitsPerBlock << 1);
+        byte storageVersion = (byte) (storage.getBitsPerBlock() << 1);
         outputStream.write(storageVersion);
-        // Calculate the amount of blocks per word and the word count
-        int blocksPerWord = (int) Math.floor(32.0 / bitsPerBlock);
-        int wordCount = (int) Math.ceil(4096.0 / blocksPerWord);
-
-        // Loop through all words
-        int position = 0;
-        for (int wordIndex = 0; wordIndex < wordCount; wordIndex++) {
-            int word = 0;
-            int index = 0;
-
-            // Difficult piece of logic. Loop backwards through the word size
-            for (int blockIndex = blocksPerWord - 1; blockIndex >= 0; blockIndex--) {
-                // Check if our position is still correct. If not, it is safe to ignore the current loop.
-                if (wordIndex * blocksPerWord + blockIndex < 4096) {
-                    // Calculate the X, Y and Z location and the result
-                    int x = position / 256;
-                    int y = position % 16;
-                    int z = (position % 256) / 16;
-                    int result = paletteIndices[x][y][z];
-
-                    // Bitwise append the result to the LEFT of the current word.
-                    word |= (result << index);
-
-                    // Increment the position and index
-                    position++;
-                    index += bitsPerBlock;
+
+        // Write all words (little endian)
+        PaletteCodec.writeWords(outputStream, storage.getWords());
+
+        // Write the palette to the output stream, using the cached serialization of each block state. A storage with
+        // 0 bits per block is written without the palette size, followed by its single palette.
+        List<BlockState> palette = storage.getPalette();
+        if (storage.getBitsPerBlock() == 0) {
+            outputStream.write(palette.get(0).getSerialized());
+            return;
+        }
+        outputStream.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(palette.size()).array());
+        for (BlockState state : palette) {
+            outputStream.write(state.getSerialized());
+        }
+    }
+
+    /**
+     * Loops through all LevelDB records that belong to the given chunk, using a single prefix scan
+     * @param db The LevelDB storage or snapshot
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @param dimension The chunk dimension
+     * @param consumer The consumer, accepting the record key and value
+     */
+    public static void forEachChunkRecord(LevelDBReader db, int chunkX, int chunkZ, Dimension dimension, BiConsumer<byte[], byte[]> consumer) {
+        try (LevelDB.Iterator iterator = db.prefixIterator(generateChunkKeyPrefix(chunkX, chunkZ, dimension))) {
+            while (iterator.next()) {
+                byte[] key = iterator.key();
+                if (isChunkRecordKey(key, dimension)) {
+                    consumer.accept(key, iterator.value());
                 }
             }
+        }
+    }
 
-            // Write the four word bytes (little endian)
-            outputStream.write((byte) word);
-            outputStream.write((byte) (word >>> 8));
-            outputStream.write((byte) (word >>> 16));
-            outputStream.write((byte) (word >>> 24));
+    /**
+     * Generates the prefix that all LevelDB keys of the given chunk start with: the chunk X and Z, followed by the
+     * dimension if it is not the overworld
+     * @param chunkX The chunk X
+     * @param chunkZ The chunk Z
+     * @param dimension The chunk dimension
+     * @return The key prefix (byte[])
+     */
+    public static byte[] generateChunkKeyPrefix(int chunkX, int chunkZ, Dimension dimension) {
+        ByteBuffer buffer = ByteBuffer.allocate(dimension == Dimension.OVERWORLD ? 8 : 12).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(chunkX).putInt(chunkZ);
+        if (dimension != Dimension.OVERWORLD) {
+            buffer.putInt(dimension.getId());
         }
+        return buffer.array();
+    }
 
-        // Write the palette to the output stream
-        outputStream.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(palette.size()).array());
-        for (CompoundTag block : palette) {
-            outputStream.write(NBTUtil.write(block));
+    /**
+     * Checks whether a key that starts with a chunk key prefix is actually a chunk record of the given dimension.
+     * An overworld prefix is also the start of the keys of other dimensions, and of some non-chunk keys.
+     * @param key The LevelDB key
+     * @param dimension The dimension of the chunk prefix
+     * @return Whether the key is a chunk record of that dimension
+     */
+    public static boolean isChunkRecordKey(byte[] key, Dimension dimension) {
+        int tagIndex = dimension == Dimension.OVERWORLD ? 8 : 12;
+        if (key.length <= tagIndex || key.length > tagIndex + 2) {
+            return false;
         }
+        // Only SubChunkPrefix records carry the extra SubChunk index byte
+        return (key[tagIndex] == LevelChunkTag.SubChunkPrefix.getId()) == (key.length == tagIndex + 2);
     }
 
     /**
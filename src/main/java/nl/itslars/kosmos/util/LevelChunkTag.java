@@ -41,4 +41,18 @@ public enum LevelChunkTag {
     public byte getId() {
         return id;
     }
+
+    /**
+     * Retrieves the tag with the given record type id
+     * @param id The record type id
+     * @return The tag, or null if the id is unknown
+     */
+    public static LevelChunkTag fromId(byte id) {
+        for (LevelChunkTag tag : values()) {
+            if (tag.id == id) {
+                return tag;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,149 @@
+package nl.itslars.kosmos.util;
+
+import nl.itslars.kosmos.objects.world.BlockStorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Utility class for decoding and encoding the bit-packed palette indices of a block storage, one 32-bit word at a
+ * time. Every word contains as many indices as fit in it, starting at the lowest bits, and any remaining bits are
+ * padding. The indices are stored in the native SubChunk order, see {@link BlockStorage#index(int, int, int)}.
+ * A block storage with a single palette entry can use 0 bits per block, in which case it has no words at all.
+ */
+public class PaletteCodec {
+
+    // The amounts of bits per block that Minecraft Bedrock supports
+    public static final int[] BITS_PER_BLOCK = {0, 1, 2, 3, 4, 5, 6, 8, 16};
+
+    // The amount of indices per word and the index mask, for every supported amount of bits per block
+    private static final int[] BLOCKS_PER_WORD = new int[17];
+    private static final int[] MASKS = new int[17];
+
+    static {
+        // Uniform block storages, with 0 bits per block, have no words
+        for (int bits : BITS_PER_BLOCK) {
+            if (bits == 0) {
+                continue;
+            }
+            BLOCKS_PER_WORD[bits] = 32 / bits;
+            MASKS[bits] = (1 << bits) - 1;
+        }
+    }
+
+    private PaletteCodec() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Checks whether Minecraft Bedrock supports the given amount of bits per block
+     * @param bitsPerBlock The amount of bits per block
+     * @return Whether it is supported
+     */
+    public static boolean isSupported(int bitsPerBlock) {
+        return bitsPerBlock == 0 || (bitsPerBlock > 0 && bitsPerBlock < BLOCKS_PER_WORD.length && BLOCKS_PER_WORD[bitsPerBlock] != 0);
+    }
+
+    /**
+     * Calculates the amount of words that are needed to store all indices of a block storage
+     * @param bitsPerBlock The amount of bits per block
+     * @return The word count
+     */
+    public static int getWordCount(int bitsPerBlock) {
+        if (bitsPerBlock == 0) {
+            return 0;
+        }
+        int blocksPerWord = getBlocksPerWord(bitsPerBlock);
+        return (BlockStorage.SIZE + blocksPerWord - 1) / blocksPerWord;
+    }
+
+    /**
+     * Retrieves the amount of indices that fit in a single word
+     * @param bitsPerBlock The amount of bits per block, which should not be 0
+     * @return The amount of indices per word
+     */
+    public static int getBlocksPerWord(int bitsPerBlock) {
+        if (bitsPerBlock == 0) {
+            throw new IllegalArgumentException("A block storage with 0 bits per block has no words");
+        }
+        if (!isSupported(bitsPerBlock)) {
+            throw new IllegalArgumentException("Unsupported amount of bits per block: " + bitsPerBlock);
+        }
+        return BLOCKS_PER_WORD[bitsPerBlock];
+    }
+
+    /**
+     * Reads little endian words straight from the given array
+     * @param source The array, e.g. a SubChunk record value
+     * @param offset The offset of the first word in the array
+     * @param wordCount The amount of words to read
+     * @return The words
+     */
+    public static int[] readWords(byte[] source, int offset, int wordCount) {
+        int[] words = new int[wordCount];
+        ByteBuffer.wrap(source, offset, wordCount * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(words);
+        return words;
+    }
+
+    /**
+     * Writes the given words to the output stream, in little endian order
+     * @param outputStream The output stream
+     * @param words The words
+     * @throws IOException If writing to the output stream failed
+     */
+    public static void writeWords(OutputStream outputStream, int[] words) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asIntBuffer().put(words);
+        outputStream.write(buffer.array());
+    }
+
+    /**
+     * Unpacks all indices of a block storage from the given words
+     * @param words The bit-packed words
+     * @param bitsPerBlock The amount of bits per block
+     * @param indices The array to write the 4096 indices into
+     */
+    public static void unpack(int[] words, int bitsPerBlock, int[] indices) {
+        if (bitsPerBlock == 0) {
+            Arrays.fill(indices, 0, BlockStorage.SIZE, 0);
+            return;
+        }
+        int blocksPerWord = getBlocksPerWord(bitsPerBlock);
+        int mask = MASKS[bitsPerBlock];
+        int position = 0;
+        for (int word : words) {
+            int end = Math.min(position + blocksPerWord, BlockStorage.SIZE);
+            while (position < end) {
+                indices[position++] = word & mask;
+                word >>>= bitsPerBlock;
+            }
+        }
+    }
+
+    /**
+     * Packs all indices of a block storage into words
+     * @param indices The 4096 indices, which should all fit in the given amount of bits
+     * @param bitsPerBlock The amount of bits per block
+     * @return The bit-packed words
+     */
+    public static int[] pack(int[] indices, int bitsPerBlock) {
+        if (bitsPerBlock == 0) {
+            return new int[0];
+        }
+        int blocksPerWord = getBlocksPerWord(bitsPerBlock);
+        int[] words = new int[getWordCount(bitsPerBlock)];
+        int position = 0;
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            int end = Math.min(position + blocksPerWord, BlockStorage.SIZE);
+            int word = 0;
+            for (int shift = 0; position < end; shift += bitsPerBlock) {
+                word |= indices[position++] << shift;
+            }
+            words[wordIndex] = word;
+        }
+        return words;
+    }
+}
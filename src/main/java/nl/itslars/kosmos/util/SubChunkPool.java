@@ -0,0 +1,157 @@
+package nl.itslars.kosmos.util;
+
+import nl.itslars.kosmos.objects.world.BlockStorage;
+import nl.itslars.kosmos.objects.world.Chunk;
+import nl.itslars.kosmos.objects.world.SubChunk;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Utility class that shares the decoded blocks of identical SubChunk records. Flat worlds, void worlds and templates
+ * contain many SubChunks with exactly the same record value, e.g. all air or all stone. Once a value is seen for the
+ * second time, the resulting {@link BlockStorage} is shared by all SubChunks that are loaded from it from then on,
+ * until one of them changes its blocks and gets its own copy. Values that are only seen once are not shared, so most
+ * SubChunks of a normal world do not have to be copied before they are changed.
+ * The pool is shared by all worlds, and keeps the most recently used values within a maximum amount of bytes.
+ * It is thread safe.
+ */
+public class SubChunkPool {
+
+    // The maximum size of all pooled record values and block storages, in bytes
+    private static final long MAX_BYTES = 16L * 1024 * 1024;
+
+    // The decoded blocks, mapped by the SubChunk record value they were decoded from, ordered from least to most
+    // recently used
+    private static final Map<ByteBuffer, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    // The sum of the sizes of all entries
+    private static long size = 0;
+    // The maximum amount of values that are remembered as seen once
+    private static final int MAX_SEEN = 65536;
+    // The hashes of the values that were seen once, but are not pooled yet
+    private static final Map<Long, Boolean> SEEN = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_SEEN;
+        }
+    };
+    // The block storages of all entries, compared by identity
+    private static final Set<BlockStorage> POOLED = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private SubChunkPool() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Creates a SubChunk from the pooled blocks of the given record value
+     * @param value The SubChunk record value
+     * @param parentChunk The parent chunk
+     * @param subChunkHeight The SubChunk height
+     * @return The SubChunk, sharing its block storage, or null if the value is not pooled
+     */
+    public static SubChunk get(byte[] value, Chunk parentChunk, short subChunkHeight) {
+        Entry entry;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(ByteBuffer.wrap(value));
+        }
+        if (entry == null) {
+            return null;
+        }
+        return SubChunk.load(parentChunk, subChunkHeight, entry.storage, entry.waterLogged);
+    }
+
+    /**
+     * Adds the blocks of a SubChunk that was just decoded from the given record value to the pool, if the value was
+     * seen before. Its block storage is shared from then on. Otherwise the value is only remembered, and the SubChunk
+     * keeps its own block storage. The least recently used values are dropped to stay within the maximum size.
+     * @param value The SubChunk record value
+     * @param subChunk The decoded SubChunk
+     */
+    public static void put(byte[] value, SubChunk subChunk) {
+        BlockStorage storage = subChunk.getStorage();
+        synchronized (ENTRIES) {
+            // A hash collision only causes a value to be pooled the first time it is seen, which is still correct
+            long hash = hash(value);
+            if (SEEN.remove(hash) == null) {
+                SEEN.put(hash, Boolean.TRUE);
+                return;
+            }
+            storage.share();
+            Entry entry = new Entry(storage, (BitSet) subChunk.getWaterLogged().clone(),
+                    value.length + storage.getWords().length * 4L + storage.getPalette().size() * 8L);
+            Entry previous = ENTRIES.put(ByteBuffer.wrap(value), entry);
+            if (previous != null) {
+                size -= previous.size;
+                POOLED.remove(previous.storage);
+            }
+            size += entry.size;
+            POOLED.add(storage);
+            Iterator<Entry> iterator = ENTRIES.values().iterator();
+            while (size > MAX_BYTES && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                size -= eldest.size;
+                POOLED.remove(eldest.storage);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the pool still holds the given block storage, in which case its memory is counted by the pool
+     * instead of by the SubChunks that share it
+     * @param storage The block storage
+     * @return Whether the block storage is pooled
+     */
+    public static boolean contains(BlockStorage storage) {
+        synchronized (ENTRIES) {
+            return POOLED.contains(storage);
+        }
+    }
+
+    /**
+     * Calculates a 64-bit FNV-1a hash of the given record value
+     * @param value The record value
+     * @return The hash
+     */
+    private static long hash(byte[] value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Removes all values from the pool. SubChunks that share a block storage keep sharing it.
+     */
+    public static void clear() {
+        synchronized (ENTRIES) {
+            ENTRIES.clear();
+            SEEN.clear();
+            POOLED.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * The decoded blocks of a SubChunk record value, and the estimated size of the entry
+     */
+    private static final class Entry {
+
+        private final BlockStorage storage;
+        private final BitSet waterLogged;
+        private final long size;
+
+        private Entry(BlockStorage storage, BitSet waterLogged, long size) {
+            this.storage = storage;
+            this.waterLogged = waterLogged;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package nl.itslars.kosmos.util;
+
+import nl.itslars.kosmos.enums.Dimension;
+import nl.itslars.kosmos.leveldb.LevelDB;
+import nl.itslars.kosmos.objects.world.ChunkPreset;
+import nl.itslars.kosmos.objects.world.WorldData;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Utility class for the world index: a file stored beside the db directory, that contains the chunk coordinates of
+ * every dimension and the player and entity keys of a world. When a world is opened with the index enabled and the
+ * database files did not change since the index was written, the index is read instead of scanning the entire
+ * LevelDB storage.
+ * The index is validated with a fingerprint of the database files. Every change to the database, e.g. by Minecraft
+ * itself, results in a different fingerprint, after which the storage is scanned again.
+ */
+public class WorldIndex {
+
+    public static final String FILE_NAME = "kosmos_index.dat";
+
+    private static final int MAGIC = 0x4B534958;
+    private static final int VERSION = 1;
+
+    private WorldIndex() {
+    }
+
+    /**
+     * Computes the fingerprint of the given database directory: the name, size and modification time of every
+     * database file, and the contents of the CURRENT file that points to the active manifest. The LOCK file and the
+     * LOG files are left out, since they change without changing the data.
+     * The fingerprint should be computed while the database is closed.
+     * @param dbDirectory The database directory
+     * @return The fingerprint
+     * @throws IOException If the directory could not be read
+     */
+    public static byte[] fingerprint(File dbDirectory) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        File[] files = dbDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + dbDirectory);
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        DataOutputStream out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals("LOCK") || name.startsWith("LOG")) {
+                continue;
+            }
+            out.writeUTF(name);
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+            if (name.equals("CURRENT")) {
+                out.write(Files.readAllBytes(file.toPath()));
+            }
+        }
+        out.flush();
+        return digest.digest();
+    }
+
+    /**
+     * Reads the index into the given world data, if it exists and matches the given fingerprint. The chunk presets
+     * are created from the index, and the players and entities are fetched from the LevelDB storage by their key.
+     * @param file The index file
+     * @param fingerprint The fingerprint of the database files, computed before opening the database
+     * @param db The opened LevelDB storage
+     * @param worldData The world data to fill
+     * @return Whether the index was read. If not, the world data was not changed.
+     */
+    public static boolean read(File file, byte[] fingerprint, LevelDB db, WorldData worldData) {
+        if (!file.exists()) {
+            return false;
+        }
+        Map<Dimension, List<int[]>> chunks = new EnumMap<>(Dimension.class);
+        List<byte[]> keys = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            byte[] storedFingerprint = new byte[in.readInt()];
+            in.readFully(storedFingerprint);
+            if (!Arrays.equals(storedFingerprint, fingerprint)) {
+                return false;
+            }
+            int dimensionCount = in.readInt();
+            for (int i = 0; i < dimensionCount; i++) {
+                Dimension dimension = Dimension.fromId(in.readInt());
+                int chunkCount = in.readInt();
+                List<int[]> coordinates = new ArrayList<>(chunkCount);
+                for (int j = 0; j < chunkCount; j++) {
+                    coordinates.add(new int[]{in.readInt(), in.readInt()});
+                }
+                if (dimension != null) {
+                    chunks.put(dimension, coordinates);
+                }
+            }
+            int keyCount = in.readInt();
+            for (int i = 0; i < keyCount; i++) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                keys.add(key);
+            }
+        } catch (IOException e) {
+            // A damaged index is ignored, the storage is scanned instead
+            return false;
+        }
+
+        chunks.forEach((dimension, coordinates) -> {
+            Map<Integer, Map<Integer, ChunkPreset>> presets = worldData.getChunkPresets().get(dimension);
+            for (int[] coordinate : coordinates) {
+                presets.computeIfAbsent(coordinate[0], x -> new HashMap<>())
+                        .put(coordinate[1], new ChunkPreset(worldData, coordinate[0], coordinate[1], dimension));
+            }
+        });
+        for (byte[] key : keys) {
+            byte[] value = db.get(key);
+            if (value != null) {
+                worldData.loadPlayerOrEntity(key, value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the index of the given world data. The file is replaced atomically, so a crash while writing never
+     * leaves a damaged index behind.
+     * @param file The index file
+     * @param fingerprint The fingerprint of the database files, computed after closing the database
+     * @param worldData The world data to write the index of
+     * @throws IOException If the index could not be written
+     */
+    public static void write(File file, byte[] fingerprint, WorldData worldData) throws IOException {
+        File temporaryFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fingerprint.length);
+            out.write(fingerprint);
+            Map<Dimension, Map<Integer, Map<Integer, ChunkPreset>>> chunkPresets = worldData.getChunkPresets();
+            out.writeInt(chunkPresets.size());
+            for (Map.Entry<Dimension, Map<Integer, Map<Integer, ChunkPreset>>> entry : chunkPresets.entrySet()) {
+                out.writeInt(entry.getKey().getId());
+                out.writeInt(worldData.getChunkCount(entry.getKey()));
+                for (Map<Integer, ChunkPreset> zMap : entry.getValue().values()) {
+                    for (ChunkPreset preset : zMap.values()) {
+                        out.writeInt(preset.getX());
+                        out.writeInt(preset.getZ());
+                    }
+                }
+            }
+            Collection<byte[]> keys = worldData.getStoredKeys();
+            out.writeInt(keys.size());
+            for (byte[] key : keys) {
+                out.writeInt(key.length);
+                out.write(key);
+            }
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the index file, if it exists
+     * @param file The index file
+     * @throws IOException If the file could not be deleted
+     */
+    public static void delete(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -4,18 +4,45 @@ import nl.itslars.kosmos.enums.Ability;
 import nl.itslars.kosmos.enums.BlockType;
 import nl.itslars.kosmos.enums.Dimension;
 import nl.itslars.kosmos.enums.GameRule;
+import nl.itslars.kosmos.leveldb.LevelDB;
+import nl.itslars.kosmos.objects.entity.Entity;
 import nl.itslars.kosmos.objects.world.Block;
+import nl.itslars.kosmos.objects.world.BlockState;
+import nl.itslars.kosmos.objects.world.BlockStorage;
+import nl.itslars.kosmos.objects.world.Chunk;
+import nl.itslars.kosmos.objects.world.ChunkPreset;
+import nl.itslars.kosmos.objects.world.CompressedChunkCache;
+import nl.itslars.kosmos.objects.world.LruChunkCache;
+import nl.itslars.kosmos.objects.world.SubChunk;
 import nl.itslars.kosmos.objects.world.WorldData;
+import nl.itslars.kosmos.util.BlockStateRegistry;
+import nl.itslars.kosmos.util.ChunkRecords;
+import nl.itslars.kosmos.util.Chunks;
 import nl.itslars.kosmos.util.FileUtils;
+import nl.itslars.kosmos.util.LevelChunkTag;
+import nl.itslars.kosmos.util.PaletteCodec;
+import nl.itslars.kosmos.util.SubChunkPool;
+import nl.itslars.kosmos.util.WorldIndex;
+import nl.itslars.mcpenbt.NBTUtil;
 import org.junit.jupiter.api.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 class KosmosTest {
 
@@ -206,4 +233,846 @@ class KosmosTest {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void testWriteBatch() {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        byte[] key1 = "kosmos_test_1".getBytes();
+        byte[] key2 = "kosmos_test_2".getBytes();
+        try (LevelDB.WriteBatch batch = LevelDB.createWriteBatch()) {
+            batch.put(key1, new byte[]{1, 2, 3});
+            batch.put(key2, new byte[]{4, 5, 6});
+            batch.delete(key1);
+            Assertions.assertEquals(3, batch.getCount());
+            Assertions.assertNull(db.get(key2));
+            db.write(batch);
+        }
+        Assertions.assertFalse(db.has(key1));
+        Assertions.assertArrayEquals(new byte[]{4, 5, 6}, db.get(key2));
+
+        // A chunk is only marked as saved once its batch is written, so a batch that is dropped is not lost
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        chunk.setBlock(15, 5, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+        try (LevelDB.WriteBatch batch = LevelDB.createWriteBatch()) {
+            chunk.save(batch);
+            Assertions.assertTrue(chunk.isDirty());
+            batch.clear();
+            Assertions.assertTrue(chunk.isDirty());
+            chunk.save(batch);
+            db.write(batch);
+            Assertions.assertFalse(chunk.isDirty());
+        }
+    }
+
+    @Test
+    void testBulkIterator() {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        int singleCount = 0;
+        long singleBytes = 0;
+        try (LevelDB.Iterator iterator = db.iterator()) {
+            iterator.seekToFirst();
+            while (iterator.next()) {
+                singleCount++;
+                singleBytes += iterator.key().length + iterator.value().length;
+            }
+        }
+        // A tiny buffer forces the iterator to grow it for larger entries
+        int bulkCount = 0;
+        long bulkBytes = 0;
+        try (LevelDB.Iterator iterator = db.iterator(64)) {
+            iterator.seekToFirst();
+            while (iterator.next()) {
+                bulkCount++;
+                bulkBytes += iterator.key().length + iterator.value().length;
+            }
+        }
+        Assertions.assertTrue(singleCount > 0);
+        Assertions.assertEquals(singleCount, bulkCount);
+        Assertions.assertEquals(singleBytes, bulkBytes);
+    }
+
+    @Test
+    void testPrefixAndSeekIteration() {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        List<byte[]> keys = new ArrayList<>();
+        Chunks.forEachChunkRecord(db, 0, 0, Dimension.OVERWORLD, (key, value) -> keys.add(key));
+        Assertions.assertFalse(keys.isEmpty());
+        byte[] prefix = Chunks.generateChunkKeyPrefix(0, 0, Dimension.OVERWORLD);
+        for (byte[] key : keys) {
+            Assertions.assertArrayEquals(prefix, Arrays.copyOf(key, prefix.length));
+        }
+
+        byte[] subChunkKey = Chunks.generateLevelDBKey(0, 0, Dimension.OVERWORLD, LevelChunkTag.SubChunkPrefix, (byte) 0);
+        byte[] subChunkEnd = Chunks.generateLevelDBKey(0, 0, Dimension.OVERWORLD, LevelChunkTag.SubChunkPrefix, (byte) 16);
+        try (LevelDB.Iterator iterator = db.rangeIterator(subChunkKey, subChunkEnd)) {
+            while (iterator.next()) {
+                Assertions.assertEquals(LevelChunkTag.SubChunkPrefix.getId(), iterator.key()[8]);
+            }
+        }
+        try (LevelDB.Iterator iterator = db.prefixIterator(prefix)) {
+            iterator.seek(keys.get(keys.size() - 1));
+            Assertions.assertTrue(iterator.next());
+            Assertions.assertArrayEquals(keys.get(keys.size() - 1), iterator.key());
+        }
+    }
+
+    @Test
+    void testChunkRecords() {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        ChunkRecords records = ChunkRecords.fetch(db, 0, 0, Dimension.OVERWORLD);
+        Assertions.assertFalse(records.getSubChunks().isEmpty());
+        records.getSubChunks().forEach((height, value) -> Assertions.assertArrayEquals(
+                db.get(Chunks.generateLevelDBKey(0, 0, Dimension.OVERWORLD, LevelChunkTag.SubChunkPrefix, height)), value));
+        Assertions.assertTrue(ChunkRecords.fetch(db, 100000, 100000, Dimension.OVERWORLD).isEmpty());
+    }
+
+    @Test
+    void testConcurrentAccess() throws InterruptedException {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        int threadCount = 8;
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            int threadId = i;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int j = 0; j < 200; j++) {
+                        byte[] key = ("kosmos_concurrent_" + threadId + "_" + j).getBytes();
+                        db.put(key, new byte[]{(byte) threadId, (byte) j});
+                        Assertions.assertArrayEquals(new byte[]{(byte) threadId, (byte) j}, db.get(key));
+                    }
+                    try (LevelDB.Iterator iterator = db.prefixIterator(("kosmos_concurrent_" + threadId + "_").getBytes(), 256)) {
+                        int count = 0;
+                        while (iterator.next()) {
+                            count++;
+                        }
+                        Assertions.assertEquals(200, count);
+                    }
+                    // The database is locked, so opening it again fails. That error may not leak into other calls.
+                    Assertions.assertThrows(RuntimeException.class, () -> LevelDB.open(new File(SAMPLE_WORLD_TEST_FILE, "db").getPath()).close());
+                    Assertions.assertTrue(db.has(("kosmos_concurrent_" + threadId + "_0").getBytes()));
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        // One thread keeps growing a value, while the others read it. A read always returns a complete value.
+        byte[] growingKey = "kosmos_concurrent_growing".getBytes();
+        db.put(growingKey, new byte[]{1});
+        AtomicBoolean growing = new AtomicBoolean(true);
+        threads.add(new Thread(() -> {
+            try {
+                for (int size = 1; size <= 1 << 16; size += 257) {
+                    byte[] value = new byte[size];
+                    Arrays.fill(value, (byte) size);
+                    db.put(growingKey, value);
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            } finally {
+                growing.set(false);
+            }
+        }));
+        for (int i = 0; i < threadCount; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (growing.get()) {
+                        byte[] value = db.get(growingKey);
+                        for (byte b : value) {
+                            Assertions.assertEquals((byte) value.length, b);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertTrue(failures.isEmpty(), failures.toString());
+    }
+
+    @Test
+    void testDirectBuffers() {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        byte[] keyBytes = "kosmos_direct".getBytes();
+        ByteBuffer key = ByteBuffer.allocateDirect(keyBytes.length + 2);
+        key.position(2);
+        key.put(keyBytes);
+        key.position(2);
+        ByteBuffer value = ByteBuffer.allocateDirect(4096);
+        for (int i = 0; i < 4096; i++) {
+            value.put((byte) i);
+        }
+        value.flip();
+        db.put(key, value);
+        Assertions.assertTrue(db.has(keyBytes));
+        Assertions.assertArrayEquals(db.get(keyBytes), db.get("kosmos_direct".getBytes()));
+
+        // A buffer that is too small only receives the first part, and the full size is returned
+        ByteBuffer small = ByteBuffer.allocateDirect(16);
+        Assertions.assertEquals(4096, db.get(key, small));
+        Assertions.assertEquals(15, small.get(15));
+        ByteBuffer large = ByteBuffer.allocateDirect(8192);
+        Assertions.assertEquals(4096, db.get(key, large));
+        Assertions.assertEquals(0, large.position());
+        Assertions.assertEquals((byte) 4095, large.get(4095));
+
+        db.delete(key);
+        Assertions.assertFalse(db.has(key));
+        Assertions.assertEquals(-1, db.get(key, large));
+        Assertions.assertNull(db.get(keyBytes));
+
+        // Values larger than the reusable scratch buffer are read as well
+        byte[] big = new byte[100000];
+        big[big.length - 1] = 42;
+        db.put(keyBytes, big);
+        Assertions.assertArrayEquals(big, db.get(keyBytes));
+    }
+
+    @Test
+    void testTunedOptions() throws IOException {
+        currentTestWorld.close();
+        try (LevelDB.Options options = World.createDefaultOptions()) {
+            options.setBlockCacheCapacity(16 * 1024 * 1024);
+            options.setWriteBuffer(32 * 1024 * 1024);
+            options.setOpenFilesCacheCapacity(100);
+            options.setBloomFilter(10);
+            options.setCompactionTableSize(4 * 1024 * 1024);
+            options.setDisableSeeksCompaction(true);
+            options.setNoSync(true);
+            currentTestWorld = World.open(SAMPLE_WORLD_TEST_FILE, null, options);
+        }
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        Assertions.assertFalse(db.has("kosmos_missing".getBytes()));
+        db.put("kosmos_tuned".getBytes(), new byte[]{1});
+        Assertions.assertTrue(currentTestWorld.getChunk(Dimension.OVERWORLD, 0, 0).isPresent());
+        reOpenTestWorld();
+        Assertions.assertArrayEquals(new byte[]{1}, currentTestWorld.getWorld().getDb().get("kosmos_tuned".getBytes()));
+    }
+
+    @Test
+    void testSnapshotView() throws IOException {
+        currentTestWorld.setBlock(-1, 5, 1, BlockType.GOLD_BLOCK);
+        currentTestWorld.save();
+        int playerCount = currentTestWorld.getPlayers().size();
+        try (WorldData view = currentTestWorld.snapshot()) {
+            // Changes saved after the snapshot was taken are not visible in the view
+            currentTestWorld.setBlock(-1, 5, 1, BlockType.DIAMOND_BLOCK);
+            currentTestWorld.save();
+            currentTestWorld.deleteAllPlayers();
+            currentTestWorld.save();
+
+            Assertions.assertTrue(view.isReadOnly());
+            Assertions.assertEquals(currentTestWorld.getChunkCount(), view.getChunkCount());
+            Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), view.getBlock(-1, 5, 1).get().getName());
+            Assertions.assertEquals(playerCount, view.getPlayers().size());
+            Assertions.assertThrows(UnsupportedOperationException.class, view::save);
+            Assertions.assertThrows(UnsupportedOperationException.class, () -> view.setBlock(-1, 5, 1, BlockType.AIR));
+        }
+        // Closing the view does not close the world
+        currentTestWorld.unloadChunks();
+        Assertions.assertEquals(BlockType.DIAMOND_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 5, 1).get().getName());
+    }
+
+    @Test
+    void testKeyIterator() {
+        LevelDB db = currentTestWorld.getWorld().getDb();
+        List<byte[]> keys = new ArrayList<>();
+        List<Integer> valueLengths = new ArrayList<>();
+        try (LevelDB.Iterator iterator = db.iterator(4096)) {
+            while (iterator.next()) {
+                keys.add(iterator.key());
+                valueLengths.add(iterator.value().length);
+            }
+        }
+        // A tiny buffer makes the key iterator grow it as well
+        try (LevelDB.Iterator iterator = db.keyIterator(16)) {
+            for (int i = 0; i < keys.size(); i++) {
+                Assertions.assertTrue(iterator.next());
+                Assertions.assertArrayEquals(keys.get(i), iterator.key());
+                Assertions.assertEquals((int) valueLengths.get(i), iterator.valueLength());
+            }
+            Assertions.assertThrows(IllegalStateException.class, iterator::value);
+            Assertions.assertFalse(iterator.next());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> db.keyIterator(0));
+    }
+
+    @Test
+    void testWorldIndex() throws IOException {
+        int chunkCount = currentTestWorld.getChunkCount();
+        int playerCount = currentTestWorld.getPlayers().size();
+        int entityCount = currentTestWorld.getEntities().size();
+        File indexFile = new File(SAMPLE_WORLD_TEST_FILE, WorldIndex.FILE_NAME);
+        currentTestWorld.close();
+        Assertions.assertFalse(indexFile.exists());
+
+        // The first open scans the storage and writes the index on close
+        currentTestWorld = World.open(SAMPLE_WORLD_TEST_FILE, null, null, true);
+        currentTestWorld.close();
+        Assertions.assertTrue(indexFile.exists());
+
+        // The second open reads the index
+        currentTestWorld = World.open(SAMPLE_WORLD_TEST_FILE, null, null, true);
+        Assertions.assertEquals(chunkCount, currentTestWorld.getChunkCount());
+        Assertions.assertEquals(playerCount, currentTestWorld.getPlayers().size());
+        Assertions.assertEquals(entityCount, currentTestWorld.getEntities().size());
+        Assertions.assertTrue(currentTestWorld.getChunk(Dimension.OVERWORLD, 0, 0).isPresent());
+        currentTestWorld.deleteAllPlayers();
+        currentTestWorld.save();
+        currentTestWorld.close();
+
+        // Saved deletions are reflected in the index
+        currentTestWorld = World.open(SAMPLE_WORLD_TEST_FILE, null, null, true);
+        Assertions.assertEquals(0, currentTestWorld.getPlayers().size());
+        currentTestWorld.close();
+
+        // Changing the database without the index makes the index stale, so the storage is scanned again
+        currentTestWorld = World.open(SAMPLE_WORLD_TEST_FILE, null);
+        currentTestWorld.deleteChunk(Dimension.OVERWORLD, 0, 0);
+        currentTestWorld.save();
+        currentTestWorld.close();
+        currentTestWorld = World.open(SAMPLE_WORLD_TEST_FILE, null, null, true);
+        Assertions.assertEquals(chunkCount - 1, currentTestWorld.getChunkCount());
+        Assertions.assertFalse(currentTestWorld.getChunk(Dimension.OVERWORLD, 0, 0).isPresent());
+    }
+
+    @Test
+    void testPalettedSubChunks() {
+        // Enough different blocks to grow the palette of a SubChunk beyond 16 entries
+        BlockType[] types = BlockType.values();
+        for (int i = 0; i < 40; i++) {
+            currentTestWorld.setBlock(-16 + (i % 16), 40 + i / 16, 0, types[i + 1]);
+        }
+        Block waterLogged = currentTestWorld.setBlock(-10, 45, 3, BlockType.FENCE).get();
+        waterLogged.setWaterLogged(true);
+        // Blocks are views on their SubChunk
+        Assertions.assertTrue(currentTestWorld.getBlock(-10, 45, 3).get().isWaterLogged());
+        currentTestWorld.save();
+        reOpenTestWorld();
+
+        for (int i = 0; i < 40; i++) {
+            Optional<Block> block = currentTestWorld.getBlock(-16 + (i % 16), 40 + i / 16, 0);
+            Assertions.assertTrue(block.isPresent());
+            Assertions.assertEquals(types[i + 1].getNameSpacedId(), block.get().getName());
+        }
+        Block block = currentTestWorld.getBlock(-10, 45, 3).get();
+        Assertions.assertEquals(BlockType.FENCE.getNameSpacedId(), block.getName());
+        Assertions.assertTrue(block.isWaterLogged());
+        Assertions.assertFalse(currentTestWorld.getBlock(-10, 45, 4).get().isWaterLogged());
+        // Replacing a block clears its waterlogged state
+        currentTestWorld.setBlock(-10, 45, 3, BlockType.STONE);
+        Assertions.assertFalse(currentTestWorld.getBlock(-10, 45, 3).get().isWaterLogged());
+    }
+
+    @Test
+    void testBlockStateRegistry() {
+        BlockState diamond = BlockStateRegistry.get(BlockType.DIAMOND_BLOCK.getNameSpacedId());
+        // Equal states are interned into the same object, with the same ID
+        Assertions.assertSame(diamond, new Block(BlockType.DIAMOND_BLOCK, 0, 0, 0).getState());
+        Assertions.assertSame(diamond, Block.deserialize(diamond.toTag(), 0, 0, 0).getState());
+        Assertions.assertSame(diamond, BlockStateRegistry.get(diamond.getId()));
+        Assertions.assertNotSame(diamond, BlockStateRegistry.get(BlockType.GOLD_BLOCK.getNameSpacedId()));
+
+        currentTestWorld.setBlock(-1, 5, 1, BlockType.DIAMOND_BLOCK);
+        currentTestWorld.save();
+        reOpenTestWorld();
+        Assertions.assertSame(diamond, currentTestWorld.getBlock(-1, 5, 1).get().getState());
+        Assertions.assertArrayEquals(NBTUtil.write(diamond.toTag()), diamond.getSerialized());
+    }
+
+    @Test
+    void testPaletteCodec() throws IOException {
+        for (int bitsPerBlock : PaletteCodec.BITS_PER_BLOCK) {
+            int[] indices = new int[BlockStorage.SIZE];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = ThreadLocalRandom.current().nextInt(1 << bitsPerBlock);
+            }
+            int[] words = PaletteCodec.pack(indices, bitsPerBlock);
+            Assertions.assertEquals(BlockStorage.getWordCount(bitsPerBlock), words.length);
+
+            // The word-at-a-time decoder matches the single index lookup
+            int[] decoded = new int[BlockStorage.SIZE];
+            PaletteCodec.unpack(words, bitsPerBlock, decoded);
+            Assertions.assertArrayEquals(indices, decoded);
+            BlockStorage storage = new BlockStorage(Collections.singletonList(BlockStateRegistry.get(BlockType.AIR.getNameSpacedId())), bitsPerBlock, words);
+            for (int i = 0; i < indices.length; i++) {
+                Assertions.assertEquals(indices[i], storage.get(i));
+            }
+
+            // Words survive a round trip through their little endian byte form
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            PaletteCodec.writeWords(outputStream, words);
+            Assertions.assertArrayEquals(words, PaletteCodec.readWords(outputStream.toByteArray(), 0, words.length));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PaletteCodec.getWordCount(7));
+    }
+
+    @Test
+    void testLazySubChunks() {
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertTrue(chunk.getLoadedSubChunks().isEmpty());
+        List<String> column = new ArrayList<>();
+        for (int y = 0; y < 64; y++) {
+            column.add(chunk.getBlock(15, y, 1).map(Block::getName).orElse(null));
+        }
+        // Only the SubChunks that were touched are loaded
+        Assertions.assertTrue(chunk.getLoadedSubChunks().containsKey((short) 0));
+        Assertions.assertTrue(chunk.getLoadedSubChunks().keySet().stream().allMatch(height -> height >= 0 && height < 4));
+        reOpenTestWorld();
+
+        // A sparse edit only loads and saves the SubChunk it touches, the others are left as they are
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        chunk.setBlock(15, 70, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+        Assertions.assertFalse(chunk.getLoadedSubChunks().containsKey((short) 0));
+        currentTestWorld.save();
+        reOpenTestWorld();
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), chunk.getBlock(15, 70, 1).get().getName());
+        for (int y = 0; y < 64; y++) {
+            Assertions.assertEquals(column.get(y), chunk.getBlock(15, y, 1).map(Block::getName).orElse(null));
+        }
+    }
+
+    @Test
+    void testDirtyTracking() {
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        // Reading does not change anything
+        chunk.getBlock(15, 5, 1);
+        chunk.getElevation(15, 1);
+        Assertions.assertFalse(chunk.isDirty());
+        Assertions.assertTrue(currentTestWorld.getEntities().stream().noneMatch(Entity::isDirty));
+
+        // Only the SubChunk that was changed is dirty, and it is clean again after saving
+        chunk.setBlock(15, 5, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+        Assertions.assertTrue(chunk.isDirty());
+        Assertions.assertTrue(chunk.getLoadedSubChunks().get((short) 0).isDirty());
+        currentTestWorld.save();
+        Assertions.assertFalse(chunk.isDirty());
+
+        // Changing the 2D data through its array marks the chunk as dirty
+        chunk.getElevation()[0][0] = 10;
+        Assertions.assertTrue(chunk.isDirty());
+        currentTestWorld.save();
+        reOpenTestWorld();
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(10, chunk.getElevation(0, 0));
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), chunk.getBlock(15, 5, 1).get().getName());
+    }
+
+    @Test
+    void testUnchangedSubChunks() {
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Block original = chunk.getBlock(15, 5, 1).get();
+        BlockState originalState = original.getState();
+        boolean originalWaterLogged = original.isWaterLogged();
+        SubChunk subChunk = chunk.getLoadedSubChunks().get((short) 0);
+
+        // A change that is reverted leaves the SubChunk unchanged
+        chunk.setBlock(15, 5, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+        Assertions.assertTrue(subChunk.isDirty());
+        Assertions.assertFalse(subChunk.isUnchanged());
+        subChunk.setBlock(BlockStorage.index(15, 5, 1), new Block(originalState, original.getX(), original.getY(), original.getZ()));
+        subChunk.setWaterLogged(BlockStorage.index(15, 5, 1), originalWaterLogged);
+        Assertions.assertTrue(subChunk.isDirty());
+        Assertions.assertTrue(subChunk.isUnchanged());
+
+        // A direct change can not be checked, so it is always written
+        subChunk.markDirty();
+        Assertions.assertFalse(subChunk.isUnchanged());
+        currentTestWorld.save();
+        Assertions.assertTrue(subChunk.isUnchanged());
+        reOpenTestWorld();
+        Assertions.assertSame(originalState, currentTestWorld.getBlock(-1, 5, 1).get().getState());
+
+        // Swapping two states that are laid out in a Thue-Morse pattern gives the same fingerprint, but still changes
+        // the blocks
+        BlockState stone = BlockStateRegistry.get(BlockType.STONE.getNameSpacedId());
+        BlockState dirt = BlockStateRegistry.get(BlockType.DIRT.getNameSpacedId());
+        BlockState gold = BlockStateRegistry.get(BlockType.GOLD_BLOCK.getNameSpacedId());
+        BlockStorage storage = new BlockStorage(stone);
+        for (int index = 0; index < BlockStorage.SIZE; index++) {
+            storage.setState(index, Integer.bitCount(index) % 2 == 0 ? stone : dirt);
+        }
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        SubChunk pattern = SubChunk.load(chunk, (short) 14, storage, new BitSet());
+        pattern.replace(0, 0, 0, 15, 15, 15, state -> state == stone, gold);
+        pattern.replace(0, 0, 0, 15, 15, 15, state -> state == dirt, stone);
+        pattern.replace(0, 0, 0, 15, 15, 15, state -> state == gold, dirt);
+        Assertions.assertSame(dirt, pattern.getStorage().getState(0));
+        Assertions.assertFalse(pattern.isUnchanged());
+        pattern.replace(0, 0, 0, 15, 15, 15, state -> state == stone, gold);
+        pattern.replace(0, 0, 0, 15, 15, 15, state -> state == dirt, stone);
+        pattern.replace(0, 0, 0, 15, 15, 15, state -> state == gold, dirt);
+        Assertions.assertTrue(pattern.isUnchanged());
+    }
+
+    @Test
+    void testChunkCache() {
+        LruChunkCache cache = new LruChunkCache(2, 0);
+        currentTestWorld.setChunkCache(cache);
+        List<ChunkPreset> presets = new ArrayList<>();
+        currentTestWorld.forEachChunkPreset(Dimension.OVERWORLD, presets::add);
+        Assertions.assertTrue(presets.size() > 3);
+
+        // A changed chunk is written back when it is evicted
+        Chunk first = currentTestWorld.getChunk(Dimension.OVERWORLD, presets.get(0).getX(), presets.get(0).getZ()).get();
+        first.setBlock(0, 5, 0, BlockType.GOLD_BLOCK.getNameSpacedId());
+        Chunk second = currentTestWorld.getChunk(Dimension.OVERWORLD, presets.get(1).getX(), presets.get(1).getZ()).get();
+        cache.pin(second);
+        currentTestWorld.getChunk(Dimension.OVERWORLD, presets.get(2).getX(), presets.get(2).getZ());
+        currentTestWorld.getChunk(Dimension.OVERWORLD, presets.get(3).getX(), presets.get(3).getZ());
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertFalse(currentTestWorld.isCached(first.getChunkX(), first.getChunkZ()));
+        // The pinned chunk stays cached
+        Assertions.assertTrue(currentTestWorld.isCached(second.getChunkX(), second.getChunkZ()));
+        Assertions.assertEquals(2, cache.getEvictionCount());
+        Assertions.assertEquals(4, cache.getMissCount());
+
+        Assertions.assertSame(second, currentTestWorld.getChunk(second.getChunkX(), second.getChunkZ()).get());
+        Assertions.assertEquals(1, cache.getHitCount());
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(),
+                currentTestWorld.getChunk(presets.get(0).getX(), presets.get(0).getZ()).get().getBlock(0, 5, 0).get().getName());
+    }
+
+    @Test
+    void testCompressedChunkCache() {
+        CompressedChunkCache compressedCache = new CompressedChunkCache(64 * 1024 * 1024);
+        currentTestWorld.setChunkCache(new LruChunkCache(1, 0));
+        currentTestWorld.setCompressedChunkCache(compressedCache);
+        List<String> column = new ArrayList<>();
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        for (int y = 0; y < 64; y++) {
+            column.add(chunk.getBlock(15, y, 1).map(Block::getName).orElse(null));
+        }
+        chunk.setBlock(15, 70, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+
+        // Loading another chunk evicts the first one, which is saved and compressed
+        currentTestWorld.getChunk(Dimension.OVERWORLD, 0, 0);
+        Assertions.assertEquals(1, compressedCache.size());
+        Assertions.assertEquals(2, compressedCache.getMissCount());
+
+        // The first chunk is restored from the compressed cache, without its changes getting lost
+        Chunk restored = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertNotSame(chunk, restored);
+        Assertions.assertEquals(1, compressedCache.getHitCount());
+        Assertions.assertFalse(restored.isDirty());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), restored.getBlock(15, 70, 1).get().getName());
+        for (int y = 0; y < 64; y++) {
+            Assertions.assertEquals(column.get(y), restored.getBlock(15, y, 1).map(Block::getName).orElse(null));
+        }
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 70, 1).get().getName());
+    }
+
+    @Test
+    void testSharedSubChunks() {
+        // A record that was seen once is not shared
+        SubChunkPool.clear();
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        BlockState original = chunk.getBlock(15, 5, 1).get().getState();
+        Assertions.assertFalse(chunk.getLoadedSubChunks().get((short) 0).getStorage().isShared());
+
+        // The second time it is loaded, the decoded block storage is pooled and counted by the pool
+        chunk.unload();
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        chunk.getBlock(15, 5, 1);
+        SubChunk subChunk = chunk.getLoadedSubChunks().get((short) 0);
+        BlockStorage storage = subChunk.getStorage();
+        Assertions.assertTrue(storage.isShared());
+        Assertions.assertTrue(SubChunkPool.contains(storage));
+        Assertions.assertThrows(IllegalStateException.class, () -> storage.setState(0, original));
+
+        // Loading the same record again shares the decoded block storage
+        chunk.unload();
+        Chunk reloaded = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        reloaded.getBlock(15, 5, 1);
+        Assertions.assertSame(storage, reloaded.getLoadedSubChunks().get((short) 0).getStorage());
+
+        // Changing a block copies the block storage first, so the other SubChunk does not change
+        reloaded.setBlock(15, 5, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+        Assertions.assertNotSame(storage, reloaded.getLoadedSubChunks().get((short) 0).getStorage());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), reloaded.getBlock(15, 5, 1).get().getName());
+        Assertions.assertSame(original, chunk.getBlock(15, 5, 1).get().getState());
+
+        // Once the pool dropped the block storage, the SubChunks that share it count it again
+        long pooledSize = subChunk.getEstimatedSize();
+        SubChunkPool.clear();
+        Assertions.assertTrue(subChunk.getEstimatedSize() > pooledSize);
+    }
+
+    @Test
+    void testUniformSubChunks() throws IOException {
+        BlockState stone = BlockStateRegistry.get(BlockType.STONE.getNameSpacedId());
+        BlockState dirt = BlockStateRegistry.get(BlockType.DIRT.getNameSpacedId());
+        BlockStorage storage = new BlockStorage(stone);
+        Assertions.assertTrue(storage.isUniform());
+        Assertions.assertEquals(0, storage.getWords().length);
+        storage.setState(100, stone);
+        Assertions.assertTrue(storage.isUniform());
+
+        // The first different state promotes the block storage to a paletted one
+        storage.setState(100, dirt);
+        Assertions.assertEquals(1, storage.getBitsPerBlock());
+        Assertions.assertSame(dirt, storage.getState(100));
+        Assertions.assertSame(stone, storage.getState(101));
+        storage.setState(100, stone);
+        Assertions.assertTrue(storage.compact().isUniform());
+
+        // A uniform block storage is stored the way the game stores it: the storage header, followed by a single
+        // palette entry without a palette size
+        ByteArrayOutputStream vanilla = new ByteArrayOutputStream();
+        vanilla.write(8);
+        vanilla.write(1);
+        vanilla.write(0x00);
+        vanilla.write(NBTUtil.write(stone.toTag()));
+        byte[] key = Chunks.generateLevelDBKey(-1, 0, Dimension.OVERWORLD, LevelChunkTag.SubChunkPrefix, (byte) 14);
+        currentTestWorld.getWorld().getDb().put(key, vanilla.toByteArray());
+        reOpenTestWorld();
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(BlockType.STONE.getNameSpacedId(), chunk.getBlock(15, 230, 1).get().getName());
+        Assertions.assertTrue(chunk.getLoadedSubChunks().get((short) 14).getStorage().isUniform());
+
+        // New uniform SubChunks are written in the same form
+        currentTestWorld.fill(Dimension.OVERWORLD, -16, 224, 0, -1, 239, 15, BlockType.DIRT);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(8);
+        expected.write(1);
+        expected.write(0x00);
+        expected.write(NBTUtil.write(dirt.toTag()));
+        Assertions.assertArrayEquals(expected.toByteArray(), currentTestWorld.getWorld().getDb().get(key));
+        reOpenTestWorld();
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(BlockType.DIRT.getNameSpacedId(), chunk.getBlock(15, 230, 1).get().getName());
+        Assertions.assertTrue(chunk.getLoadedSubChunks().get((short) 14).getStorage().isUniform());
+    }
+
+    @Test
+    void testClippedFill() {
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        String outside = chunk.getBlock(15, 4, 1).get().getName();
+
+        // A box that covers an entire SubChunk of the chunk, and a part of the SubChunk below it
+        currentTestWorld.fill(Dimension.OVERWORLD, -16, 5, 0, -1, 31, 15, BlockType.GOLD_BLOCK);
+        reOpenTestWorld();
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(outside, chunk.getBlock(15, 4, 1).get().getName());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), chunk.getBlock(15, 5, 1).get().getName());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), chunk.getBlock(0, 31, 15).get().getName());
+        Assertions.assertTrue(chunk.getLoadedSubChunks().get((short) 1).getStorage().isUniform());
+
+        // A box that is clipped to a few blocks of the chunk
+        String nextToBox = chunk.getBlock(12, 5, 4).get().getName();
+        currentTestWorld.fill(Dimension.OVERWORLD, -5, 2, 2, -3, 5, 3, BlockType.STONE);
+        reOpenTestWorld();
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(BlockType.STONE.getNameSpacedId(), chunk.getBlock(11, 2, 2).get().getName());
+        Assertions.assertEquals(BlockType.STONE.getNameSpacedId(), chunk.getBlock(13, 5, 3).get().getName());
+        Assertions.assertEquals(nextToBox, chunk.getBlock(12, 5, 4).get().getName());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), chunk.getBlock(14, 5, 3).get().getName());
+    }
+
+    @Test
+    void testPaletteReplace() {
+        currentTestWorld.fill(Dimension.OVERWORLD, -16, 16, 0, -1, 40, 15, BlockType.GOLD_BLOCK);
+        currentTestWorld.setBlock(Dimension.OVERWORLD, -1, 20, 1, BlockType.DIRT.getNameSpacedId());
+
+        // SubChunk 1 is entirely inside the box, so only its palette is changed
+        currentTestWorld.replace(Dimension.OVERWORLD, -16, 16, 0, -1, 35, 15, BlockType.GOLD_BLOCK, BlockType.EMERALD_BLOCK);
+        reOpenTestWorld();
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertEquals(BlockType.EMERALD_BLOCK.getNameSpacedId(), chunk.getBlock(0, 16, 0).get().getName());
+        Assertions.assertEquals(BlockType.DIRT.getNameSpacedId(), chunk.getBlock(15, 20, 1).get().getName());
+        Assertions.assertEquals(BlockType.EMERALD_BLOCK.getNameSpacedId(), chunk.getBlock(15, 35, 1).get().getName());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), chunk.getBlock(15, 36, 1).get().getName());
+        Assertions.assertEquals(2, chunk.getLoadedSubChunks().get((short) 1).getStorage().getPalette().size());
+
+        // SubChunks without the source block are not changed
+        BlockState gold = BlockStateRegistry.get(BlockType.GOLD_BLOCK.getNameSpacedId());
+        chunk.replace(0, 16, 0, 15, 31, 15, state -> state == gold, BlockStateRegistry.get(BlockType.STONE.getNameSpacedId()));
+        Assertions.assertFalse(chunk.getLoadedSubChunks().get((short) 1).isDirty());
+        Assertions.assertEquals(BlockType.EMERALD_BLOCK.getNameSpacedId(), chunk.getBlock(0, 31, 15).get().getName());
+
+        // Merged palette entries are removed when the block storage is compacted
+        BlockState emerald = BlockStateRegistry.get(BlockType.EMERALD_BLOCK.getNameSpacedId());
+        BlockStorage storage = new BlockStorage(new ArrayList<>(Arrays.asList(emerald, BlockStateRegistry.get(BlockType.DIRT.getNameSpacedId()))), 1, new int[BlockStorage.getWordCount(1)]);
+        storage.setState(7, storage.getPalette().get(1));
+        storage.setPaletteState(1, emerald);
+        Assertions.assertTrue(storage.compact().isUniform());
+    }
+
+    @Test
+    void testParallelChunkOperations() {
+        // The box covers parts of multiple chunks
+        currentTestWorld.fill(Dimension.OVERWORLD, -20, 40, 0, 3, 45, 15, BlockType.GOLD_BLOCK.getNameSpacedId(), 4);
+        currentTestWorld.replace(Dimension.OVERWORLD, -20, 44, 0, 3, 50, 15,
+                BlockType.GOLD_BLOCK.getNameSpacedId(), BlockType.EMERALD_BLOCK.getNameSpacedId(), 4);
+        Assertions.assertEquals(0, currentTestWorld.getChunkCache().size());
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-16, 40, 0).get().getName());
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(3, 43, 15).get().getName());
+        Assertions.assertEquals(BlockType.EMERALD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(0, 44, 0).get().getName());
+        Assertions.assertEquals(BlockType.EMERALD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 45, 15).get().getName());
+        Assertions.assertFalse(currentTestWorld.getBlock(4, 40, 0).get().getName().equals(BlockType.GOLD_BLOCK.getNameSpacedId()));
+
+        // Every chunk is processed once, and changes are saved
+        AtomicInteger processed = new AtomicInteger();
+        currentTestWorld.forEachChunk(Dimension.OVERWORLD, chunk -> {
+            processed.incrementAndGet();
+            if (chunk.getChunkX() == -1 && chunk.getChunkZ() == 0) {
+                chunk.setBlock(15, 60, 1, BlockType.DIRT.getNameSpacedId());
+                return true;
+            }
+            return false;
+        }, 3);
+        Assertions.assertEquals(currentTestWorld.getChunkPresets().get(Dimension.OVERWORLD).values().stream().mapToInt(Map::size).sum(), processed.get());
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.DIRT.getNameSpacedId(), currentTestWorld.getBlock(-1, 60, 1).get().getName());
+    }
+
+    @Test
+    void testPipelinedForEachChunk() {
+        Thread caller = Thread.currentThread();
+        AtomicInteger processed = new AtomicInteger();
+        currentTestWorld.forEachChunkPipelined(Dimension.OVERWORLD, chunk -> {
+            // The predicate runs on the calling thread, and the chunks are loaded completely beforehand
+            Assertions.assertSame(caller, Thread.currentThread());
+            int loadedSubChunks = chunk.getLoadedSubChunks().size();
+            Assertions.assertEquals(loadedSubChunks, chunk.getSubChunks().size());
+            processed.incrementAndGet();
+            if (chunk.getChunkX() == -1 && chunk.getChunkZ() == 0) {
+                chunk.setBlock(15, 61, 1, BlockType.EMERALD_BLOCK.getNameSpacedId());
+                return true;
+            }
+            return false;
+        }, 2);
+        Assertions.assertEquals(currentTestWorld.getChunkPresets().get(Dimension.OVERWORLD).values().stream().mapToInt(Map::size).sum(), processed.get());
+        Assertions.assertEquals(0, currentTestWorld.getChunkCache().size());
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.EMERALD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 61, 1).get().getName());
+    }
+
+    @Test
+    void testStreamChunks() {
+        Set<ChunkPreset> streamed = new HashSet<>();
+        try (Stream<Chunk> chunks = currentTestWorld.streamChunks(Dimension.OVERWORLD)) {
+            chunks.forEach(chunk -> {
+                ChunkPreset preset = currentTestWorld.getChunkPreset(chunk.getChunkX(), chunk.getChunkZ()).get();
+                // Every chunk is streamed once, with the same blocks as a chunk that is looked up
+                Assertions.assertTrue(streamed.add(preset));
+                if (chunk.getChunkX() == -1 && chunk.getChunkZ() == 0) {
+                    Chunk lookedUp = Chunks.loadChunk(preset);
+                    Assertions.assertEquals(lookedUp.getBlock(15, 5, 1).get().getName(), chunk.getBlock(15, 5, 1).get().getName());
+                    chunk.setBlock(15, 62, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+                    chunk.save();
+                }
+            });
+        }
+        Assertions.assertTrue(streamed.contains(currentTestWorld.getChunkPreset(-1, 0).get()));
+        Assertions.assertEquals(0, currentTestWorld.getChunkCache().size());
+
+        // A stream that is not read until the end is closed
+        try (Stream<Chunk> chunks = currentTestWorld.streamChunks(Dimension.OVERWORLD)) {
+            Assertions.assertTrue(chunks.findFirst().isPresent());
+        }
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 62, 1).get().getName());
+    }
+
+    @Test
+    void testParallelChunkFailure() {
+        // The exception of a worker is thrown after all workers stopped, and the failed chunk keeps its changes
+        RuntimeException failure = new RuntimeException("Failed chunk");
+        RuntimeException thrown = Assertions.assertThrows(RuntimeException.class, () -> currentTestWorld.forEachChunk(Dimension.OVERWORLD, chunk -> {
+            if (chunk.getChunkX() == -1 && chunk.getChunkZ() == 0) {
+                chunk.setBlock(15, 63, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+                throw failure;
+            }
+            return false;
+        }, 4));
+        Assertions.assertSame(failure, thrown);
+        Assertions.assertTrue(currentTestWorld.getChunkCache().contains(Dimension.OVERWORLD, -1, 0));
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 63, 1).get().getName());
+    }
+
+    @Test
+    void testChunkCacheGrowth() {
+        // Measure a chunk with all its SubChunks loaded
+        SubChunkPool.clear();
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        chunk.getSubChunks();
+        long loadedSize = chunk.getEstimatedSize();
+        chunk.unload();
+
+        // Chunks are added before their SubChunks are loaded, and grow afterwards
+        SubChunkPool.clear();
+        LruChunkCache cache = new LruChunkCache(0, loadedSize);
+        currentTestWorld.setChunkCache(cache);
+        chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        Assertions.assertTrue(cache.getEstimatedBytes() < loadedSize);
+        chunk.getSubChunks();
+        Assertions.assertEquals(chunk.getEstimatedSize(), cache.getEstimatedBytes());
+
+        // The grown chunk leaves no room for another chunk
+        currentTestWorld.getChunk(Dimension.OVERWORLD, 0, 0);
+        Assertions.assertFalse(cache.contains(Dimension.OVERWORLD, -1, 0));
+        Assertions.assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testPipelinedForEachChunkFailure() {
+        RuntimeException failure = new RuntimeException("Failed chunk");
+        AtomicInteger processed = new AtomicInteger();
+        RuntimeException thrown = Assertions.assertThrows(RuntimeException.class, () -> currentTestWorld.forEachChunkPipelined(Dimension.OVERWORLD, chunk -> {
+            if (processed.incrementAndGet() == 1) {
+                // Accepted for saving before the failure, so it is still written
+                chunk.setBlock(15, 64, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+                return true;
+            }
+            chunk.setBlock(15, 64, 1, BlockType.EMERALD_BLOCK.getNameSpacedId());
+            throw failure;
+        }, 4));
+        Assertions.assertSame(failure, thrown);
+        Assertions.assertEquals(2, processed.get());
+
+        // The failed chunk keeps its change in the cache, and the prefetched chunks are cached again
+        Assertions.assertEquals(1, currentTestWorld.getChunkCache().getChunks().stream()
+                .filter(chunk -> chunk.getBlock(15, 64, 1).get().getName().equals(BlockType.EMERALD_BLOCK.getNameSpacedId()))
+                .count());
+        Assertions.assertTrue(currentTestWorld.getChunkCache().getChunks().stream()
+                .noneMatch(chunk -> chunk.getBlock(15, 64, 1).get().getName().equals(BlockType.GOLD_BLOCK.getNameSpacedId())));
+        reOpenTestWorld();
+        long goldChunks = currentTestWorld.getChunkPresets().get(Dimension.OVERWORLD).values().stream()
+                .flatMap(zMap -> zMap.values().stream())
+                .filter(preset -> currentTestWorld.getChunk(Dimension.OVERWORLD, preset.getX(), preset.getZ())
+                        .flatMap(chunk -> chunk.getBlock(15, 64, 1))
+                        .map(block -> block.getName().equals(BlockType.GOLD_BLOCK.getNameSpacedId()))
+                        .orElse(false))
+                .count();
+        Assertions.assertEquals(1, goldChunks);
+    }
+
+    @Test
+    void testUndecodableSubChunks() {
+        // A SubChunk record that ends in the middle of its block storage
+        byte[] key = Chunks.generateLevelDBKey(-1, 0, Dimension.OVERWORLD, LevelChunkTag.SubChunkPrefix, (byte) 14);
+        byte[] value = new byte[]{8, 1, 1 << 1, 0, 0};
+        currentTestWorld.getWorld().getDb().put(key, value);
+        reOpenTestWorld();
+
+        // Changes around the SubChunk leave its record as it is stored
+        Chunk chunk = currentTestWorld.getChunk(Dimension.OVERWORLD, -1, 0).get();
+        chunk.setBlock(15, 250, 1, BlockType.GOLD_BLOCK.getNameSpacedId());
+        Assertions.assertFalse(chunk.getLoadedSubChunks().containsKey((short) 14));
+        chunk.fill(0, 224, 0, 15, 239, 15, BlockStateRegistry.get(BlockType.STONE.getNameSpacedId()));
+        Assertions.assertFalse(chunk.getLoadedSubChunks().containsKey((short) 14));
+        currentTestWorld.save();
+        Assertions.assertArrayEquals(value, currentTestWorld.getWorld().getDb().get(key));
+        reOpenTestWorld();
+        Assertions.assertEquals(BlockType.GOLD_BLOCK.getNameSpacedId(), currentTestWorld.getBlock(-1, 250, 1).get().getName());
+    }
+}